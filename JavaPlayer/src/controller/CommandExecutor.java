@@ -0,0 +1,240 @@
+package controller;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * CommandExecutor runs the commands that read or change the album hierarchy
+ * one at a time, on a thread of its own, so that the JavaFX thread never
+ * waits for them.
+ *
+ * A command changes the model only inside write, in steps short enough that
+ * the JavaFX thread, which reads the model under the read lock, is never held
+ * up for long. What the user should see of a command is handed to publish.
+ * Published updates of all commands are run together on the JavaFX thread,
+ * once per frame, and the time they take there is counted per command name.
+ */
+public class CommandExecutor {
+
+	public interface Command<T> {
+		T execute(Context context) throws Exception;
+	}
+
+	/**
+	 * What a running command can do besides its own work.
+	 */
+	public interface Context {
+		void progress(long done, long total);
+
+		boolean isCancelled();
+
+		/**
+		 * Throws CancellationException if the user cancelled the command.
+		 */
+		default void checkCancelled() {
+			if (isCancelled())
+				throw new CancellationException();
+		}
+
+		/**
+		 * Change the model, holding the write lock.
+		 */
+		<R> R write(Supplier<R> change);
+
+		default void write(Runnable change) {
+			write(() -> {
+				change.run();
+				return null;
+			});
+		}
+
+		/**
+		 * Run update on the JavaFX thread, together with the other updates of this frame.
+		 */
+		void publish(Runnable update);
+	}
+
+	// How long the updates of one kind of command took on the JavaFX thread.
+	private static class FxTime {
+		final LongAdder nanos = new LongAdder();
+		final LongAdder updates = new LongAdder();
+	}
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ExecutorService writer;
+	private final Queue<Runnable> published = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean publishPending = new AtomicBoolean();
+	private final Map<String, FxTime> fxTimes = new ConcurrentHashMap<>();
+
+	public CommandExecutor() {
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Model writer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Queue command to run after the ones before it. onDone gets the result
+	 * and onError (if not null) the exception, both on the JavaFX thread;
+	 * a cancelled command reports a CancellationException, as does one
+	 * submitted after shutdown. Returns the task, to show its progress or
+	 * cancel it.
+	 */
+	public <T> Task<T> submit(String name, Command<T> command, Consumer<T> onDone, Consumer<Throwable> onError) {
+		CommandTask<T> task = new CommandTask<>(name, command);
+		task.setOnSucceeded(e -> timed(name, () -> {
+			if (onDone != null)
+				onDone.accept(task.getValue());
+		}));
+		task.setOnFailed(e -> timed(name, () -> {
+			if (onError != null)
+				onError.accept(task.getException());
+		}));
+		task.setOnCancelled(e -> timed(name, () -> {
+			if (onError != null)
+				onError.accept(new CancellationException(name + " cancelled"));
+		}));
+		try {
+			writer.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.cancel(false); // Shut down.
+		}
+		return task;
+	}
+
+	/**
+	 * Take no more commands, and wait up to timeout for the ones already
+	 * submitted to finish. Returns false if they did not.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		writer.shutdown();
+		try {
+			return writer.awaitTermination(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Read the model from another thread than the writer, e.g. the JavaFX thread.
+	 */
+	public <T> T read(Supplier<T> reader) {
+		Lock r = lock.readLock();
+		r.lock();
+		try {
+			return reader.get();
+		} finally {
+			r.unlock();
+		}
+	}
+
+	public void read(Runnable reader) {
+		read(() -> {
+			reader.run();
+			return null;
+		});
+	}
+
+	/**
+	 * The read lock, for code that reads the model piece by piece.
+	 */
+	public Lock getReadLock() {
+		return lock.readLock();
+	}
+
+	/**
+	 * Milliseconds the updates of the commands called name took on the JavaFX thread.
+	 */
+	public double getFxMillis(String name) {
+		FxTime t = fxTimes.get(name);
+		return t == null ? 0 : t.nanos.sum() / 1e6;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Time on the JavaFX thread:");
+		for (Map.Entry<String, FxTime> e : fxTimes.entrySet()) {
+			FxTime t = e.getValue();
+			sb.append(String.format("%n  %s: %.1f ms in %d updates", e.getKey(), t.nanos.sum() / 1e6, t.updates.sum()));
+		}
+		return sb.toString();
+	}
+
+	private void publish(String name, Runnable update) {
+		published.add(() -> timed(name, update));
+		if (publishPending.compareAndSet(false, true))
+			Platform.runLater(this::runPublished);
+	}
+
+	private void runPublished() {
+		publishPending.set(false);
+		Runnable update;
+		while ((update = published.poll()) != null)
+			update.run();
+	}
+
+	private void timed(String name, Runnable update) {
+		final long start = System.nanoTime();
+		try {
+			update.run();
+		} finally {
+			FxTime t = fxTimes.computeIfAbsent(name, k -> new FxTime());
+			t.nanos.add(System.nanoTime() - start);
+			t.updates.increment();
+		}
+	}
+
+	private class CommandTask<T> extends Task<T> implements Context {
+		private final String name;
+		private final Command<T> command;
+
+		CommandTask(String name, Command<T> command) {
+			this.name = name;
+			this.command = command;
+		}
+
+		@Override
+		protected T call() throws Exception {
+			return command.execute(this);
+		}
+
+		@Override
+		public void progress(long done, long total) {
+			updateProgress(done, total);
+		}
+
+		@Override
+		public <R> R write(Supplier<R> change) {
+			checkCancelled();
+			Lock w = lock.writeLock();
+			w.lock();
+			try {
+				return change.get();
+			} finally {
+				w.unlock();
+			}
+		}
+
+		@Override
+		public void publish(Runnable update) {
+			CommandExecutor.this.publish(name, update);
+		}
+	}
+}
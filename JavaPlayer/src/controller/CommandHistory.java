@@ -0,0 +1,129 @@
+package controller;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+/**
+ * CommandHistory keeps the edits the user made to the albums, so that they
+ * can be undone and redone in order.
+ *
+ * Each step holds what its undo and redo need, as small as it can be: clip
+ * edits keep the ids of the clips that changed, removed albums are kept
+ * whole, to be put back as they were. The history is bounded both in steps
+ * and in the clip ids its steps hold; the oldest steps are dropped first.
+ *
+ * Steps are recorded, undone and redone by commands, on the executor's
+ * thread. Only the counts may be read from other threads.
+ */
+public class CommandHistory {
+
+	/**
+	 * One edit that can be undone. undo and redo run inside a command.
+	 */
+	public static class Step {
+		private final String name;
+		private final long size;
+		private final Consumer<CommandExecutor.Context> undo;
+		private final Consumer<CommandExecutor.Context> redo;
+
+		/**
+		 * size is the number of clip ids the step holds.
+		 */
+		public Step(String name, long size, Consumer<CommandExecutor.Context> undo,
+				Consumer<CommandExecutor.Context> redo) {
+			this.name = name;
+			this.size = size;
+			this.undo = undo;
+			this.redo = redo;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final int maxSteps;
+	private final long maxSize;
+	private final Deque<Step> done = new ArrayDeque<>(); // Latest first
+	private final Deque<Step> undone = new ArrayDeque<>(); // Latest undone first
+	private long size; // Ids held by all steps
+	private volatile int undoCount;
+	private volatile int redoCount;
+
+	public CommandHistory(int maxSteps, long maxSize) {
+		this.maxSteps = maxSteps;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Add a step that was just done. The steps that were undone can no longer be redone.
+	 */
+	public void record(Step step) {
+		for (Step s : undone)
+			size -= s.size;
+		undone.clear();
+		done.push(step);
+		size += step.size;
+		while (done.size() > 1 && (done.size() > maxSteps || size > maxSize))
+			size -= done.removeLast().size;
+		updateCounts();
+	}
+
+	/**
+	 * Undo the latest step, returns it or null if there was none.
+	 */
+	public Step undo(CommandExecutor.Context context) {
+		Step step = done.poll();
+		if (step != null) {
+			step.undo.accept(context);
+			undone.push(step);
+			updateCounts();
+		}
+		return step;
+	}
+
+	/**
+	 * Redo the step undone last, returns it or null if there was none.
+	 */
+	public Step redo(CommandExecutor.Context context) {
+		Step step = undone.poll();
+		if (step != null) {
+			step.redo.accept(context);
+			done.push(step);
+			updateCounts();
+		}
+		return step;
+	}
+
+	/**
+	 * Forget all steps, e.g. when the albums they refer to are gone.
+	 */
+	public void clear() {
+		done.clear();
+		undone.clear();
+		size = 0;
+		updateCounts();
+	}
+
+	public int getUndoCount() {
+		return undoCount;
+	}
+
+	public int getRedoCount() {
+		return redoCount;
+	}
+
+	public String toString() {
+		return String.format("%d steps to undo, %d to redo, %,d clip ids", undoCount, redoCount, size);
+	}
+
+	private void updateCounts() {
+		undoCount = done.size();
+		redoCount = undone.size();
+	}
+}
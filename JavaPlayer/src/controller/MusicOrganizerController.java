@@ -1,87 +1,380 @@
 package controller;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.Queue;
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.scene.control.Alert;
 import model.Album;
+import model.AlbumChange;
+import model.AlbumJournal;
+import model.AlbumStore;
+import model.AudioBackend;
+import model.ClipFingerprinter;
+import model.ClipEdit;
+import model.ClipInfoExtractor;
+import model.ClipInfoStore;
+import model.ClipRule;
+import model.LineAudioSink;
+import model.MediaAudioBackend;
+import model.PcmAudioBackend;
+import model.ScanDelta;
+import model.SearchIndex;
+import model.SmartAlbums;
 import model.SoundClip;
-import model.SoundClipBlockingQueue;
+import model.SoundClipIndex;
 import model.SoundClipLoader;
+import model.SoundClipPlayQueue;
 import model.SoundClipPlayer;
+import model.SoundClipWatcher;
 import view.MusicOrganizerWindow;
 import view.AlbumWindow;
 import view.MusicOrganizerObserver;
 
 public class MusicOrganizerController {
 
+	// Requests waiting to be played; more than this are merged into the last one.
+	private static final int QUEUE_CAPACITY = 64;
+	// Set to "pcm" to play through PcmAudioBackend instead of JavaFX media.
+	private static final String AUDIO_PROPERTY = "musicorganizer.audio";
+	// Milliseconds PcmAudioBackend overlaps consecutive clips by, with no gap between them.
+	private static final String CROSSFADE_PROPERTY = "musicorganizer.crossfade";
+	// Name of the album under the root that showDuplicates fills.
+	private static final String DUPLICATES_ALBUM = "Duplicates";
+	// Most clips and albums a search shows.
+	private static final int SEARCH_LIMIT = 1000;
+	// Most edits that can be undone, and most clip ids they may hold together (4 bytes each).
+	private static final int UNDO_STEPS = 10_000;
+	private static final long UNDO_IDS = 8_000_000;
+	// How long shutdown waits for the commands still queued.
+	private static final long SHUTDOWN_SECONDS = 30;
+	
 	private MusicOrganizerWindow view;
-	private SoundClipBlockingQueue queue;
-	private Album root;
+	private SoundClipPlayQueue queue;
+	private SoundClipPlayer player;
+	private ClipInfoExtractor clipInfo;
+	private ClipFingerprinter fingerprinter;
+	private CommandExecutor executor;
+	private volatile Album root; // Replaced on the writer thread, read everywhere.
 	private List<AlbumWindow> albumWindows;
-	private List<MusicOrganizerObserver> observers;
+	// Observers by the album they watch, and the other way round.
+	private Map<Album, List<MusicOrganizerObserver>> observersByAlbum = new IdentityHashMap<>();
+	private Map<MusicOrganizerObserver, Album> observedAlbums = new IdentityHashMap<>();
+	// Changes not yet delivered, they are delivered together once per frame.
+	private List<AlbumChange> pendingChanges = new ArrayList<>();
+	private List<String> libraryPaths = new CopyOnWriteArrayList<>();
+	private SoundClipWatcher watcher;
+	private SearchIndex searchIndex;
+	private ExecutorService searches;
+	private AtomicLong searchGeneration = new AtomicLong(); // Of the latest search
+	private ExecutorService duplicateSearches; // Off the writer, which would hold up every edit meanwhile
+	private SmartAlbums smartAlbums = new SmartAlbums(); // Used on the writer thread only.
+	private CommandHistory history = new CommandHistory(UNDO_STEPS, UNDO_IDS);
+	// Clips whose info was read since smart albums were last checked.
+	private Queue<SoundClip> infoChanged = new ConcurrentLinkedQueue<>();
+	private AtomicBoolean smartRefreshPending = new AtomicBoolean();
+	// Keeps the albums on disk as they change; null until restoreAlbums opened it.
+	private volatile AlbumJournal journal;
+	private AtomicBoolean compactionPending = new AtomicBoolean();
+	// The album the last showDuplicates made, to replace; used on the writer thread only.
+	private Album duplicatesAlbum;
 	
 	public MusicOrganizerController() {
 
 		// TODO: Create the root album for all sound clips
 		root = Album.createAlbum("All Sound Clips");
 		
-		// Create the blocking queue
-		queue = new SoundClipBlockingQueue();
+		// Changes to the albums are made on the executor's thread
+		executor = new CommandExecutor();
+		
+		// Index the names of the clips and albums as they change
+		searchIndex = new SearchIndex();
+		root.addListener(searchIndex);
+		searchIndex.addAlbum(root);
+		searches = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Search");
+			t.setDaemon(true);
+			return t;
+		});
+		duplicateSearches = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Find duplicates");
+			t.setDaemon(true);
+			return t;
+		});
+		
+		// Create the play queue
+		queue = new SoundClipPlayQueue(QUEUE_CAPACITY, SoundClipPlayQueue.Policy.COALESCE);
 				
-		// Create a separate thread for the sound clip player and start it
+		// Create the sound clip player and start it
+		AudioBackend backend = createAudioBackend();
+		player = new SoundClipPlayer(queue, backend);
+		long crossfade = Long.getLong(CROSSFADE_PROPERTY, 0);
+		if(backend instanceof PcmAudioBackend && crossfade > 0)
+		{
+			((PcmAudioBackend) backend).setCrossfade(crossfade);
+			player.setGap(0); // The clips overlap instead
+		}
+		player.start();
 		
-		(new Thread(new SoundClipPlayer(queue))).start();
+		// Read clip durations and formats in the background as clips are loaded
+		Path clipInfoFile = ClipInfoStore.defaultLocation();
+		clipInfo = new ClipInfoExtractor(ClipInfoStore.load(clipInfoFile), clipInfoFile);
+		SoundClipLoader.setInfoExtractor(clipInfo);
+		fingerprinter = new ClipFingerprinter(clipInfo.getStore(), clipInfoFile);
 		
-		// Create a list for the observers.
-		observers = new ArrayList<>();
+		// Smart albums with rules on length or size are checked again as clip info
+		// comes in, with all that came in since the last check at once
+		ClipRule.setInfoStore(clipInfo.getStore());
+		clipInfo.addListener(clip -> {
+			infoChanged.add(clip);
+			if(smartRefreshPending.compareAndSet(false, true))
+				executor.submit("Update smart albums", this::refreshSmartAlbums, null, error("Error updating smart albums: "));
+		});
+	}
+	
+	private static AudioBackend createAudioBackend()
+	{
+		if("pcm".equals(System.getProperty(AUDIO_PROPERTY)))
+		{
+			try
+			{
+				return new PcmAudioBackend(new LineAudioSink());
+			}
+			catch(IOException e)
+			{
+				System.out.println(e.getMessage() + ", using JavaFX media instead");
+			}
+		}
+		return new MediaAudioBackend();
 	}
 	
-	public void registerObserver(MusicOrganizerObserver observer)
+	/**
+	 * Let observer hear about the changes to album and the albums below it.
+	 */
+	public void registerObserver(Album album, MusicOrganizerObserver observer)
 	{
-		observers.add(observer);
+		unregisterObserver(observer);
+		observersByAlbum.computeIfAbsent(album, a -> new ArrayList<>()).add(observer);
+		observedAlbums.put(observer, album);
 	}
 	public void unregisterObserver(MusicOrganizerObserver observer)
 	{
-		observers.remove(observer);
+		Album album = observedAlbums.remove(observer);
+		if(album==null)
+			return;
+		List<MusicOrganizerObserver> list = observersByAlbum.get(album);
+		list.remove(observer);
+		if(list.isEmpty())
+			observersByAlbum.remove(album);
 	}
 	public void clearObservers()
 	{
-		for (MusicOrganizerObserver observer: observers)
+		for (MusicOrganizerObserver observer: new ArrayList<>(observedAlbums.keySet()))
 			observer.notifyClose();
-		observers.clear();
+		observersByAlbum.clear();
+		observedAlbums.clear();
+	}
+	
+	// Queue a change for the observers; the first change of a frame schedules the delivery.
+	private void notifyObservers(AlbumChange change)
+	{
+		if(observedAlbums.isEmpty())
+			return;
+		if(pendingChanges.isEmpty())
+			Platform.runLater(this::deliverChanges);
+		pendingChanges.add(change);
+	}
+	
+	private void deliverChanges()
+	{
+		executor.read(() -> deliverChanges(pendingChanges));
+		pendingChanges = new ArrayList<>();
+	}
+	
+	private void deliverChanges(List<AlbumChange> changes)
+	{
+		Map<MusicOrganizerObserver, List<AlbumChange>> routed = new IdentityHashMap<>();
+		for(AlbumChange change : changes)
+		{
+			// The observers of the changed album and of the albums above it,
+			for(Album a = change.getScope(); a!=null; a = a.getParentAlbum())
+				route(a, change, routed);
+			// and for removals those of the albums below it. There are only as
+			// many observed albums as there are open windows.
+			if(change.reachesDown())
+			{
+				Album top = change.getAlbum();
+				for(Album a : new ArrayList<>(observersByAlbum.keySet()))
+				{
+					if(a!=change.getScope() && (a==top || top.containsAlbum(a)))
+						route(a, change, routed);
+				}
+			}
+		}
+		for(Map.Entry<MusicOrganizerObserver, List<AlbumChange>> e : routed.entrySet())
+		{
+			// Skip observers that went away while the changes were delivered.
+			if(observedAlbums.containsKey(e.getKey()) && e.getKey().update(e.getValue()))
+				unregisterObserver(e.getKey());
+		}
 	}
 	
-	private void notifyObservers(Album album)
+	// Add change to the changes for the observers of album, merged with the last one if it can be.
+	private void route(Album album, AlbumChange change, Map<MusicOrganizerObserver, List<AlbumChange>> routed)
 	{
-		for (ListIterator<MusicOrganizerObserver> it=observers.listIterator(); it.hasNext();)
+		List<MusicOrganizerObserver> list = observersByAlbum.get(album);
+		if(list==null)
+			return;
+		for(MusicOrganizerObserver observer : list)
 		{
-			MusicOrganizerObserver obs = it.next();
-			if(obs.update(album))
-				it.remove();
+			List<AlbumChange> forObserver = routed.computeIfAbsent(observer, o -> new ArrayList<>());
+			AlbumChange merged = forObserver.isEmpty() ? null : forObserver.get(forObserver.size()-1).merge(change);
+			if(merged!=null)
+				forObserver.set(forObserver.size()-1, merged);
+			else
+				forObserver.add(change);
 		}
 	}
 	
 	/**
 	 * Load the sound clips found in all subfolders of a path on disk. If path is not
 	 * an actual folder on disk, has no effect.
+	 * The clips remembered from the last run are taken from the clip index, and
+	 * only the folders that changed since then are scanned again. Once loaded,
+	 * the folder is watched, so that clips added to or deleted from disk show up
+	 * in the root album while the program runs.
 	 */
-	public Set<SoundClip> loadSoundClips(String path) {
-		Set<SoundClip> clips = SoundClipLoader.loadSoundClips(path);
-		for(SoundClip c : clips)
+	public Task<ScanDelta> loadSoundClips(String path) {
+		libraryPaths.add(path);
+		return executor.submit("Load sound clips", context -> {
+			SoundClipIndex index = SoundClipIndex.load(SoundClipIndex.defaultLocation(path));
+			List<SoundClip> known = index.getClips(Paths.get(path));
+			context.write(() -> root.addSongs(known));
+			clipInfo.submitAll(known);
+			
+			ScanDelta delta = rescan(path, index);
+			context.write(() -> applyDelta(delta));
+			return delta;
+		}, delta -> {
+			view.displayMessage("Loaded " + path + ": " + delta + " (" + delta.getStatistics() + ")");
+			watch(path);
+		}, error("Error loading " + path + ": "));
+	}
+	
+	// Start watching a library folder, changes are applied one batch at a time.
+	private void watch(String path) {
+		try {
+			if (watcher == null)
+				watcher = new SoundClipWatcher(batch -> executor.submit("Apply changes from disk", context -> {
+					// Events were lost, fall back to an incremental rescan.
+					List<ScanDelta> deltas = new ArrayList<>();
+					if (batch.isOverflow())
+					{
+						for (String p : libraryPaths)
+							deltas.add(rescan(p, SoundClipIndex.load(SoundClipIndex.defaultLocation(p))));
+					}
+					applyWatchBatch(context, batch, deltas);
+					return null;
+				}, null, error("Error applying changes from disk: ")));
+			watcher.watch(Paths.get(path));
+		} catch (IOException e) {
+			System.out.println("Could not watch library folder " + path + ": " + e.getMessage());
+		}
+	}
+	
+	// Rescan a library folder against its index, and save the updated index.
+	private static ScanDelta rescan(String path, SoundClipIndex index) {
+		Path indexFile = SoundClipIndex.defaultLocation(path);
+		ScanDelta delta = SoundClipLoader.rescan(path, index);
+		try {
+			index.save(indexFile);
+		} catch (IOException e) {
+			System.out.println("Could not save clip index " + indexFile + ": " + e.getMessage());
+		}
+		return delta;
+	}
+	
+	// Clips added to the root come back with the next scan; only the purges are journaled.
+	private void applyDelta(ScanDelta delta) {
+		root.purgeSongs(delta.getRemoved());
+		journal(j -> j.songsPurged(root, delta.getRemoved()));
+		root.addSongs(delta.getAdded());
+	}
+	
+	private void applyWatchBatch(CommandExecutor.Context context, SoundClipWatcher.Batch batch, List<ScanDelta> deltas) {
+		List<SoundClip> removed = new ArrayList<>();
+		List<SoundClip> added = new ArrayList<>();
+		for(ScanDelta delta : deltas)
 		{
-			root.addSong(c);
+			context.write(() -> {
+				removed.addAll(root.purgeSongs(delta.getRemoved()));
+				added.addAll(root.addSongs(delta.getAdded()));
+			});
+			journal(j -> j.songsPurged(root, delta.getRemoved()));
 		}
-		return clips;
+		if(!batch.getRemovedFolders().isEmpty())
+		{
+			List<SoundClip> gone = new ArrayList<>();
+			for(SoundClip c : root.getSongs())
+			{
+				for(Path folder : batch.getRemovedFolders())
+				{
+					if(c.getFile().toPath().startsWith(folder))
+					{
+						gone.add(c);
+						break;
+					}
+				}
+			}
+			context.write(() -> removed.addAll(root.purgeSongs(gone)));
+			journal(j -> j.songsPurged(root, gone));
+		}
+		context.write(() -> {
+			removed.addAll(root.purgeSongs(batch.getRemoved()));
+			added.addAll(root.addSongs(batch.getAdded()));
+		});
+		journal(j -> j.songsPurged(root, batch.getRemoved()));
+		
+		final Album changed = root;
+		context.publish(() -> {
+			view.displayMessage("Library changed on disk: " + added.size() + " clips added, " + removed.size() + " removed");
+			view.onClipsUpdated();
+			if(!removed.isEmpty())
+				notifyObservers(AlbumChange.clipsRemoved(changed, removed));
+			if(!added.isEmpty())
+				notifyObservers(AlbumChange.clipsAdded(changed, added));
+		});
 	}
 	
 	public void registerView(MusicOrganizerWindow view) {
 		this.view = view;
 	}
 	
+	// Durations and formats of the clips, filled in the background.
+	public ClipInfoExtractor getClipInfo(){
+		return clipInfo;
+	}
+	
+	public ClipFingerprinter getFingerprinter(){
+		return fingerprinter;
+	}
+	
 	/**
 	 * Returns the root album
 	 */
@@ -89,31 +382,313 @@ public class MusicOrganizerController {
 		return root;
 	}
 	
+	// Runs the commands that change the albums, and guards reading them.
+	public CommandExecutor getExecutor(){
+		return executor;
+	}
+	
+	/**
+	 * Opens an album hierarchy saved to file in place of the current one. Albums
+	 * are decoded from the file as the tree and album windows show them; the
+	 * search index reads their names from the file and only decodes the albums
+	 * a search finds.
+	 */
+	public Task<Album> openHierarchy(Path file){
+		return executor.submit("Load hierarchy", context -> {
+			// Open into a fresh hierarchy, so the current one stays usable until we swap.
+			Album loaded = AlbumStore.open(file);
+			swapHierarchy(context, loaded, "Imported hierarchy from: " + file);
+			// The journal starts over from the opened albums, as saved in file.
+			AlbumJournal j = journal;
+			if(j != null)
+				j.compact(loaded, file);
+			return loaded;
+		}, null, error("Error loading file: "));
+	}
+	
+	/**
+	 * Brings back the albums of the library at libraryPath as they were when
+	 * the program last ran, from its album journal, and keeps journaling the
+	 * changes made to them from then on. Run it before loading the library.
+	 */
+	public Task<Album> restoreAlbums(String libraryPath){
+		return executor.submit("Restore albums", context -> {
+			Path folder = AlbumJournal.defaultLocation(libraryPath);
+			AlbumJournal j = AlbumJournal.open(folder);
+			Album restored;
+			try {
+				restored = j.restore(root.getAlbumName());
+			} catch(IOException e) {
+				j.close();
+				throw new IOException("Could not read album journal in " + folder + ": " + e.getMessage(), e);
+			}
+			AlbumJournal old = journal;
+			journal = j;
+			if(old != null)
+				old.close();
+			swapHierarchy(context, restored, "Restored albums (" + j + ")");
+			return restored;
+		}, null, error("Error restoring albums: "));
+	}
+	
+	/**
+	 * Runs the commands still queued and writes what is left of the album
+	 * journal, call it before the program exits.
+	 */
+	public void shutdown(){
+		// Their changes are journaled too.
+		if(!executor.shutdown(SHUTDOWN_SECONDS, TimeUnit.SECONDS))
+			System.out.println("Gave up waiting for the album commands to finish");
+		AlbumJournal j = journal;
+		if(j == null)
+			return;
+		try {
+			j.close();
+		} catch(IOException e) {
+			System.out.println("Could not write album journal: " + e.getMessage());
+		}
+	}
+	
+	// Make loaded the hierarchy shown and edited, in a command.
+	private void swapHierarchy(CommandExecutor.Context context, Album loaded, String message){
+		context.write(() -> {
+			replaceRootAlbum(loaded);
+			smartAlbums.clear();
+			history.clear(); // Its steps are about the albums that were replaced.
+		});
+		context.publish(() -> {
+			view.displayMessage(message);
+			view.refreshEverything();
+		});
+		// Only this thread changes the albums, so they can be read without the lock.
+		// Smart albums were saved with their songs; from now on they follow their parents.
+		for(Album a : SmartAlbums.find(loaded))
+			context.write(() -> smartAlbums.add(a));
+		searchIndex.clear();
+		searchIndex.addClips(loaded.getSongs());
+		searchIndex.addAlbum(loaded);
+	}
+	
+	// Replaces the whole album hierarchy, in a command's write.
+	private void replaceRootAlbum(Album newRoot){
+		assert newRoot != null && newRoot.getParentAlbum() == null;
+		root.removeListener(searchIndex);
+		newRoot.addListener(searchIndex);
+		root = newRoot;
+	}
+	
+	/**
+	 * Looks for the clips and albums whose names contain query, on a thread of
+	 * its own. onResult gets the result on the JavaFX thread, unless another
+	 * search was started in the meantime.
+	 */
+	public void search(String query, Consumer<SearchIndex.Result> onResult){
+		final long generation = searchGeneration.incrementAndGet();
+		searches.execute(() -> {
+			if(generation != searchGeneration.get())
+				return; // Typed over already.
+			// Albums it finds in an opened file are decoded, so read under the lock.
+			SearchIndex.Result result = executor.read(() -> searchIndex.search(query, SEARCH_LIMIT));
+			Platform.runLater(() -> {
+				if(generation == searchGeneration.get())
+					onResult.accept(result);
+			});
+		});
+	}
+	
+	/**
+	 * Forget about the running search, its result is not shown.
+	 */
+	public void cancelSearch(){
+		searchGeneration.incrementAndGet();
+	}
+	
+	// Report a failed or cancelled command in the message area.
+	private Consumer<Throwable> error(String prefix)
+	{
+		return e -> {
+			if(e instanceof CancellationException)
+				view.displayMessage(e.getMessage());
+			else
+				view.displayMessage(prefix + e.getMessage());
+		};
+	}
+	
 	/**
 	 * Adds an album to the Music Organizer
 	 */
 	public void addNewAlbum(Album parentAlbum, String albumName)
 	{
-		Album newAlbum = Album.createSubAlbum(albumName, parentAlbum);
-		view.displayMessage("Created new album '"+albumName+"' under '"+parentAlbum.getAlbumName()+"'");
-		view.onAlbumAdded(parentAlbum, newAlbum);
-		notifyObservers(parentAlbum);
+		executor.submit("New album", context -> {
+			Album newAlbum = context.write(() -> Album.createSubAlbum(albumName, parentAlbum));
+			journal(j -> j.albumAdded(parentAlbum, newAlbum));
+			searchIndex.addAlbum(newAlbum);
+			context.publish(() -> {
+				view.displayMessage("Created new album '"+albumName+"' under '"+parentAlbum.getAlbumName()+"'");
+				view.onAlbumAdded(parentAlbum, newAlbum);
+				notifyObservers(AlbumChange.albumAdded(parentAlbum, newAlbum));
+			});
+			recordAlbumAdded("new album '"+albumName+"'", parentAlbum, newAlbum);
+			return newAlbum;
+		}, null, error("Error creating album: "));
 	}
 	
 	/**
-	 * Removes an album from the Music Organizer
+	 * Adds a smart album, holding the clips of its parent that match a rule,
+	 * see ClipRule for how rules are written
 	 */
-	public void deleteAlbum(Album targetAlbum)
+	public void addSmartAlbum(Album parentAlbum, String albumName, String ruleText)
 	{
-		Album parent = targetAlbum.getParentAlbum();
-		if(parent!=null)
+		final ClipRule rule;
+		try
 		{
-			view.displayMessage("Removed album '"+targetAlbum.getAlbumName()+"'");
-			parent.removeSubAlbum(targetAlbum);
-			view.onAlbumRemoved(targetAlbum);
-			view.onClipsUpdated();
-			notifyObservers(targetAlbum);
+			rule = ClipRule.parse(ruleText);
+		}
+		catch(IllegalArgumentException e)
+		{
+			view.displayMessage("Not a valid rule: "+e.getMessage());
+			return;
 		}
+		executor.submit("New smart album", context -> {
+			Album newAlbum = context.write(() -> {
+				Album a = Album.createSmartAlbum(albumName, parentAlbum, rule);
+				smartAlbums.add(a);
+				return a;
+			});
+			journal(j -> j.albumAdded(parentAlbum, newAlbum));
+			searchIndex.addAlbum(newAlbum);
+			final int count = newAlbum.getSongCount();
+			context.publish(() -> {
+				view.displayMessage("Created smart album '"+albumName+"' under '"+parentAlbum.getAlbumName()+"', "+count+" songs match");
+				view.onAlbumAdded(parentAlbum, newAlbum);
+				notifyObservers(AlbumChange.albumAdded(parentAlbum, newAlbum));
+			});
+			recordAlbumAdded("new smart album '"+albumName+"'", parentAlbum, newAlbum);
+			return newAlbum;
+		}, null, error("Error creating smart album: "));
+	}
+	
+	// Check the smart albums against the clips whose info came in.
+	private Void refreshSmartAlbums(CommandExecutor.Context context)
+	{
+		smartRefreshPending.set(false);
+		List<SoundClip> clips = new ArrayList<>();
+		SoundClip clip;
+		while((clip = infoChanged.poll()) != null)
+			clips.add(clip);
+		if(smartAlbums.size()==0)
+			return null;
+		List<Album> changed = context.write(() -> smartAlbums.refresh(clips));
+		if(!changed.isEmpty())
+			context.publish(() -> view.onClipsUpdated());
+		return null;
+	}
+	
+	/**
+	 * Gives an album a new name
+	 */
+	public void renameAlbum(Album album, String albumName)
+	{
+		executor.submit("Rename album", context -> {
+			String oldName = album.getAlbumName();
+			if(albumName.equals(oldName))
+				return null;
+			setAlbumName(context, album, albumName);
+			context.publish(() -> view.displayMessage("Renamed album '"+oldName+"' to '"+albumName+"'"));
+			history.record(new CommandHistory.Step("rename of '"+oldName+"' to '"+albumName+"'", 0,
+					c -> setAlbumName(c, album, oldName), c -> setAlbumName(c, album, albumName)));
+			return null;
+		}, null, error("Error renaming album: "));
+	}
+	
+	/**
+	 * Removes an album from the Music Organizer
+	 */
+	public void deleteAlbum(Album targetAlbum)
+	{
+		executor.submit("Remove album", context -> {
+			Album parent = targetAlbum.getParentAlbum();
+			if(parent==null)
+				return null;
+			final int index = parent.getSubAlbums().indexOf(targetAlbum);
+			detachAlbum(context, parent, targetAlbum);
+			context.publish(() -> view.displayMessage("Removed album '"+targetAlbum.getAlbumName()+"'"));
+			// The album is kept as it is, to be put back on undo.
+			history.record(new CommandHistory.Step("removal of album '"+targetAlbum.getAlbumName()+"'", 0,
+					c -> attachAlbum(c, parent, targetAlbum, index), c -> detachAlbum(c, parent, targetAlbum)));
+			return null;
+		}, null, error("Error removing album: "));
+	}
+	
+	/**
+	 * Looks for clips with the same content in the root album and shows them
+	 * with showDuplicates. The clips are hashed in the background, on the
+	 * fingerprinter's threads; only showing the result is a command. Returns
+	 * the task, to show its progress or cancel it.
+	 */
+	public Task<List<List<SoundClip>>> findDuplicates(ClipFingerprinter.Mode mode)
+	{
+		final List<SoundClip> clips = executor.read(() -> root.getSongs());
+		Task<List<List<SoundClip>>> task = new Task<List<List<SoundClip>>>() {
+			@Override
+			protected List<List<SoundClip>> call() throws Exception {
+				return fingerprinter.findDuplicates(clips, mode, this::updateProgress);
+			}
+		};
+		task.setOnSucceeded(e -> showDuplicates(task.getValue()));
+		task.setOnFailed(e -> error("Error finding duplicates: ").accept(task.getException()));
+		task.setOnCancelled(e -> view.displayMessage("Find duplicates cancelled"));
+		duplicateSearches.execute(task);
+		return task;
+	}
+	
+	/**
+	 * Shows groups of clips with the same content as an album under the root,
+	 * with a subalbum for each group. The album of an earlier search is replaced.
+	 */
+	public void showDuplicates(List<List<SoundClip>> groups)
+	{
+		executor.submit("Show duplicates", context -> {
+			final Album r = root;
+			// Only the album made here goes, not one of the user's that has the same name.
+			final Album a = duplicatesAlbum;
+			duplicatesAlbum = null;
+			if(a != null && a.getParentAlbum() == r)
+			{
+				final int index = r.getSubAlbums().indexOf(a);
+				context.write(() -> r.removeSubAlbum(a));
+				journal(j -> j.albumRemoved(r, index));
+				searchIndex.removeAlbum(a);
+				context.publish(() -> {
+					view.onAlbumRemoved(a);
+					notifyObservers(AlbumChange.albumRemoved(r, a));
+				});
+			}
+			if(groups.isEmpty())
+			{
+				context.publish(() -> view.displayMessage("No duplicate sound clips found"));
+				return null;
+			}
+			int copies = 0;
+			for(List<SoundClip> group : groups)
+				copies += group.size();
+			Album duplicates = context.write(() -> {
+				Album d = Album.createSubAlbum(DUPLICATES_ALBUM, r);
+				for(List<SoundClip> group : groups)
+					Album.createSubAlbum(group.get(0) + " (" + group.size() + " copies)", d).addSongs(group);
+				return d;
+			});
+			duplicatesAlbum = duplicates;
+			journal(j -> j.albumAdded(r, duplicates));
+			searchIndex.addAlbum(duplicates);
+			final String message = "Found "+groups.size()+" sound clips with duplicates, "+copies+" files in all";
+			context.publish(() -> {
+				view.displayMessage(message);
+				view.onAlbumAdded(r, duplicates);
+				notifyObservers(AlbumChange.albumAdded(r, duplicates));
+			});
+			return null;
+		}, null, error("Error showing duplicates: "));
 	}
 	
 	/**
@@ -121,18 +696,23 @@ public class MusicOrganizerController {
 	 */
 	public void addSoundClips(Album targetAlbum, List<SoundClip> songs)
 	{
-		boolean bModified = false;
-		for(SoundClip song : songs)
-		{
-			if(targetAlbum.containsSong(song))
-				continue;
-			bModified = true;
-			targetAlbum.addSong(song);
-			view.displayMessage("Added song '"+song+"' to album '"+targetAlbum.getAlbumName()+"'");
-		}
-		if( bModified )
-			view.onClipsUpdated();
-			notifyObservers(targetAlbum);
+		if(refuseSmart(targetAlbum))
+			return;
+		executor.submit("Add sound clips", context -> {
+			ClipEdit edit = context.write(() -> ClipEdit.add(targetAlbum, songs));
+			List<SoundClip> added = edit.getChanged();
+			if(!added.isEmpty())
+			{
+				journal(j -> j.songsAdded(targetAlbum, added));
+				context.publish(() -> {
+					view.displayMessage("Added "+describeSongs(added)+" to album '"+targetAlbum.getAlbumName()+"'");
+					view.onClipsUpdated();
+					notifyObservers(AlbumChange.clipsAdded(targetAlbum, added));
+				});
+			}
+			recordClipEdit("adding "+describeSongs(added)+" to '"+targetAlbum.getAlbumName()+"'", edit);
+			return added;
+		}, null, error("Error adding sound clips: "));
 	}
 	
 	/**
@@ -140,18 +720,191 @@ public class MusicOrganizerController {
 	 */
 	public void removeSoundClips(Album targetAlbum, List<SoundClip> songs)
 	{
-		boolean bModified = false;
-		for(SoundClip song : songs)
+		if(refuseSmart(targetAlbum))
+			return;
+		executor.submit("Remove sound clips", context -> {
+			ClipEdit edit = context.write(() -> ClipEdit.remove(targetAlbum, songs));
+			List<SoundClip> removed = edit.getChanged();
+			if(!removed.isEmpty())
+			{
+				journal(j -> j.songsRemoved(targetAlbum, removed));
+				context.publish(() -> {
+					view.displayMessage("Removed "+describeSongs(removed)+" from album '"+targetAlbum.getAlbumName()+"'");
+					view.onClipsUpdated();
+					notifyObservers(AlbumChange.clipsRemoved(targetAlbum, removed));
+				});
+			}
+			recordClipEdit("removing "+describeSongs(removed)+" from '"+targetAlbum.getAlbumName()+"'", edit);
+			return removed;
+		}, null, error("Error removing sound clips: "));
+	}
+	
+	/**
+	 * Undoes the latest steps edits to the albums, as far as there are any
+	 */
+	public void undo(int steps)
+	{
+		executor.submit("Undo", context -> {
+			CommandHistory.Step last = null;
+			int undone = 0;
+			for(CommandHistory.Step step; undone < steps && (step = history.undo(context)) != null; ++undone)
+				last = step;
+			final String message = last==null ? "Nothing to undo" : "Undid "+(undone==1 ? last.getName() : undone+" edits");
+			context.publish(() -> view.displayMessage(message));
+			return null;
+		}, null, error("Error undoing: "));
+	}
+	
+	/**
+	 * Redoes the steps edits undone last, as far as there are any
+	 */
+	public void redo(int steps)
+	{
+		executor.submit("Redo", context -> {
+			CommandHistory.Step last = null;
+			int redone = 0;
+			for(CommandHistory.Step step; redone < steps && (step = history.redo(context)) != null; ++redone)
+				last = step;
+			final String message = last==null ? "Nothing to redo" : "Redid "+(redone==1 ? last.getName() : redone+" edits");
+			context.publish(() -> view.displayMessage(message));
+			return null;
+		}, null, error("Error redoing: "));
+	}
+	
+	// The edits that can be undone and redone.
+	public CommandHistory getHistory(){
+		return history;
+	}
+	
+	// Remember that newAlbum was added, to take it out on undo and put it back on redo.
+	private void recordAlbumAdded(String name, Album parent, Album newAlbum)
+	{
+		final int index = parent.getSubAlbums().indexOf(newAlbum);
+		history.record(new CommandHistory.Step(name, 0,
+				c -> detachAlbum(c, parent, newAlbum), c -> attachAlbum(c, parent, newAlbum, index)));
+	}
+	
+	private void recordClipEdit(String name, ClipEdit edit)
+	{
+		if(edit.isEmpty())
+			return;
+		history.record(new CommandHistory.Step(name, edit.size(),
+				c -> applyClipEdit(c, edit, true), c -> applyClipEdit(c, edit, false)));
+	}
+	
+	// Undo or redo a clip edit, and show what it changed.
+	private void applyClipEdit(CommandExecutor.Context context, ClipEdit edit, boolean undo)
+	{
+		final AlbumJournal log = journal;
+		context.write(() -> {
+			if(undo)
+				edit.undo(log);
+			else
+				edit.redo(log);
+		});
+		compactJournalIfNeeded(); // The edit told the journal itself.
+		final Album target = edit.getTarget();
+		final List<SoundClip> changed = edit.getChanged();
+		final boolean added = edit.isAdding() != undo;
+		context.publish(() -> {
+			view.onClipsUpdated();
+			if(!changed.isEmpty())
+				notifyObservers(added ? AlbumChange.clipsAdded(target, changed) : AlbumChange.clipsRemoved(target, changed));
+		});
+	}
+	
+	// Take an album out of the hierarchy, in a command.
+	private void detachAlbum(CommandExecutor.Context context, Album parent, Album album)
+	{
+		final int index = parent.getSubAlbums().indexOf(album);
+		context.write(() -> {
+			parent.removeSubAlbum(album);
+			smartAlbums.removeTree(album);
+		});
+		journal(j -> j.albumRemoved(parent, index));
+		searchIndex.removeAlbum(album);
+		context.publish(() -> {
+			view.onAlbumRemoved(album);
+			view.onClipsUpdated();
+			notifyObservers(AlbumChange.albumRemoved(parent, album));
+		});
+	}
+	
+	// Put an album taken out with detachAlbum back, in a command. Songs its
+	// parent lost in the meantime, e.g. because their files were deleted, are dropped.
+	private void attachAlbum(CommandExecutor.Context context, Album parent, Album album, int index)
+	{
+		context.write(() -> {
+			parent.addSubAlbum(album, index);
+			List<SoundClip> stale = new ArrayList<>();
+			for(SoundClip song : album.getSongs())
+			{
+				if(!parent.containsSong(song))
+					stale.add(song);
+			}
+			album.purgeSongs(stale);
+			for(Album a : SmartAlbums.find(album))
+				smartAlbums.add(a);
+		});
+		journal(j -> j.albumAdded(parent, album));
+		searchIndex.addAlbum(album);
+		context.publish(() -> {
+			view.onAlbumAdded(parent, album);
+			notifyObservers(AlbumChange.albumAdded(parent, album));
+		});
+	}
+	
+	private void setAlbumName(CommandExecutor.Context context, Album album, String albumName)
+	{
+		context.write(() -> album.setAlbumName(albumName));
+		journal(j -> j.albumRenamed(album));
+		searchIndex.addAlbum(album);
+		context.publish(() -> {
+			view.onAlbumRenamed(album);
+			notifyObservers(AlbumChange.albumRenamed(album));
+		});
+	}
+	
+	// Append a change just made to the journal, on the writer thread.
+	private void journal(Consumer<AlbumJournal> change)
+	{
+		AlbumJournal j = journal;
+		if(j == null)
+			return;
+		change.accept(j);
+		compactJournalIfNeeded();
+	}
+	
+	// Once the journal has outgrown a snapshot, write one in a command of its own.
+	private void compactJournalIfNeeded()
+	{
+		AlbumJournal j = journal;
+		if(j != null && j.needsCompaction() && compactionPending.compareAndSet(false, true))
 		{
-			if(!targetAlbum.containsSong(song))
-				continue;
-			bModified = true;
-			targetAlbum.removeSong(song);
-			view.displayMessage("Removed song '"+song+"' from album '"+targetAlbum.getAlbumName()+"'");
+			executor.submit("Compact album journal", context -> {
+				compactionPending.set(false);
+				if(journal == j)
+					j.compact(root);
+				return null;
+			}, null, error("Error compacting album journal: "));
 		}
-		if( bModified )
-			view.onClipsUpdated();
-			notifyObservers(targetAlbum);
+	}
+	
+	// The songs of a smart album follow its rule, they are not added or removed by hand.
+	private boolean refuseSmart(Album album)
+	{
+		if(!album.isSmart())
+			return false;
+		view.displayMessage("'"+album.getAlbumName()+"' is a smart album, its songs are those matching "+album.getRule());
+		return true;
+	}
+	
+	// Name a single song, or just count them for a batch.
+	private static String describeSongs(List<SoundClip> songs)
+	{
+		if(songs.size()==1)
+			return "song '"+songs.get(0)+"'";
+		return songs.size()+" songs";
 	}
 	
 	/**
@@ -168,6 +921,21 @@ public class MusicOrganizerController {
 		}
 	}
 	
+	/**
+	 * Stops the sound clip that is playing and forgets the ones waiting.
+	 */
+	public void stopSoundClips(){
+		player.stop();
+		view.displayMessage("Stopped playing");
+	}
+	
+	/**
+	 * Skips to the next sound clip waiting to be played.
+	 */
+	public void skipSoundClip(){
+		player.skip();
+	}
+	
 	
 	/**
 	 * Method for opening a new album window.
@@ -175,7 +943,7 @@ public class MusicOrganizerController {
 	public void openAlbumWindow(Album album) {
 		if (album != null) {
 			AlbumWindow albumWindow = new AlbumWindow(album, queue, view, this);
-			registerObserver(albumWindow);
+			registerObserver(album, albumWindow);
 			// Alerts the user is no album is selected.
 		} else {
 			Alert alert = new Alert(Alert.AlertType.WARNING);
@@ -0,0 +1,137 @@
+package export;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import model.Album;
+import model.AlbumStore.ProgressListener;
+import model.SoundClip;
+
+/**
+ * AlbumExporter walks an album hierarchy once and hands it to an AlbumVisitor,
+ * which writes it out as it goes, so the export never holds more than the
+ * album it is at in memory.
+ * The walk keeps its own stack, so deep hierarchies do not overflow the
+ * thread's. Like the other readers of the model it must run where the albums
+ * cannot change under it, e.g. in a command.
+ */
+public class AlbumExporter {
+
+	// Report progress after this many clips.
+	private static final int PROGRESS_STEP = 4096;
+
+	/**
+	 * How much was exported, and how long it took.
+	 */
+	public static class Result {
+		private final int albums;
+		private final long clips;
+		private final long nanos;
+
+		Result(int albums, long clips, long nanos) {
+			this.albums = albums;
+			this.clips = clips;
+			this.nanos = nanos;
+		}
+
+		public int getAlbums() {
+			return albums;
+		}
+
+		public long getClips() {
+			return clips;
+		}
+
+		public long getElapsedMillis() {
+			return nanos / 1_000_000;
+		}
+
+		public String toString() {
+			return String.format("%,d albums and %,d clips in %d ms", albums, clips, getElapsedMillis());
+		}
+	}
+
+	// An album being visited, and the next of its subalbums to go into.
+	private static class Frame {
+		final Album album;
+		final int depth;
+		final List<Album> subAlbums;
+		int next;
+
+		Frame(Album album, int depth, List<Album> subAlbums) {
+			this.album = album;
+			this.depth = depth;
+			this.subAlbums = subAlbums;
+		}
+	}
+
+	private final AlbumVisitor visitor;
+	private final ProgressListener progress;
+	private long total;
+	private long done;
+	private int albums;
+
+	private AlbumExporter(AlbumVisitor visitor, ProgressListener progress) {
+		this.visitor = visitor;
+		this.progress = progress;
+	}
+
+	/**
+	 * Hand root and, if the visitor wants them, the albums below it to visitor.
+	 * progress (may be null) counts clips, and may throw to stop the export.
+	 * Does not close visitor.
+	 */
+	public static Result export(Album root, AlbumVisitor visitor, ProgressListener progress) throws IOException {
+		final long start = System.nanoTime();
+		AlbumExporter exporter = new AlbumExporter(visitor, progress);
+		exporter.run(root);
+		return new Result(exporter.albums, exporter.done, System.nanoTime() - start);
+	}
+
+	private void run(Album root) throws IOException {
+		final boolean deep = visitor.wantsSubAlbums();
+		total = deep ? countClips(root) : root.getSongCount();
+		visitor.begin(root);
+		Deque<Frame> stack = new ArrayDeque<>();
+		stack.push(visit(root, 0, deep));
+		while (!stack.isEmpty()) {
+			Frame f = stack.peek();
+			if (f.subAlbums != null && f.next < f.subAlbums.size()) {
+				stack.push(visit(f.subAlbums.get(f.next++), f.depth + 1, deep));
+			} else {
+				stack.pop();
+				visitor.exitAlbum(f.album, f.depth);
+			}
+		}
+		visitor.end();
+		if (progress != null)
+			progress.progress(done, total);
+	}
+
+	// Enter an album and go through its clips.
+	private Frame visit(Album album, int depth, boolean deep) throws IOException {
+		++albums;
+		visitor.enterAlbum(album, depth);
+		for (SoundClip clip : album.getSongs()) {
+			visitor.clip(clip);
+			if (++done % PROGRESS_STEP == 0 && progress != null)
+				progress.progress(done, total);
+		}
+		return new Frame(album, depth, deep ? album.getSubAlbums() : null);
+	}
+
+	private static long countClips(Album root) {
+		long count = 0;
+		Deque<Album> pending = new ArrayDeque<>();
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			Album a = pending.pop();
+			count += a.getSongCount();
+			for (Album sub : a.getSubAlbums())
+				pending.push(sub);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,44 @@
+package export;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import model.Album;
+import model.SoundClip;
+
+/**
+ * AlbumVisitor receives an album hierarchy from AlbumExporter, one album and
+ * clip at a time, in pre-order: an album, its clips, its subalbums, and then
+ * the end of the album.
+ */
+public interface AlbumVisitor extends Closeable {
+
+	/**
+	 * Called once, before the first album.
+	 */
+	default void begin(Album root) throws IOException {
+	}
+
+	/**
+	 * depth is 0 for the album the export started at.
+	 */
+	void enterAlbum(Album album, int depth) throws IOException;
+
+	void clip(SoundClip clip) throws IOException;
+
+	void exitAlbum(Album album, int depth) throws IOException;
+
+	/**
+	 * Called once, after the last album.
+	 */
+	default void end() throws IOException {
+	}
+
+	/**
+	 * False if only the album the export starts at is wanted, e.g. for a
+	 * playlist: it already holds the songs of all albums below it.
+	 */
+	default boolean wantsSubAlbums() {
+		return true;
+	}
+}
@@ -0,0 +1,71 @@
+package export;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import model.Album;
+import model.ClipInfo;
+import model.ClipInfoStore;
+import model.SoundClip;
+
+/**
+ * CsvExport writes one line per clip in each album, with the path of the
+ * album in the hierarchy, e.g. "All Sound Clips/Drums", and the clip's name,
+ * file and length in milliseconds (empty if not known). Fields are quoted as
+ * in RFC 4180 where needed.
+ */
+public class CsvExport extends ExportWriter {
+
+	private final ClipInfoStore info;
+	private final List<String> albumPath = new ArrayList<>();
+	private String albumField; // The album path of the current album, quoted
+
+	/**
+	 * info (may be null) gives the clip lengths.
+	 */
+	public CsvExport(Path file, ClipInfoStore info) throws IOException {
+		super(file);
+		this.info = info;
+	}
+
+	@Override
+	public void begin(Album root) throws IOException {
+		out.write("album,name,path,duration_ms\r\n");
+	}
+
+	@Override
+	public void enterAlbum(Album album, int depth) throws IOException {
+		albumPath.add(album.getAlbumName());
+		albumField = quote(String.join("/", albumPath));
+	}
+
+	@Override
+	public void clip(SoundClip clip) throws IOException {
+		out.write(albumField);
+		out.write(',');
+		out.write(quote(clip.toString()));
+		out.write(',');
+		out.write(quote(clip.getFile().getPath()));
+		out.write(',');
+		ClipInfo i = info != null ? info.get(clip) : null;
+		if (i != null && i.isValid())
+			out.write(Long.toString(i.getDurationMillis()));
+		out.write("\r\n");
+	}
+
+	@Override
+	public void exitAlbum(Album album, int depth) throws IOException {
+		albumPath.remove(albumPath.size() - 1);
+	}
+
+	private static String quote(String field) {
+		boolean plain = true;
+		for (int i = 0; i < field.length() && plain; ++i) {
+			final char c = field.charAt(i);
+			plain = c != ',' && c != '"' && c != '\n' && c != '\r';
+		}
+		return plain ? field : "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+}
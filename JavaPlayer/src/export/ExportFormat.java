@@ -0,0 +1,68 @@
+package export;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import model.ClipInfoStore;
+
+/**
+ * The formats the hierarchy can be exported in, with the file extensions
+ * they go by.
+ */
+public enum ExportFormat {
+	HTML("HTML page", "html", "htm"),
+	JSON("JSON", "json"),
+	CSV("CSV table", "csv"),
+	M3U("M3U playlist", "m3u", "m3u8");
+
+	// Clips per HTML page before the output is split.
+	public static final int HTML_CLIPS_PER_PAGE = 100_000;
+
+	private final String description;
+	private final String[] extensions;
+
+	ExportFormat(String description, String... extensions) {
+		this.description = description;
+		this.extensions = extensions;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public String[] getExtensions() {
+		return extensions.clone();
+	}
+
+	/**
+	 * The format of a file by its extension, or null if none matches.
+	 */
+	public static ExportFormat forFile(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (ExportFormat f : values()) {
+			for (String ext : f.extensions) {
+				if (name.endsWith("." + ext))
+					return f;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Open a visitor writing file in this format. info (may be null) gives
+	 * clip lengths where the format has them.
+	 */
+	public ExportWriter open(Path file, ClipInfoStore info) throws IOException {
+		switch (this) {
+		case HTML:
+			return new HtmlExport(file, HTML_CLIPS_PER_PAGE);
+		case JSON:
+			return new JsonExport(file);
+		case CSV:
+			return new CsvExport(file, info);
+		default:
+			return new M3uExport(file, info);
+		}
+	}
+}
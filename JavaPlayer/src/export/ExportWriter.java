@@ -0,0 +1,85 @@
+package export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ExportWriter is the base of the visitors that write a text file: it holds a
+ * buffered UTF-8 writer on the file, and keeps track of the files written.
+ *
+ * Files are written next to their destination under a .tmp name, and only
+ * moved into place by commit, so a failed or cancelled export leaves what was
+ * there before. Closing without commit deletes them.
+ */
+public abstract class ExportWriter implements AlbumVisitor {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	protected Writer out;
+	// The files written so far, each under its temporary name and its destination.
+	private final List<Path> temps = new ArrayList<>();
+	private final List<Path> targets = new ArrayList<>();
+	private boolean committed;
+
+	protected ExportWriter(Path file) throws IOException {
+		out = open(file);
+	}
+
+	/**
+	 * Number of files written, more than one if the output was split.
+	 */
+	public int getFiles() {
+		return targets.size();
+	}
+
+	/**
+	 * Move the files written into place, replacing what was there. Call it
+	 * once the export is done; the writer is closed after.
+	 */
+	public void commit() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+		for (int i = 0; i < temps.size(); ++i) {
+			try {
+				Files.move(temps.get(i), targets.get(i), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temps.get(i), targets.get(i), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		committed = true;
+	}
+
+	// Open a file for writing, under its temporary name until commit.
+	protected Writer open(Path file) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		temps.add(temp);
+		targets.add(file);
+		return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temp), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		} finally {
+			if (!committed) {
+				for (Path temp : temps)
+					Files.deleteIfExists(temp);
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package export;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import model.Album;
+import model.SoundClip;
+
+/**
+ * HtmlExport writes the hierarchy as an HTML page: a heading per album, one
+ * level deeper for each subalbum, and a list of its clips. Names are escaped.
+ *
+ * For huge libraries the output can be split into pages of about
+ * clipsPerPage clips, linked to each other: library.html, library-2.html and
+ * so on. An album split over two pages is continued under its heading on the
+ * next page.
+ */
+public class HtmlExport extends ExportWriter {
+
+	private final Path file;
+	private final int clipsPerPage;
+	private int page = 1;
+	private int pageClips;
+	private Album current; // The album whose clips are being written
+	private int currentDepth;
+	private boolean listOpen;
+
+	/**
+	 * clipsPerPage 0 writes everything to one page.
+	 */
+	public HtmlExport(Path file, int clipsPerPage) throws IOException {
+		super(file);
+		this.file = file;
+		this.clipsPerPage = clipsPerPage;
+	}
+
+	@Override
+	public void begin(Album root) throws IOException {
+		startPage();
+	}
+
+	@Override
+	public void enterAlbum(Album album, int depth) throws IOException {
+		closeList();
+		current = album;
+		currentDepth = depth;
+		heading(album.getAlbumName(), depth);
+	}
+
+	@Override
+	public void clip(SoundClip clip) throws IOException {
+		if (clipsPerPage > 0 && pageClips == clipsPerPage)
+			nextPage();
+		if (!listOpen) {
+			out.write("<ul>\n");
+			listOpen = true;
+		}
+		out.write("<li>");
+		writeEscaped(clip.toString());
+		out.write("</li>\n");
+		++pageClips;
+	}
+
+	@Override
+	public void exitAlbum(Album album, int depth) throws IOException {
+		closeList();
+	}
+
+	@Override
+	public void end() throws IOException {
+		finishPage(null);
+	}
+
+	// The file of a page, the first one is the file asked for.
+	private Path pagePath(int n) {
+		if (n == 1)
+			return file;
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String stem = dot > 0 ? name.substring(0, dot) : name;
+		String ext = dot > 0 ? name.substring(dot) : "";
+		return file.resolveSibling(stem + "-" + n + ext);
+	}
+
+	private void nextPage() throws IOException {
+		finishPage(pagePath(page + 1).getFileName().toString());
+		out.close();
+		out = open(pagePath(++page));
+		pageClips = 0;
+		startPage();
+		heading(current.getAlbumName() + " (continued)", currentDepth);
+	}
+
+	private void startPage() throws IOException {
+		out.write("<!DOCTYPE html>\n<html>\n<head><meta charset=\"utf-8\"><title>Music Organizer</title></head>\n<body>\n");
+		out.write("<h1>Music Organizer Hierarchy</h1>\n");
+		if (page > 1) {
+			out.write("<p><a href=\"");
+			writeEscaped(pagePath(page - 1).getFileName().toString());
+			out.write("\">Previous page</a> | Page " + page + "</p>\n");
+		}
+	}
+
+	// next is the file name of the next page, or null for the last one.
+	private void finishPage(String next) throws IOException {
+		closeList();
+		if (next != null) {
+			out.write("<p><a href=\"");
+			writeEscaped(next);
+			out.write("\">Next page</a></p>\n");
+		}
+		out.write("</body>\n</html>\n");
+	}
+
+	private void heading(String name, int depth) throws IOException {
+		final int level = Math.min(depth + 2, 6);
+		out.write("<h" + level + ">");
+		writeEscaped(name);
+		out.write("</h" + level + ">\n");
+	}
+
+	private void closeList() throws IOException {
+		if (listOpen) {
+			out.write("</ul>\n");
+			listOpen = false;
+		}
+	}
+
+	private void writeEscaped(String s) throws IOException {
+		int from = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			String entity;
+			switch (s.charAt(i)) {
+			case '&': entity = "&amp;"; break;
+			case '<': entity = "&lt;"; break;
+			case '>': entity = "&gt;"; break;
+			case '"': entity = "&quot;"; break;
+			case '\'': entity = "&#39;"; break;
+			default: continue;
+			}
+			out.write(s, from, i - from);
+			out.write(entity);
+			from = i + 1;
+		}
+		out.write(s, from, s.length() - from);
+	}
+}
@@ -0,0 +1,77 @@
+package export;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import model.Album;
+import model.SoundClip;
+
+/**
+ * JsonExport writes the hierarchy as nested JSON objects:
+ *   {"name": "...", "clips": [{"name": "...", "path": "..."}, ...], "albums": [...]}
+ */
+public class JsonExport extends ExportWriter {
+
+	private boolean inClips; // Still in the clips of the innermost album
+	private boolean clipWritten; // Of the innermost album
+
+	public JsonExport(Path file) throws IOException {
+		super(file);
+	}
+
+	@Override
+	public void enterAlbum(Album album, int depth) throws IOException {
+		if (depth > 0) {
+			// The first subalbum ends the clips of its parent, the others follow a sibling.
+			out.write(inClips ? "],\"albums\":[" : ",");
+		}
+		out.write("\n{\"name\":");
+		writeString(album.getAlbumName());
+		out.write(",\"clips\":[");
+		inClips = true;
+		clipWritten = false;
+	}
+
+	@Override
+	public void clip(SoundClip clip) throws IOException {
+		out.write(clipWritten ? ",\n{\"name\":" : "\n{\"name\":");
+		clipWritten = true;
+		writeString(clip.toString());
+		out.write(",\"path\":");
+		writeString(clip.getFile().getPath());
+		out.write('}');
+	}
+
+	@Override
+	public void exitAlbum(Album album, int depth) throws IOException {
+		out.write(inClips ? "],\"albums\":[]}" : "]}");
+		inClips = false;
+	}
+
+	@Override
+	public void end() throws IOException {
+		out.write('\n');
+	}
+
+	private void writeString(String s) throws IOException {
+		out.write('"');
+		int from = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			final char c = s.charAt(i);
+			if (c != '"' && c != '\\' && c >= 0x20)
+				continue;
+			out.write(s, from, i - from);
+			switch (c) {
+			case '"': out.write("\\\""); break;
+			case '\\': out.write("\\\\"); break;
+			case '\n': out.write("\\n"); break;
+			case '\r': out.write("\\r"); break;
+			case '\t': out.write("\\t"); break;
+			default: out.write(String.format("\\u%04x", (int) c));
+			}
+			from = i + 1;
+		}
+		out.write(s, from, s.length() - from);
+		out.write('"');
+	}
+}
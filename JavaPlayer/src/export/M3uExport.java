@@ -0,0 +1,60 @@
+package export;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import model.Album;
+import model.ClipInfo;
+import model.ClipInfoStore;
+import model.SoundClip;
+
+/**
+ * M3uExport writes the clips of an album as an extended M3U playlist, in
+ * UTF-8 (as .m3u8 files are). The album holds the songs of its subalbums too,
+ * so these are not visited.
+ */
+public class M3uExport extends ExportWriter {
+
+	private final ClipInfoStore info;
+
+	/**
+	 * info (may be null) gives the clip lengths.
+	 */
+	public M3uExport(Path file, ClipInfoStore info) throws IOException {
+		super(file);
+		this.info = info;
+	}
+
+	@Override
+	public boolean wantsSubAlbums() {
+		return false;
+	}
+
+	@Override
+	public void begin(Album root) throws IOException {
+		out.write("#EXTM3U\n");
+	}
+
+	@Override
+	public void enterAlbum(Album album, int depth) throws IOException {
+		out.write("#PLAYLIST:" + oneLine(album.getAlbumName()) + "\n");
+	}
+
+	@Override
+	public void clip(SoundClip clip) throws IOException {
+		ClipInfo i = info != null ? info.get(clip) : null;
+		long seconds = i != null && i.isValid() ? (i.getDurationMillis() + 999) / 1000 : -1;
+		out.write("#EXTINF:" + seconds + "," + oneLine(clip.toString()) + "\n");
+		out.write(clip.getFile().getAbsolutePath());
+		out.write('\n');
+	}
+
+	@Override
+	public void exitAlbum(Album album, int depth) throws IOException {
+	}
+
+	// Line breaks would end the entry early.
+	private static String oneLine(String s) {
+		return s.replace('\n', ' ').replace('\r', ' ');
+	}
+}
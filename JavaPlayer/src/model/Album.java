@@ -5,25 +5,46 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /* Album:
  * Each song can be part of an album, an album may contain subalbums, each album must be named.
  * Use createAlbum or createSubAlbum to create a new album,
  * then addSong to add songs to the album.
+ * A smart album, made with createSmartAlbum, holds the songs of its parent that
+ * match its rule instead, and follows the parent as songs are added to it.
  */
 public class Album {
 
+	private static final AtomicInteger nextId = new AtomicInteger(); // Albums may be decoded on other threads.
+	
+	private final int id = nextId.getAndIncrement();
 	private String albumName;
 	private Album parentAlbum;
 	private ArrayList<Album> subAlbums;
-	private ArrayList<SoundClip> songList;
+	private ClipIdSet songIds; // Ids of the songs in this album, see SoundClipRegistry.
+	// Set while the songs and subalbums of a lazily loaded album are still in its file.
+	private volatile MappedHierarchy lazySource;
+	private boolean decoding; // Set while this thread decodes, guarded by this.
+	private int lazyIndex;
+	private int lazySubCount;
+	private int lazySongCount;
+	private List<AlbumListener> listeners; // Created by the first addListener.
+	private ClipRule rule; // Set for a smart album.
+	private AlbumListener ruleListener; // On the parent, while the rule is active.
 	
 	private Album(String inName)
 	{
 		albumName = inName;
 		parentAlbum = null;
 		subAlbums = new ArrayList<Album>();
-		songList = new ArrayList<SoundClip>();
+		songIds = new ClipIdSet();
 	}
 	
 	/* Album factory: create a root album or a subalbum! */
@@ -39,12 +60,39 @@ public class Album {
 		return result;
 	}
 	
+	public static Album createSmartAlbum(String inName, Album inParent, ClipRule inRule)
+	{
+		assertNotNull(inRule);
+		Album result = createSubAlbum(inName, inParent);
+		result.rule = inRule;
+		result.activateRule();
+		return result;
+	}
+	
+	// An album whose contents are decoded from a mapped AHL file on first use.
+	static Album createLazyAlbum(String inName, ClipRule inRule, MappedHierarchy source, int index, int subCount, int songCount)
+	{
+		Album result = new Album(inName);
+		result.rule = inRule;
+		result.lazySource = source;
+		result.lazyIndex = index;
+		result.lazySubCount = subCount;
+		result.lazySongCount = songCount;
+		return result;
+	}
+	
 	// Get the name of this album.
 	public String getAlbumName()
 	{
 		return albumName;
 	}
 	
+	// Get the id of this album, unique while the program runs.
+	public int getId()
+	{
+		return id;
+	}
+	
 	// Get parent album of this subalbum, or null if this is the root.
 	public Album getParentAlbum()
 	{
@@ -54,18 +102,123 @@ public class Album {
 	// Grab list of subalbums.
 	public ArrayList<Album> getSubAlbums()
 	{
+		materialize();
 		return new ArrayList<Album>(subAlbums);
 	}
 	
 	// Grab list of songs in this album.
 	public ArrayList<SoundClip> getSongs()
 	{
-		return new ArrayList<SoundClip>(songList);
+		materialize();
+		return SoundClipRegistry.getDefault().getAll(songIds.toArray());
+	}
+	
+	// Number of subalbums and songs, without loading a lazily loaded album.
+	public int getSubAlbumCount()
+	{
+		return lazySource!=null ? lazySubCount : subAlbums.size();
+	}
+	public int getSongCount()
+	{
+		return lazySource!=null ? lazySongCount : songIds.size();
 	}
 	
 	public String toString()
 	{
-		return albumName + " (" + songList.size() + " songs)";
+		if(rule!=null)
+			return albumName + " [" + rule + "] (" + getSongCount() + " songs)";
+		return albumName + " (" + getSongCount() + " songs)";
+	}
+	
+	/* Smart albums: the rule deciding the songs of this album, or null for an ordinary album. */
+	public ClipRule getRule()
+	{
+		return rule;
+	}
+	public boolean isSmart()
+	{
+		return rule!=null;
+	}
+	
+	/* Start following the parent album: songs added to it that match the rule are
+	 * added here as well, and the songs it already has are checked once.
+	 * Does nothing for an ordinary album or one that already follows its parent.
+	 * Albums read from a file get their rule with setRule and are activated
+	 * by whoever reads them, see SmartAlbums.
+	 */
+	public void activateRule()
+	{
+		if(rule==null || ruleListener!=null || parentAlbum==null)
+			return;
+		ruleListener = new AlbumListener() {
+			@Override
+			public void songsAdded(Album album, List<SoundClip> songs)
+			{
+				addSongs(matching(songs));
+			}
+		};
+		parentAlbum.addListener(ruleListener);
+		reapplyRule(parentAlbum.getSongs());
+	}
+	
+	/* Check songs of the parent album against the rule again, e.g. after their
+	 * length became known: those that match now are added, those that no longer
+	 * match are removed. Returns whether anything changed.
+	 */
+	public boolean reapplyRule(Collection<SoundClip> songs)
+	{
+		if(rule==null || parentAlbum==null)
+			return false;
+		materialize();
+		List<SoundClip> matches = new ArrayList<SoundClip>();
+		List<SoundClip> misses = new ArrayList<SoundClip>();
+		for(SoundClip song : songs)
+		{
+			if(rule.matches(song))
+				matches.add(song);
+			else if(songIds.contains(song.getId()))
+				misses.add(song);
+		}
+		return !removeSongs(misses).isEmpty() | !addSongs(matches).isEmpty();
+	}
+	
+	// Used while reading a file, the rule is activated later.
+	void setRule(ClipRule inRule)
+	{
+		rule = inRule;
+	}
+	
+	private List<SoundClip> matching(List<SoundClip> songs)
+	{
+		List<SoundClip> result = new ArrayList<SoundClip>();
+		for(SoundClip song : songs)
+		{
+			if(rule.matches(song))
+				result.add(song);
+		}
+		return result;
+	}
+	
+	private void deactivateRule()
+	{
+		if(ruleListener==null)
+			return;
+		parentAlbum.removeListener(ruleListener);
+		ruleListener = null;
+	}
+	
+	/* Add or remove a listener for changes to the songs of this album. */
+	public void addListener(AlbumListener listener)
+	{
+		assertNotNull(listener);
+		if(listeners==null)
+			listeners = new CopyOnWriteArrayList<AlbumListener>();
+		listeners.add(listener);
+	}
+	public void removeListener(AlbumListener listener)
+	{
+		if(listeners!=null)
+			listeners.remove(listener);
 	}
 	
 	/* Add or remove a subalbum from this album.
@@ -73,21 +226,30 @@ public class Album {
 	 */
 	public void addSubAlbum(Album album)
 	{
+		materialize();
+		addSubAlbum(album, subAlbums.size());
+	}
+	// Add a subalbum at a position among the others, e.g. where it was removed from.
+	public void addSubAlbum(Album album, int index)
+	{
+		materialize();
 		assertNotNull(album);
 		assertNull(album.parentAlbum);
 		assertFalse(containsAlbum(album));
 		
 		album.parentAlbum = this;
-		subAlbums.add(album);
+		subAlbums.add(Math.min(index, subAlbums.size()), album);
 		
 		assertTrue(containsAlbum(album));
 	}
 	public void removeSubAlbum(Album album)
 	{
+		materialize();
 		assertNotNull(album);
 		assertEquals(album.parentAlbum,this);
 		assertTrue(containsAlbum(album));
 		
+		album.deactivateRule();
 		album.parentAlbum = null;
 		subAlbums.remove(album);
 		
@@ -100,12 +262,14 @@ public class Album {
 	 */
 	public void addSong(SoundClip song)
 	{
+		materialize();
 		assertNotNull(song);
 
-		if(songList.contains(song))
+		if(!songIds.add(song.getId()))
 			return;
-		song.addAlbum(this);
-		songList.add(song);
+		song.registered().addAlbum(this);
+		if(listeners!=null)
+			fireAdded(Collections.singletonList(song.registered()));
 		if(parentAlbum!=null)
 			parentAlbum.addSong(song);
 		
@@ -113,14 +277,17 @@ public class Album {
 	}
 	public void removeSong(SoundClip song)
 	{
+		materialize();
 		assertNotNull(song);
 		
-		if(!songList.contains(song))
+		if(!songIds.contains(song.getId()))
 			return;
 		if(parentAlbum!=null) // Do not remove from root.
 		{
-			song.removeAlbum(this);
-			songList.remove(song);
+			songIds.remove(song.getId());
+			song.registered().removeAlbum(this);
+			if(listeners!=null)
+				fireRemoved(Collections.singletonList(song.registered()));
 			
 			assertFalse(containsSong(song));
 		}
@@ -128,17 +295,164 @@ public class Album {
 			a.removeSong(song);
 	}
 	
+	/* Add or remove many songs at once.
+	 * Duplicates and songs that are already (or not) part of this album are skipped,
+	 * so there is no need to check with containsSong first. Each parent album is
+	 * updated once for the whole batch, and removals cascade down each subalbum once.
+	 * Returns the songs that were actually added to or removed from this album.
+	 */
+	public List<SoundClip> addSongs(Collection<SoundClip> songs)
+	{
+		materialize();
+		assertNotNull(songs);
+		
+		List<SoundClip> added = addMissing(songs);
+		fireAdded(added);
+		// Songs an album already had are in all of its parents too, so only
+		// the ones that were new need to travel further up.
+		List<SoundClip> pending = added;
+		for(Album a = parentAlbum; a!=null && !pending.isEmpty(); a = a.parentAlbum)
+		{
+			pending = a.addMissing(pending);
+			a.fireAdded(pending);
+		}
+		return added;
+	}
+	public List<SoundClip> removeSongs(Collection<SoundClip> songs)
+	{
+		return removeSongs(songs, null);
+	}
+	// Also hands log (if not null) the ids each album lost, this one and those below it, parents first.
+	List<SoundClip> removeSongs(Collection<SoundClip> songs, BiConsumer<Album, BitSet> log)
+	{
+		materialize();
+		assertNotNull(songs);
+		
+		BitSet present = new BitSet();
+		List<SoundClip> removed = new ArrayList<SoundClip>();
+		for(SoundClip song : songs)
+		{
+			assertNotNull(song);
+			final int id = song.getId();
+			if(songIds.contains(id) && !present.get(id))
+			{
+				present.set(id);
+				removed.add(song.registered());
+			}
+		}
+		if(parentAlbum!=null) // Do not remove from root.
+			removePresent(present, log);
+		else
+			removeFromSubAlbums(present, log);
+		return removed;
+	}
+	
+	// Add the songs this album doesn't have yet, and return them.
+	private List<SoundClip> addMissing(Collection<SoundClip> songs)
+	{
+		materialize();
+		List<SoundClip> added = new ArrayList<SoundClip>();
+		for(SoundClip song : songs)
+		{
+			assertNotNull(song);
+			if(songIds.add(song.getId()))
+			{
+				SoundClip registered = song.registered();
+				registered.addAlbum(this);
+				added.add(registered);
+			}
+		}
+		return added;
+	}
+	
+	// Remove a batch of song ids held by this album, then cascade to subalbums.
+	private void removePresent(BitSet ids, BiConsumer<Album, BitSet> log)
+	{
+		materialize();
+		if(log!=null)
+			log.accept(this, ids);
+		SoundClipRegistry registry = SoundClipRegistry.getDefault();
+		List<SoundClip> removed = listeners!=null ? new ArrayList<SoundClip>(ids.cardinality()) : null;
+		for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id+1))
+		{
+			SoundClip song = registry.get(id);
+			songIds.remove(id);
+			song.removeAlbum(this);
+			if(removed!=null)
+				removed.add(song);
+		}
+		if(removed!=null)
+			fireRemoved(removed);
+		removeFromSubAlbums(ids, log);
+	}
+	
+	// Subalbums only hold songs of their parent, so a subalbum that shares
+	// none of the batch can be skipped together with everything below it.
+	private void removeFromSubAlbums(BitSet ids, BiConsumer<Album, BitSet> log)
+	{
+		for(Album a : subAlbums)
+		{
+			a.materialize();
+			BitSet shared = (BitSet)ids.clone();
+			shared.and(a.songIds.bits());
+			if(!shared.isEmpty())
+				a.removePresent(shared, log);
+		}
+	}
+	
+	/* Remove a song from this album and all of its subalbums, even if this is the root.
+	 * Use this when the song's file is gone from disk, not to edit albums.
+	 * purgeSongs returns the songs that were part of this album.
+	 */
+	public void purgeSong(SoundClip song)
+	{
+		materialize();
+		assertNotNull(song);
+		
+		if(!songIds.contains(song.getId()))
+			return;
+		for(Album a : subAlbums)
+			a.purgeSong(song);
+		songIds.remove(song.getId());
+		song.registered().removeAlbum(this);
+		if(listeners!=null)
+			fireRemoved(Collections.singletonList(song.registered()));
+		
+		assertFalse(containsSong(song));
+	}
+	public List<SoundClip> purgeSongs(Collection<SoundClip> songs)
+	{
+		materialize();
+		assertNotNull(songs);
+		
+		BitSet present = new BitSet();
+		List<SoundClip> removed = new ArrayList<SoundClip>();
+		for(SoundClip song : songs)
+		{
+			assertNotNull(song);
+			final int id = song.getId();
+			if(songIds.contains(id) && !present.get(id))
+			{
+				present.set(id);
+				removed.add(song.registered());
+			}
+		}
+		if(!present.isEmpty())
+			removePresent(present, null);
+		return removed;
+	}
+	
 	/* Check if an album is a subalbum of this album tree.
 	 * Returns true if 'album' is a subalbum, or if it's a subalbum of subalbum.
+	 * Walks up from 'album' through its parents, so the cost is the depth of 'album'
+	 * rather than the size of this tree.
 	 */
 	public boolean containsAlbum(Album album)
 	{
 		assertNotNull(album);
-		if(subAlbums.contains(album))
-			return true;
-		for(Album a : subAlbums)
+		for(Album a = album.parentAlbum; a!=null; a = a.parentAlbum)
 		{
-			if(a.containsAlbum(album))
+			if(a==this)
 				return true;
 		}
 		return false;
@@ -147,13 +461,22 @@ public class Album {
 	/* Check if this album contains a song. */
 	public boolean containsSong(SoundClip song)
 	{
+		materialize();
 		assertNotNull(song);
-		return songList.contains(song);
+		return songIds.contains(song.getId());
+	}
+	
+	// Same as containsSong, by the id of the song.
+	boolean containsId(int id)
+	{
+		materialize();
+		return songIds.contains(id);
 	}
 	
 	// Debug dump output!
 	public void DumpAlbum(String intend)
 	{
+		materialize();
 		System.out.println(intend+"[Album '"+albumName+"', Parent '"+(parentAlbum!=null ? parentAlbum.albumName : "null")+"] SubAlbums "+subAlbums.size());
 		if( subAlbums.size()>0 )
 		{
@@ -162,69 +485,114 @@ public class Album {
 				a.DumpAlbum(intend+" ");
 			System.out.println(intend+"}");
 		}
-		System.out.println(intend+"["+albumName+"] Songs "+songList.size());
-		if( songList.size()>0 )
+		System.out.println(intend+"["+albumName+"] Songs "+songIds.size());
+		if( songIds.size()>0 )
 		{
 			System.out.println(intend+"{");
-			for(SoundClip s : songList)
+			for(SoundClip s : getSongs())
 				System.out.println(intend+" -"+s);
 			System.out.println(intend+"}");
 		}
 	}
 	
-	// Serializer
-	public static void serializeString(OutputStream ar, String text) throws IOException
+	/* Serializer: writes the album hierarchy as AHL, see AlbumSerializer for the format.
+	 * serializeIn replaces the contents of this album, and reads both current and old AHL files.
+	 */
+	public void serializeOut(OutputStream ar) throws IOException
 	{
-		ar.write(text.length());
-		ar.write(text.getBytes());
+		AlbumSerializer.write(ar, this);
 	}
-	public static String serializeString(InputStream ar) throws IOException
+	
+	public void serializeIn(InputStream ar) throws IOException
 	{
-		final int len = ar.read();
-		byte nameBytes[] = new byte[len];
-		ar.read(nameBytes);
-		return new String(nameBytes);
+		clear();
+		AlbumSerializer.read(ar, this);
 	}
 	
-	public void serializeOut(OutputStream ar) throws IOException
+	// Rename this album.
+	public void setAlbumName(String inName)
 	{
-		// First write album name.
-		serializeString(ar,albumName);
-		
-		// Then subalbums
-		ar.write(subAlbums.size());
-		for(Album a : subAlbums)
-			a.serializeOut(ar);
-		
-		// Then clips in this album.
-		ar.write(songList.size());
-		for(SoundClip c : songList)
-			c.serializeOut(ar);
+		assertNotNull(inName);
+		albumName = inName;
 	}
 	
-	public void serializeIn(InputStream ar) throws IOException
+	// Drop all songs and subalbums of this album.
+	private void clear()
 	{
-		// Reset.
-		songList.clear();
-		subAlbums.clear();
-		
-		// Read album name.
-		albumName = serializeString(ar);
-		
-		// Then subalbums
-		final int numSubs = ar.read();
-		for(int i=0; i<numSubs; ++i)
+		lazySource = null;
+		List<SoundClip> songs = getSongs();
+		for(SoundClip song : songs)
+			song.removeAlbum(this);
+		songIds.clear();
+		fireRemoved(songs);
+		for(Album a : subAlbums)
 		{
-			Album newAlbum = createSubAlbum("",this);
-			newAlbum.serializeIn(ar);
+			a.deactivateRule();
+			a.parentAlbum = null;
 		}
-		
-		// Then clips.
-		final int numClips = ar.read();
-		for(int i=0; i<numClips; ++i)
+		subAlbums.clear();
+	}
+	
+	private void fireAdded(List<SoundClip> songs)
+	{
+		if(listeners==null || songs.isEmpty())
+			return;
+		for(AlbumListener l : listeners)
+			l.songsAdded(this, songs);
+	}
+	private void fireRemoved(List<SoundClip> songs)
+	{
+		if(listeners==null || songs.isEmpty())
+			return;
+		for(AlbumListener l : listeners)
+			l.songsRemoved(this, songs);
+	}
+	
+	// Decode the contents of a lazily loaded album, the first time they are needed.
+	// Only the songs of this album are added: its parents were decoded before it
+	// and already hold them.
+	// Readers on two threads may get here at once: one decodes, the other waits for it.
+	private void materialize()
+	{
+		if(lazySource==null)
+			return;
+		synchronized(this)
 		{
-			SoundClip newClip = SoundClip.serializeIn(ar);
-			addSong(newClip);
+			if(lazySource==null || decoding) // Done, or called back from decode.
+				return;
+			decoding = true;
+			try
+			{
+				lazySource.decode(this, lazyIndex);
+			}
+			finally
+			{
+				decoding = false;
+			}
+			lazySource = null;
 		}
 	}
+	
+	// The file a lazily loaded album is still to be decoded from, or null once
+	// it was, and its record there.
+	MappedHierarchy getLazySource()
+	{
+		return lazySource;
+	}
+	int getLazyIndex()
+	{
+		return lazyIndex;
+	}
+	
+	// Used by MappedHierarchy while decoding this album.
+	void attachDecodedSubAlbum(Album album)
+	{
+		assertNull(album.parentAlbum);
+		album.parentAlbum = this;
+		subAlbums.add(album);
+	}
+	void addDecodedSongs(List<SoundClip> songs)
+	{
+		addMissing(songs);
+	}
 }
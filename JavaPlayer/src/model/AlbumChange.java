@@ -0,0 +1,106 @@
+package model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AlbumChange describes one change to the album hierarchy: clips added to or
+ * removed from an album, or an album added, removed or renamed.
+ *
+ * Clip changes carry the ids of the clips (see SoundClipRegistry), album
+ * changes the id of the album. getScope is the album whose subtree changed:
+ * the album itself for clip changes and renames, the parent for albums added
+ * and removed.
+ */
+public class AlbumChange {
+
+	public enum Type { CLIPS_ADDED, CLIPS_REMOVED, ALBUM_ADDED, ALBUM_REMOVED, ALBUM_RENAMED }
+
+	private final Type type;
+	private final Album album;
+	private final Album scope;
+	private final int[] ids;
+
+	private AlbumChange(Type type, Album album, Album scope, int[] ids) {
+		this.type = type;
+		this.album = album;
+		this.scope = scope;
+		this.ids = ids;
+	}
+
+	public static AlbumChange clipsAdded(Album album, List<SoundClip> clips) {
+		return new AlbumChange(Type.CLIPS_ADDED, album, album, clipIds(clips));
+	}
+
+	public static AlbumChange clipsRemoved(Album album, List<SoundClip> clips) {
+		return new AlbumChange(Type.CLIPS_REMOVED, album, album, clipIds(clips));
+	}
+
+	public static AlbumChange albumAdded(Album parent, Album album) {
+		return new AlbumChange(Type.ALBUM_ADDED, album, parent, new int[] { album.getId() });
+	}
+
+	/**
+	 * album was taken out of parent, so it no longer knows its parent itself.
+	 */
+	public static AlbumChange albumRemoved(Album parent, Album album) {
+		return new AlbumChange(Type.ALBUM_REMOVED, album, parent, new int[] { album.getId() });
+	}
+
+	public static AlbumChange albumRenamed(Album album) {
+		return new AlbumChange(Type.ALBUM_RENAMED, album, album, new int[] { album.getId() });
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Album getAlbum() {
+		return album;
+	}
+
+	public Album getScope() {
+		return scope;
+	}
+
+	/**
+	 * The ids of the clips or album that changed. Must not be modified.
+	 */
+	public int[] getIds() {
+		return ids;
+	}
+
+	/**
+	 * True if albums below getAlbum are affected too: clips removed from an
+	 * album are also removed from its subalbums, and a removed album takes
+	 * its subalbums with it.
+	 */
+	public boolean reachesDown() {
+		return type == Type.CLIPS_REMOVED || type == Type.ALBUM_REMOVED;
+	}
+
+	/**
+	 * Returns one change with the ids of both, if other is the same kind of
+	 * change to the same album, or null.
+	 */
+	public AlbumChange merge(AlbumChange other) {
+		if (other.type != type || other.album != album || other.scope != scope)
+			return null;
+		if (type == Type.ALBUM_RENAMED)
+			return other;
+		int[] merged = Arrays.copyOf(ids, ids.length + other.ids.length);
+		System.arraycopy(other.ids, 0, merged, ids.length, other.ids.length);
+		return new AlbumChange(type, album, scope, merged);
+	}
+
+	public String toString() {
+		return type + " " + album.getAlbumName() + " " + ids.length;
+	}
+
+	private static int[] clipIds(List<SoundClip> clips) {
+		int[] ids = new int[clips.size()];
+		for (int i = 0; i < ids.length; ++i)
+			ids[i] = clips.get(i).getId();
+		return ids;
+	}
+}
@@ -0,0 +1,617 @@
+package model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * AlbumJournal keeps an album hierarchy on disk as a snapshot plus a journal
+ * of the changes made since, so that saving a change costs as much as the
+ * change and not the whole library.
+ *
+ * Changes are appended to a buffer in memory. A thread of the journal's own
+ * gathers what came in during COMMIT_MILLIS, writes it to the journal file
+ * and forces it to disk in one go (group commit), so a crash loses at most
+ * that window. Each record is framed by its length and a CRC32; a record torn
+ * by a crash is recognized and cut off when the journal is replayed.
+ *
+ * The files are kept in a folder of their own and numbered by generation:
+ *   snapshot-N.ahl  the hierarchy in AHL form, as it was when journal N started
+ *   journal-N.log   the changes made after that
+ * compact starts a new generation: the commit thread writes the snapshot
+ * and moves it into place before it opens the new journal, so no record of
+ * the new generation is on disk before the state it applies to. The older
+ * files are deleted after. restore loads the newest snapshot and replays the
+ * journals from its generation on.
+ *
+ * In the records, albums are identified by the positions of the subalbums on
+ * the way down from the root, and clips by their file path. Changes must be
+ * appended right after they are made, by the thread that makes them, so the
+ * positions are those the replay will see. Changes to albums that are not in
+ * the journal's hierarchy, e.g. one that was removed, are left out.
+ */
+public class AlbumJournal implements ClipEdit.Log, Closeable {
+
+	// How long the commit thread waits for more records before it writes them.
+	public static final int COMMIT_MILLIS = 100;
+	// Compact once the journal is larger than this and than the snapshot.
+	private static final long MIN_COMPACT_BYTES = 4 << 20;
+	private static final int MAX_RECORD_BYTES = 1 << 30;
+
+	private static final int ALBUM_ADDED = 1;
+	private static final int ALBUM_REMOVED = 2;
+	private static final int ALBUM_RENAMED = 3;
+	private static final int SONGS_ADDED = 4;
+	private static final int SONGS_REMOVED = 5;
+	private static final int SONGS_PURGED = 6;
+
+	// Asks the commit thread to go on with the journal of the next generation.
+	private static class Rotation {
+		final long generation;
+		final byte[] snapshot;
+
+		Rotation(long generation, byte[] snapshot) {
+			this.generation = generation;
+			this.snapshot = snapshot;
+		}
+	}
+
+	private final Path folder;
+	private Album root; // Of the hierarchy being journaled, set by restore and compact
+
+	// Guarded by queue: records and rotations not written yet, in order.
+	private final Deque<Object> queue = new ArrayDeque<>();
+	private boolean closed;
+	private boolean writing; // The commit thread has taken a batch from the queue
+	private IOException failure; // The last write that failed, if any
+
+	private final Thread committer;
+	private FileChannel channel; // Used by the commit thread once started
+	private volatile long generation;
+	private volatile long journalBytes; // Appended since the last rotation
+	private volatile long snapshotBytes;
+	private volatile long commits;
+	private volatile long records;
+
+	private AlbumJournal(Path folder) {
+		this.folder = folder;
+		committer = new Thread(this::commitLoop, "Album journal");
+		committer.setDaemon(true);
+	}
+
+	/**
+	 * The folder the journal of a library is kept in by default, below the user's home folder.
+	 */
+	public static Path defaultLocation(String libraryPath) {
+		String key = Integer.toHexString(Paths.get(libraryPath).toAbsolutePath().normalize().toString().hashCode());
+		return Paths.get(System.getProperty("user.home"), ".musicorganizer", "albums-" + key);
+	}
+
+	/**
+	 * Open the journal in folder, creating the folder if needed. Call restore
+	 * next, before anything is appended.
+	 */
+	public static AlbumJournal open(Path folder) throws IOException {
+		Files.createDirectories(folder);
+		return new AlbumJournal(folder);
+	}
+
+	/**
+	 * Load the newest snapshot and replay the journal on top of it. Returns the
+	 * hierarchy, or an empty album called rootName if nothing was saved yet.
+	 * A torn record at the end of the journal is cut off.
+	 */
+	public Album restore(String rootName) throws IOException {
+		TreeMap<Long, Path> snapshots = new TreeMap<>();
+		TreeMap<Long, Path> journals = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+			for (Path f : files) {
+				String name = f.getFileName().toString();
+				if (name.startsWith("snapshot-") && name.endsWith(".ahl"))
+					snapshots.put(parseGeneration(name, "snapshot-", ".ahl"), f);
+				else if (name.startsWith("journal-") && name.endsWith(".log"))
+					journals.put(parseGeneration(name, "journal-", ".log"), f);
+			}
+		}
+		snapshots.remove(-1L);
+		journals.remove(-1L);
+
+		Album restored = Album.createAlbum(rootName);
+		long start = 0;
+		if (!snapshots.isEmpty()) {
+			start = snapshots.lastKey();
+			Path snapshot = snapshots.get(start);
+			AlbumStore.load(snapshot, restored, null);
+			snapshotBytes = Files.size(snapshot);
+		}
+		root = restored;
+		generation = journals.isEmpty() ? start : Math.max(start, journals.lastKey());
+		for (Path journal : journals.tailMap(start).values())
+			records += replay(journal);
+
+		channel = FileChannel.open(journalPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		journalBytes = channel.size();
+		committer.start();
+		deleteBefore(start);
+		return restored;
+	}
+
+	public void albumAdded(Album parent, Album album) {
+		int[] path = pathOf(parent);
+		if (path == null)
+			return;
+		ByteArrayOutputStream out = record(ALBUM_ADDED, path);
+		try {
+			AlbumSerializer.writeVarint(out, parent.getSubAlbums().indexOf(album));
+			AlbumSerializer.write(out, album);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Not thrown by a ByteArrayOutputStream.
+		}
+		append(out);
+	}
+
+	/**
+	 * The album that was at index among parent's subalbums was removed.
+	 */
+	public void albumRemoved(Album parent, int index) {
+		int[] path = pathOf(parent);
+		if (path == null)
+			return;
+		ByteArrayOutputStream out = record(ALBUM_REMOVED, path);
+		writeVarint(out, index);
+		append(out);
+	}
+
+	public void albumRenamed(Album album) {
+		int[] path = pathOf(album);
+		if (path == null)
+			return;
+		ByteArrayOutputStream out = record(ALBUM_RENAMED, path);
+		writeString(out, album.getAlbumName());
+		append(out);
+	}
+
+	/**
+	 * songs were added to album with addSongs.
+	 */
+	@Override
+	public void songsAdded(Album album, Collection<SoundClip> songs) {
+		appendSongs(SONGS_ADDED, album, songs);
+	}
+
+	/**
+	 * songs were removed from album with removeSongs.
+	 */
+	@Override
+	public void songsRemoved(Album album, Collection<SoundClip> songs) {
+		appendSongs(SONGS_REMOVED, album, songs);
+	}
+
+	/**
+	 * songs were purged from album with purgeSongs.
+	 */
+	@Override
+	public void songsPurged(Album album, Collection<SoundClip> songs) {
+		appendSongs(SONGS_PURGED, album, songs);
+	}
+
+	/**
+	 * True once the journal has grown larger than a new snapshot would be.
+	 */
+	public boolean needsCompaction() {
+		return journalBytes > Math.max(MIN_COMPACT_BYTES, snapshotBytes);
+	}
+
+	/**
+	 * Write root as the new snapshot, and journal the changes after it from
+	 * scratch. Also to journal another hierarchy than before, e.g. one that
+	 * was opened from a file. root is encoded right away, by the calling
+	 * thread, which must be the one changing it; the files are written by
+	 * the commit thread.
+	 */
+	public void compact(Album root) throws IOException {
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		AlbumSerializer.write(snapshot, root);
+		rotate(root, snapshot.toByteArray());
+	}
+
+	/**
+	 * Like compact(root), for a root that was just opened from file and only
+	 * had its smart albums activated since, which restoring does again. The
+	 * file is copied as the snapshot instead of encoding root, which would
+	 * decode all of a lazily opened hierarchy.
+	 */
+	public void compact(Album root, Path file) throws IOException {
+		rotate(root, Files.readAllBytes(file));
+	}
+
+	private void rotate(Album root, byte[] snapshot) throws IOException {
+		this.root = root;
+		synchronized (queue) {
+			if (closed)
+				throw new IOException("Album journal is closed");
+			queue.add(new Rotation(++generation, snapshot));
+			journalBytes = 0;
+			snapshotBytes = snapshot.length;
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until everything appended so far is on disk. Throws the error of
+	 * the last write, if it failed.
+	 */
+	public void flush() throws IOException {
+		synchronized (queue) {
+			while ((!queue.isEmpty() || writing) && committer.isAlive()) {
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while flushing the album journal", e);
+				}
+			}
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 * Write what is left and stop. Appending after this has no effect.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (queue) {
+			closed = true;
+			queue.notifyAll();
+		}
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (channel != null)
+			channel.close();
+		synchronized (queue) {
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	public String toString() {
+		return String.format("generation %d, %,d records, %,d bytes since the %,d byte snapshot, %,d commits",
+				generation, records, journalBytes, snapshotBytes, commits);
+	}
+
+	private void appendSongs(int type, Album album, Collection<SoundClip> songs) {
+		if (songs.isEmpty())
+			return;
+		int[] path = pathOf(album);
+		if (path == null)
+			return;
+		ByteArrayOutputStream out = record(type, path);
+		writeVarint(out, songs.size());
+		for (SoundClip song : songs)
+			writeString(out, song.getFile().getPath());
+		append(out);
+	}
+
+	// Start a record: its type and the album it is about.
+	private static ByteArrayOutputStream record(int type, int[] path) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(type);
+		writeVarint(out, path.length);
+		for (int i : path)
+			writeVarint(out, i);
+		return out;
+	}
+
+	// Frame a record as length, CRC32 and payload, and queue it.
+	private void append(ByteArrayOutputStream payload) {
+		byte[] bytes = payload.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		ByteBuffer frame = ByteBuffer.allocate(8 + bytes.length);
+		frame.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+		synchronized (queue) {
+			if (closed)
+				return;
+			queue.add(frame.array());
+			journalBytes += frame.capacity();
+			++records;
+			queue.notifyAll();
+		}
+	}
+
+	// The positions from the root down to album, or null if album is not in the hierarchy.
+	private int[] pathOf(Album album) {
+		int depth = 0;
+		Album top = album;
+		for (; top.getParentAlbum() != null; top = top.getParentAlbum())
+			++depth;
+		if (top != root)
+			return null;
+		int[] path = new int[depth];
+		Album a = album;
+		for (int i = depth - 1; i >= 0; --i) {
+			Album parent = a.getParentAlbum();
+			path[i] = parent.getSubAlbums().indexOf(a);
+			a = parent;
+		}
+		return path;
+	}
+
+	// Write batches of records as they come in, and rotate to new generations when asked.
+	private void commitLoop() {
+		while (true) {
+			List<Object> batch;
+			synchronized (queue) {
+				while (queue.isEmpty() && !closed)
+					waitOn(queue);
+				if (queue.isEmpty())
+					return;
+				if (!closed) {
+					// Let the records of the next few moments join this write.
+					long until = System.currentTimeMillis() + COMMIT_MILLIS;
+					for (long left = COMMIT_MILLIS; left > 0 && !closed; left = until - System.currentTimeMillis())
+						waitOn(queue, left);
+				}
+				batch = new ArrayList<>(queue);
+				queue.clear();
+				writing = true;
+			}
+			try {
+				write(batch);
+				synchronized (queue) {
+					failure = null;
+				}
+			} catch (IOException e) {
+				synchronized (queue) {
+					failure = e;
+				}
+				System.out.println("Could not write album journal: " + e.getMessage());
+			} finally {
+				synchronized (queue) {
+					writing = false;
+					queue.notifyAll();
+				}
+			}
+		}
+	}
+
+	// After a snapshot failed to be written there is no journal to append to,
+	// and records are dropped until a later rotation succeeds.
+	private void write(List<Object> batch) throws IOException {
+		List<ByteBuffer> pending = new ArrayList<>();
+		IOException error = null;
+		for (Object item : batch) {
+			if (item instanceof byte[]) {
+				if (channel != null)
+					pending.add(ByteBuffer.wrap((byte[]) item));
+				continue;
+			}
+			// The records before the rotation belong to the old journal.
+			if (channel != null) {
+				writeFully(pending);
+				channel.force(false);
+				channel.close();
+				channel = null;
+			}
+			pending.clear();
+			Rotation rotation = (Rotation) item;
+			try {
+				writeSnapshot(rotation);
+				channel = FileChannel.open(journalPath(rotation.generation), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				deleteBefore(rotation.generation);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		if (channel != null) {
+			writeFully(pending);
+			channel.force(false);
+			++commits;
+		} else if (error == null) {
+			error = new IOException("No journal since the last snapshot failed, changes are not saved");
+		}
+		if (error != null)
+			throw error;
+	}
+
+	private void writeFully(List<ByteBuffer> buffers) throws IOException {
+		ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+		long left = 0;
+		for (ByteBuffer b : array)
+			left += b.remaining();
+		while (left > 0)
+			left -= channel.write(array);
+		buffers.clear();
+	}
+
+	// Put the snapshot of a rotation in place, on disk.
+	private void writeSnapshot(Rotation rotation) throws IOException {
+		Path file = folder.resolve("snapshot-" + rotation.generation + ".ahl");
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer b = ByteBuffer.wrap(rotation.snapshot);
+			while (b.hasRemaining())
+				out.write(b);
+			out.force(false);
+		} catch (IOException e) {
+			IOException error = new IOException("Could not write album snapshot " + file + ": " + e.getMessage(), e);
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException d) {
+				error.addSuppressed(d);
+			}
+			throw error;
+		}
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	// Delete the snapshots and journals older than generation.
+	private void deleteBefore(long generation) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+			for (Path f : files) {
+				String name = f.getFileName().toString();
+				long g = name.startsWith("snapshot-") ? parseGeneration(name, "snapshot-", ".ahl")
+						: parseGeneration(name, "journal-", ".log");
+				if (g >= 0 && g < generation)
+					Files.deleteIfExists(f);
+			}
+		}
+	}
+
+	// Apply the records in a journal file to root, and cut off a torn one at the end.
+	private long replay(Path journal) throws IOException {
+		long count = 0;
+		try (FileChannel ch = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (ch.size() > Integer.MAX_VALUE)
+				throw new IOException("Album journal too large: " + journal);
+			ByteBuffer b = ByteBuffer.allocate((int) ch.size());
+			while (b.hasRemaining() && ch.read(b) >= 0)
+				;
+			b.flip();
+			while (b.remaining() >= 8) {
+				final int start = b.position();
+				final int length = b.getInt();
+				final int crc = b.getInt();
+				if (length < 0 || length > MAX_RECORD_BYTES || length > b.remaining()) {
+					b.position(start);
+					break;
+				}
+				byte[] payload = new byte[length];
+				b.get(payload);
+				CRC32 check = new CRC32();
+				check.update(payload);
+				if ((int) check.getValue() != crc) {
+					b.position(start);
+					break;
+				}
+				try {
+					apply(payload);
+				} catch (IOException | RuntimeException e) {
+					throw new IOException("Corrupt album journal " + journal + ": record " + count, e);
+				}
+				++count;
+			}
+			if (b.position() < ch.size()) {
+				System.out.println("Album journal " + journal + ": cut off " + (ch.size() - b.position()) + " bytes of a torn record");
+				ch.truncate(b.position());
+			}
+		}
+		return count;
+	}
+
+	private void apply(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		final int type = in.read();
+		Album album = root;
+		for (int depth = AlbumSerializer.readVarint(in); depth > 0; --depth)
+			album = album.getSubAlbums().get(AlbumSerializer.readVarint(in));
+		switch (type) {
+		case ALBUM_ADDED: {
+			final int index = AlbumSerializer.readVarint(in);
+			Album added = Album.createAlbum("");
+			AlbumSerializer.read(in, added);
+			album.addSubAlbum(added, index);
+			break;
+		}
+		case ALBUM_REMOVED:
+			album.removeSubAlbum(album.getSubAlbums().get(AlbumSerializer.readVarint(in)));
+			break;
+		case ALBUM_RENAMED:
+			album.setAlbumName(AlbumSerializer.readString(in));
+			break;
+		case SONGS_ADDED:
+			album.addSongs(readSongs(in));
+			break;
+		case SONGS_REMOVED:
+			album.removeSongs(readSongs(in));
+			break;
+		case SONGS_PURGED:
+			album.purgeSongs(readSongs(in));
+			break;
+		default:
+			throw new IOException("Unknown record type " + type);
+		}
+	}
+
+	private static List<SoundClip> readSongs(DataInputStream in) throws IOException {
+		final int count = AlbumSerializer.readVarint(in);
+		List<SoundClip> songs = new ArrayList<>(Math.min(count, 1 << 16));
+		for (int i = 0; i < count; ++i)
+			songs.add(new SoundClip(new File(AlbumSerializer.readString(in))));
+		return songs;
+	}
+
+	private Path journalPath(long generation) {
+		return folder.resolve("journal-" + generation + ".log");
+	}
+
+	// The generation in a file name, or -1 if it is not one of ours.
+	private static long parseGeneration(String name, String prefix, String suffix) {
+		if (!name.startsWith(prefix) || !name.endsWith(suffix))
+			return -1;
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		try {
+			AlbumSerializer.writeVarint(out, value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String text) {
+		try {
+			AlbumSerializer.writeString(out, text);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void waitOn(Object lock) {
+		waitOn(lock, 0);
+	}
+
+	private static void waitOn(Object lock, long millis) {
+		try {
+			lock.wait(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package model;
+
+import java.util.List;
+
+/**
+ * AlbumListener hears about the songs of an album changing. Register it with
+ * Album.addListener.
+ * It is called on the thread that changed the album, once per album and
+ * operation, with the songs that were really added or removed. The lists must
+ * not be changed.
+ */
+public interface AlbumListener {
+
+	default void songsAdded(Album album, List<SoundClip> songs) {
+	}
+
+	default void songsRemoved(Album album, List<SoundClip> songs) {
+	}
+}
@@ -0,0 +1,340 @@
+package model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AlbumSerializer reads and writes album hierarchies in the AHL format.
+ *
+ * AHL version 4 layout, all counts and indices are unsigned varints and all
+ * strings are a varint byte length followed by UTF-8 bytes:
+ *   header:  magic 0x89 'A' 'H' 'L', version
+ *   folders: count, then each folder path once
+ *   clips:   count, then for each clip its folder index and file name
+ *   albums:  count, then one record per album in pre-order, the root first:
+ *            name, flags, [rule,] subalbum count, subalbum indices, clip count, clip ids
+ *   index:   the byte offset of each album record, as 8 byte big-endian longs
+ *   trailer: the byte offset of the index, as an 8 byte big-endian long
+ * Each clip is stored once and albums refer to it by id, so file paths are
+ * never repeated. Flag FLAG_SMART marks a smart album, whose ClipRule text
+ * follows the flags; its clips are stored like those of any album. The index lets MappedHierarchy decode single albums on
+ * demand, while read() simply goes through the records in order.
+ *
+ * Version 3 files are laid out the same, but define no flags; readers of
+ * version 3 skip the flags and would take a rule for the subalbum count,
+ * which is why smart albums got a new version. Flags a reader does not know
+ * make the file count as corrupt.
+ * Version 2 files (albums nested instead of indexed, clips before subalbums)
+ * and version 1 files (no header, one byte lengths and counts, platform
+ * charset) are still read.
+ */
+public class AlbumSerializer {
+
+	static final byte[] MAGIC = { (byte) 0x89, 'A', 'H', 'L' };
+	static final int VERSION = 4;
+	// The first version with an album index, read by readV3 and MappedHierarchy.
+	static final int INDEXED_VERSION = 3;
+	static final int FLAG_SMART = 1;
+	private static final int MAX_STRING_BYTES = 1 << 20;
+
+	/**
+	 * Write root and everything below it to out in the current AHL version.
+	 */
+	public static void write(OutputStream stream, Album root) throws IOException {
+		// Number every clip in the hierarchy and every folder they live in.
+		Map<SoundClip, Integer> clipIds = new LinkedHashMap<>();
+		collectClips(root, clipIds);
+		Map<String, Integer> folderIds = new LinkedHashMap<>();
+		for (SoundClip clip : clipIds.keySet())
+			folderIds.putIfAbsent(folderOf(clip), folderIds.size());
+
+		CountingOutputStream out = new CountingOutputStream(stream);
+		out.write(MAGIC);
+		writeVarint(out, VERSION);
+
+		writeVarint(out, folderIds.size());
+		for (String folder : folderIds.keySet())
+			writeString(out, folder);
+
+		writeVarint(out, clipIds.size());
+		for (SoundClip clip : clipIds.keySet()) {
+			writeVarint(out, folderIds.get(folderOf(clip)));
+			writeString(out, clip.toString());
+		}
+
+		// Album records, remembering where each one starts.
+		List<Album> albums = new ArrayList<>();
+		collectAlbums(root, albums);
+		Map<Album, Integer> albumIds = new IdentityHashMap<>();
+		for (Album a : albums)
+			albumIds.put(a, albumIds.size());
+		writeVarint(out, albums.size());
+		long[] offsets = new long[albums.size()];
+		for (int i = 0; i < offsets.length; ++i) {
+			offsets[i] = out.count;
+			writeAlbum(out, albums.get(i), albumIds, clipIds);
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		final long indexStart = out.count;
+		for (long offset : offsets)
+			data.writeLong(offset);
+		data.writeLong(indexStart);
+		data.flush();
+	}
+
+	/**
+	 * Read a hierarchy from in into root, which must be empty.
+	 * Throws an IOException if the data is truncated or corrupt.
+	 */
+	public static void read(InputStream in, Album root) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in, MAGIC.length);
+		DataInputStream data = new DataInputStream(pushback);
+		byte[] header = new byte[MAGIC.length];
+		int n = data.readNBytes(header, 0, header.length);
+		if (n == MAGIC.length && Arrays.equals(header, MAGIC)) {
+			final int version = readVarint(data);
+			if (version == 2)
+				readV2(data, root);
+			else if (version >= INDEXED_VERSION && version <= VERSION)
+				readV3(data, root);
+			else
+				throw new IOException("Unsupported AHL version " + version);
+		} else {
+			if (n > 0)
+				pushback.unread(header, 0, n);
+			readV1(data, root);
+		}
+	}
+
+	private static void collectClips(Album album, Map<SoundClip, Integer> clipIds) {
+		for (SoundClip clip : album.getSongs())
+			clipIds.putIfAbsent(clip, clipIds.size());
+		for (Album a : album.getSubAlbums())
+			collectClips(a, clipIds);
+	}
+
+	private static String folderOf(SoundClip clip) {
+		SoundClipRegistry registry = SoundClipRegistry.getDefault();
+		return registry.getFolder(registry.getFolderId(clip.getId()));
+	}
+
+	// All albums below and including album, in pre-order.
+	private static void collectAlbums(Album album, List<Album> albums) {
+		albums.add(album);
+		for (Album a : album.getSubAlbums())
+			collectAlbums(a, albums);
+	}
+
+	private static void writeAlbum(OutputStream out, Album album, Map<Album, Integer> albumIds,
+			Map<SoundClip, Integer> clipIds) throws IOException {
+		writeString(out, album.getAlbumName());
+		if (album.isSmart()) {
+			writeVarint(out, FLAG_SMART);
+			writeString(out, album.getRule().toString());
+		} else {
+			writeVarint(out, 0);
+		}
+
+		List<Album> subAlbums = album.getSubAlbums();
+		writeVarint(out, subAlbums.size());
+		for (Album a : subAlbums)
+			writeVarint(out, albumIds.get(a));
+
+		List<SoundClip> songs = album.getSongs();
+		writeVarint(out, songs.size());
+		for (SoundClip clip : songs)
+			writeVarint(out, clipIds.get(clip));
+	}
+
+	// Folder and clip tables, shared by version 2 and 3.
+	private static SoundClip[] readClips(DataInputStream in) throws IOException {
+		String[] folders = new String[readVarint(in)];
+		for (int i = 0; i < folders.length; ++i)
+			folders[i] = readString(in);
+
+		SoundClip[] clips = new SoundClip[readVarint(in)];
+		for (int i = 0; i < clips.length; ++i) {
+			String folder = folders[readIndex(in, folders.length)];
+			clips[i] = makeClip(folder, readString(in));
+		}
+		return clips;
+	}
+
+	static SoundClip makeClip(String folder, String name) {
+		return new SoundClip(folder.isEmpty() ? new File(name) : new File(folder, name));
+	}
+
+	// Version 3: album records in pre-order. A record's subalbums are created
+	// empty when it is read and filled in when their own records come along;
+	// parents always come first, so songs keep their order.
+	private static void readV3(DataInputStream in, Album root) throws IOException {
+		SoundClip[] clips = readClips(in);
+		Album[] albums = new Album[readVarint(in)];
+		if (albums.length == 0)
+			throw new IOException("Corrupt AHL file: no root album");
+		albums[0] = root;
+		for (int i = 0; i < albums.length; ++i) {
+			Album album = albums[i];
+			if (album == null)
+				throw new IOException("Corrupt AHL file: album " + i + " has no parent");
+			album.setAlbumName(readString(in));
+			ClipRule rule = readRule(in, readVarint(in));
+
+			final int numSubs = readVarint(in);
+			for (int j = 0; j < numSubs; ++j) {
+				final int sub = readIndex(in, albums.length);
+				if (sub <= i || albums[sub] != null)
+					throw new IOException("Corrupt AHL file: bad subalbum index " + sub);
+				albums[sub] = Album.createSubAlbum("", album);
+			}
+
+			final int numClips = readVarint(in);
+			List<SoundClip> songs = new ArrayList<>(Math.min(numClips, clips.length));
+			for (int j = 0; j < numClips; ++j)
+				songs.add(clips[readIndex(in, clips.length)]);
+			album.addSongs(songs);
+			album.setRule(rule);
+		}
+		// The offset index and trailer are only needed for random access.
+	}
+
+	// The rule of a smart album, or null if flags do not mark one.
+	static ClipRule readRule(DataInputStream in, int flags) throws IOException {
+		if ((flags & ~FLAG_SMART) != 0)
+			throw new IOException("Corrupt AHL file: unknown album flags " + flags);
+		if ((flags & FLAG_SMART) == 0)
+			return null;
+		String text = readString(in);
+		try {
+			return ClipRule.parse(text);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt AHL file: bad rule '" + text + "'", e);
+		}
+	}
+
+	private static void readV2(DataInputStream in, Album root) throws IOException {
+		readAlbumV2(in, root, readClips(in));
+	}
+
+	// Version 2: albums nested, each written as
+	// name, flags, clip count, clip ids, subalbum count, subalbums.
+	private static void readAlbumV2(DataInputStream in, Album album, SoundClip[] clips) throws IOException {
+		album.setAlbumName(readString(in));
+		readVarint(in); // Flags, none defined yet.
+
+		final int numClips = readVarint(in);
+		List<SoundClip> songs = new ArrayList<>(Math.min(numClips, clips.length));
+		for (int i = 0; i < numClips; ++i)
+			songs.add(clips[readIndex(in, clips.length)]);
+		album.addSongs(songs);
+
+		final int numSubs = readVarint(in);
+		for (int i = 0; i < numSubs; ++i)
+			readAlbumV2(in, Album.createSubAlbum("", album), clips);
+	}
+
+	// Version 1: name, subalbums, then clips as full paths, with one byte
+	// lengths and counts and strings in the platform charset.
+	private static void readV1(DataInputStream in, Album album) throws IOException {
+		album.setAlbumName(readStringV1(in));
+
+		final int numSubs = in.readUnsignedByte();
+		for (int i = 0; i < numSubs; ++i)
+			readV1(in, Album.createSubAlbum("", album));
+
+		final int numClips = in.readUnsignedByte();
+		List<SoundClip> songs = new ArrayList<>(numClips);
+		for (int i = 0; i < numClips; ++i)
+			songs.add(new SoundClip(new File(readStringV1(in))));
+		album.addSongs(songs);
+	}
+
+	private static String readStringV1(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedByte()];
+		in.readFully(bytes);
+		return new String(bytes);
+	}
+
+	static void writeVarint(OutputStream out, int value) throws IOException {
+		assert value >= 0;
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException("Truncated AHL file");
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0)
+					break;
+				return value;
+			}
+		}
+		throw new IOException("Corrupt AHL file: bad length");
+	}
+
+	static int readIndex(InputStream in, int size) throws IOException {
+		final int index = readVarint(in);
+		if (index >= size)
+			throw new IOException("Corrupt AHL file: index " + index + " out of range");
+		return index;
+	}
+
+	static void writeString(OutputStream out, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		final int len = readVarint(in);
+		if (len > MAX_STRING_BYTES)
+			throw new IOException("Corrupt AHL file: string of " + len + " bytes");
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Keeps track of how many bytes went through, for the album offsets.
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * AlbumStore saves and loads album hierarchies as AHL files.
+ * Saving goes through a FileChannel with a large direct buffer into a
+ * temporary file, which then atomically replaces the target, so a crash
+ * never leaves a half written hierarchy behind. Loading memory maps the file.
+ * Both report their progress and throughput.
+ */
+public class AlbumStore {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Receives progress while a hierarchy is saved or loaded.
+	 * total is -1 when it is not known up front, as when saving.
+	 * Called from the thread doing the work.
+	 */
+	public interface ProgressListener {
+		void progress(long done, long total);
+	}
+
+	/**
+	 * How much was transferred, and how fast.
+	 */
+	public static class Result {
+		private final long bytes;
+		private final long nanos;
+
+		Result(long bytes, long nanos) {
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getElapsedMillis() {
+			return nanos / 1_000_000;
+		}
+
+		public double getBytesPerSecond() {
+			return nanos > 0 ? bytes * 1e9 / nanos : 0;
+		}
+
+		public String toString() {
+			return String.format("%,d bytes in %d ms, %.1f MB/s", bytes, getElapsedMillis(), getBytesPerSecond() / 1e6);
+		}
+	}
+
+	/**
+	 * Save root and everything below it to file, replacing it atomically.
+	 */
+	public static Result save(Album root, Path file, ProgressListener progress) throws IOException {
+		final long start = System.nanoTime();
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		long bytes;
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ChannelOutputStream out = new ChannelOutputStream(channel, progress);
+			AlbumSerializer.write(out, root);
+			out.flush();
+			channel.force(false);
+			bytes = out.written;
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return new Result(bytes, System.nanoTime() - start);
+	}
+
+	/**
+	 * Load the hierarchy in file into root, replacing what root held.
+	 */
+	public static Result load(Path file, Album root, ProgressListener progress) throws IOException {
+		final long start = System.nanoTime();
+		long size;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("AHL file too large to map: " + size + " bytes");
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			root.serializeIn(new BufferInputStream(buffer, progress));
+		}
+		if (progress != null)
+			progress.progress(size, size);
+		return new Result(size, System.nanoTime() - start);
+	}
+
+	/**
+	 * Open the hierarchy in file without decoding it: albums are read from the
+	 * memory mapped file as they are used, so even huge hierarchies open at once.
+	 * Files in older AHL versions have no album index and are loaded in full.
+	 */
+	public static Album open(Path file) throws IOException {
+		if (isIndexed(file))
+			return MappedHierarchy.open(file);
+		Album root = Album.createAlbum("");
+		load(file, root, null);
+		return root;
+	}
+
+	// Returns true if file starts with the header of an AHL version that has an album index.
+	private static boolean isIndexed(Path file) throws IOException {
+		byte[] header = new byte[AlbumSerializer.MAGIC.length + 1];
+		try (InputStream in = Files.newInputStream(file)) {
+			if (in.readNBytes(header, 0, header.length) != header.length)
+				return false;
+		}
+		return Arrays.equals(Arrays.copyOf(header, AlbumSerializer.MAGIC.length), AlbumSerializer.MAGIC)
+				&& header[AlbumSerializer.MAGIC.length] >= AlbumSerializer.INDEXED_VERSION
+				&& header[AlbumSerializer.MAGIC.length] <= AlbumSerializer.VERSION;
+	}
+
+	// Collects writes in a direct buffer and hands it to the channel when full.
+	private static class ChannelOutputStream extends OutputStream {
+		private final FileChannel channel;
+		private final ProgressListener progress;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		long written = 0;
+
+		ChannelOutputStream(FileChannel channel, ProgressListener progress) {
+			this.channel = channel;
+			this.progress = progress;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buffer.hasRemaining())
+				drain();
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!buffer.hasRemaining())
+					drain();
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain();
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				written += channel.write(buffer);
+			buffer.clear();
+			if (progress != null)
+				progress.progress(written, -1);
+		}
+	}
+
+	// Reads from a (mapped) buffer, reporting progress every BUFFER_SIZE bytes.
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		private final ProgressListener progress;
+		private long nextReport = BUFFER_SIZE;
+
+		BufferInputStream(ByteBuffer buffer, ProgressListener progress) {
+			this.buffer = buffer;
+			this.progress = progress;
+		}
+
+		@Override
+		public int read() {
+			if (!buffer.hasRemaining())
+				return -1;
+			int b = buffer.get() & 0xFF;
+			report();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			report();
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		private void report() {
+			if (progress != null && buffer.position() >= nextReport) {
+				progress.progress(buffer.position(), buffer.limit());
+				nextReport = buffer.position() + BUFFER_SIZE;
+			}
+		}
+	}
+}
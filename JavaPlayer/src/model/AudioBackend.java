@@ -0,0 +1,52 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * AudioBackend is what SoundClipPlayer plays clips with.
+ * MediaAudioBackend uses JavaFX media, PcmAudioBackend decodes and mixes the
+ * WAV data itself.
+ */
+public interface AudioBackend {
+
+	/**
+	 * One clip opened for playing. Starts out stopped.
+	 */
+	interface Voice {
+
+		/**
+		 * Call onEnd once, when the clip ends or fails. The backend may call it
+		 * on any thread.
+		 */
+		void setOnEnd(Runnable onEnd);
+
+		void play();
+
+		void pause();
+
+		// Stop right away, without fading out.
+		void stop();
+
+		// What went wrong, or null.
+		Throwable getError();
+
+		/**
+		 * Let go of the voice. A voice that is fading out is allowed to finish.
+		 * released runs once the backend no longer reads the data the voice was
+		 * opened with.
+		 */
+		void dispose(Runnable released);
+	}
+
+	/**
+	 * Open clip. data is the whole clip file if it was read already, or null.
+	 * Must not be changed or reused until the voice is released.
+	 */
+	Voice open(SoundClip clip, ByteBuffer data) throws IOException;
+
+	/**
+	 * Stop all voices and release the audio output.
+	 */
+	void close();
+}
@@ -0,0 +1,21 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * AudioSink is where PcmAudioBackend sends the audio it mixed: 16 bit signed
+ * little endian PCM, channels interleaved.
+ */
+public interface AudioSink {
+
+	void open(int sampleRate, int channels) throws IOException;
+
+	/**
+	 * Write the remaining bytes of pcm, waiting if the output is full.
+	 * pcm is a heap buffer.
+	 */
+	void write(ByteBuffer pcm) throws IOException;
+
+	void close();
+}
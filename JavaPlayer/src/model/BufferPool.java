@@ -0,0 +1,88 @@
+package model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BufferPool hands out direct ByteBuffers for clip data and takes them back
+ * for reuse, while keeping the bytes handed out under a fixed cap.
+ *
+ * Buffers come in power of two sizes so a released buffer fits the next clip
+ * of about the same length. acquire never waits: if the cap would be exceeded
+ * it returns null and the caller goes without.
+ */
+public class BufferPool {
+
+	private static final int MIN_BUFFER = 64 * 1024;
+
+	private final long capacity;
+	private long used; // Bytes of the buffers handed out and kept for reuse.
+	private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+
+	public BufferPool(long capacityBytes) {
+		assert capacityBytes >= 0;
+		capacity = capacityBytes;
+	}
+
+	/**
+	 * Returns a cleared buffer with room for at least size bytes and its limit
+	 * set to size, or null if that would take the pool over its cap.
+	 */
+	public synchronized ByteBuffer acquire(int size) {
+		assert size >= 0;
+		int bucket = bucketFor(size);
+		if (bucket < 0)
+			return null;
+		ArrayDeque<ByteBuffer> buffers = free.get(bucket);
+		ByteBuffer buffer = buffers != null ? buffers.poll() : null;
+		if (buffer == null)
+		{
+			// Make room by dropping spare buffers of other sizes.
+			if (used + bucket > capacity)
+				trimFree(used + bucket - capacity);
+			if (used + bucket > capacity)
+				return null;
+			buffer = ByteBuffer.allocateDirect(bucket);
+			used += bucket;
+		}
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer from acquire back to the pool.
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		free.computeIfAbsent(buffer.capacity(), k -> new ArrayDeque<>()).push(buffer);
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	// Bytes held by the pool, both handed out and spare.
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	private int bucketFor(int size) {
+		int bucket = Math.max(MIN_BUFFER, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+		return bucket <= 0 || bucket > capacity ? -1 : bucket;
+	}
+
+	private void trimFree(long bytes) {
+		for (ArrayDeque<ByteBuffer> buffers : free.values())
+		{
+			while (bytes > 0 && !buffers.isEmpty())
+			{
+				int size = buffers.pop().capacity();
+				used -= size;
+				bytes -= size;
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * ClipEdit adds clips to or removes them from an album, and remembers exactly
+ * which albums gained or lost which clips, so that it can be undone and
+ * redone. Only clip ids are kept, one int array per album that changed.
+ *
+ * Clips whose files were deleted in the meantime are no longer in the root
+ * album; undo and redo leave them out rather than bring them back.
+ */
+public class ClipEdit {
+
+	/**
+	 * Told of each change undo and redo make to an album, with the songs
+	 * passed to the album's method.
+	 */
+	public interface Log {
+		void songsAdded(Album album, Collection<SoundClip> songs);
+
+		void songsRemoved(Album album, Collection<SoundClip> songs);
+
+		void songsPurged(Album album, Collection<SoundClip> songs);
+	}
+
+	private final Album target;
+	private final boolean adding;
+	// The albums that changed, parents first, and the ids each gained or lost.
+	private final List<Album> albums = new ArrayList<>();
+	private final List<int[]> ids = new ArrayList<>();
+	private List<SoundClip> changed; // By the last add, remove, undo or redo
+
+	private ClipEdit(Album target, boolean adding) {
+		this.target = target;
+		this.adding = adding;
+	}
+
+	/**
+	 * Add songs to target, as Album.addSongs does.
+	 */
+	public static ClipEdit add(Album target, Collection<SoundClip> songs) {
+		ClipEdit edit = new ClipEdit(target, true);
+		// The parents of an album hold all of its songs, so each parent can only
+		// lack songs its child lacked, and the first one that lacks none ends it.
+		List<Album> chain = new ArrayList<>();
+		List<int[]> missing = new ArrayList<>();
+		BitSet lacking = new BitSet();
+		for (SoundClip song : songs) {
+			if (!target.containsSong(song))
+				lacking.set(song.getId());
+		}
+		for (Album a = target; a != null && !lacking.isEmpty(); a = a.getParentAlbum()) {
+			if (a != target) {
+				for (int id = lacking.nextSetBit(0); id >= 0; id = lacking.nextSetBit(id + 1)) {
+					if (a.containsId(id))
+						lacking.clear(id);
+				}
+				if (lacking.isEmpty())
+					break;
+			}
+			chain.add(0, a);
+			missing.add(0, lacking.stream().toArray());
+		}
+		edit.albums.addAll(chain);
+		edit.ids.addAll(missing);
+		edit.changed = target.addSongs(songs);
+		return edit;
+	}
+
+	/**
+	 * Remove songs from target and the albums below it, as Album.removeSongs does.
+	 */
+	public static ClipEdit remove(Album target, Collection<SoundClip> songs) {
+		ClipEdit edit = new ClipEdit(target, false);
+		edit.changed = target.removeSongs(songs, (album, removed) -> {
+			edit.albums.add(album);
+			edit.ids.add(removed.stream().toArray());
+		});
+		return edit;
+	}
+
+	public Album getTarget() {
+		return target;
+	}
+
+	public boolean isAdding() {
+		return adding;
+	}
+
+	/**
+	 * The songs of the target that the last step added or removed.
+	 */
+	public List<SoundClip> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * False if nothing changed, and there is nothing to undo.
+	 */
+	public boolean isEmpty() {
+		return albums.isEmpty();
+	}
+
+	/**
+	 * Number of ids held, for bounding the memory of an undo history.
+	 */
+	public long size() {
+		long n = 0;
+		for (int[] a : ids)
+			n += a.length;
+		return n;
+	}
+
+	public void undo() {
+		undo(null);
+	}
+
+	public void redo() {
+		redo(null);
+	}
+
+	/**
+	 * Undo, and tell log, if not null, of the changes made.
+	 */
+	public void undo(Log log) {
+		if (adding)
+			unadd(log);
+		else
+			unremove(log);
+	}
+
+	/**
+	 * Redo, and tell log, if not null, of the changes made.
+	 */
+	public void redo(Log log) {
+		if (adding) {
+			// The target's songs include those its parents gained.
+			int i = albums.indexOf(target);
+			List<SoundClip> songs = i < 0 ? new ArrayList<>() : live(ids.get(i));
+			changed = target.addSongs(songs);
+			if (log != null)
+				log.songsAdded(target, songs);
+		} else {
+			BitSet all = new BitSet();
+			for (int[] a : ids) {
+				for (int id : a)
+					all.set(id);
+			}
+			List<SoundClip> songs = live(all.stream().toArray());
+			changed = target.removeSongs(songs);
+			if (log != null)
+				log.songsRemoved(target, songs);
+		}
+	}
+
+	// Take the added songs out of each album that gained them, top down.
+	// The target loses its songs already with its parents, so what it lost is
+	// taken from its own ids, before anything is purged.
+	private void unadd(Log log) {
+		changed = new ArrayList<>();
+		int t = albums.indexOf(target);
+		if (t >= 0) {
+			for (SoundClip song : SoundClipRegistry.getDefault().getAll(ids.get(t))) {
+				if (target.containsSong(song))
+					changed.add(song);
+			}
+		}
+		for (int i = 0; i < albums.size(); ++i) {
+			List<SoundClip> songs = SoundClipRegistry.getDefault().getAll(ids.get(i));
+			albums.get(i).purgeSongs(songs);
+			if (log != null)
+				log.songsPurged(albums.get(i), songs);
+		}
+	}
+
+	// Give each album back what it lost, parents first, so nothing travels up.
+	// Smart albums get theirs from their parent, by their rule.
+	private void unremove(Log log) {
+		changed = new ArrayList<>();
+		for (int i = 0; i < albums.size(); ++i) {
+			if (albums.get(i).isSmart() && albums.get(i) != target)
+				continue;
+			List<SoundClip> songs = live(ids.get(i));
+			List<SoundClip> added = albums.get(i).addSongs(songs);
+			if (log != null)
+				log.songsAdded(albums.get(i), songs);
+			if (albums.get(i) == target)
+				changed = added;
+		}
+	}
+
+	// The clips that the root album of the target still has.
+	private List<SoundClip> live(int[] clipIds) {
+		Album root = target;
+		while (root.getParentAlbum() != null)
+			root = root.getParentAlbum();
+		int[] kept = new int[clipIds.length];
+		int n = 0;
+		for (int id : clipIds) {
+			if (root.containsId(id))
+				kept[n++] = id;
+		}
+		return SoundClipRegistry.getDefault().getAll(n == kept.length ? kept : Arrays.copyOf(kept, n));
+	}
+}
@@ -0,0 +1,257 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClipFingerprinter finds clips whose files have the same content, like the
+ * same sample copied into several folders.
+ *
+ * A fingerprint is the XXH64 hash of the whole file, or in PCM mode of the
+ * sample data only, so that files that differ just in their headers (extra
+ * chunks, tags) still match. Files are streamed through large direct buffers
+ * on one thread per core. Only clips whose length matches another clip's are
+ * hashed at all, and fingerprints are cached in a ClipInfoStore by path, size
+ * and modification time.
+ */
+public class ClipFingerprinter {
+
+	public enum Mode { FILE, PCM }
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final ClipInfoStore store;
+	private final Path storeFile;
+	private final int threads;
+	// One buffer and hash state per hashing thread.
+	private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+	private final ThreadLocal<Xxh64> hashes = ThreadLocal.withInitial(Xxh64::new);
+
+	/**
+	 * Cache fingerprints in store, and save it to storeFile (if not null)
+	 * after each search.
+	 */
+	public ClipFingerprinter(ClipInfoStore store, Path storeFile) {
+		this(store, storeFile, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ClipFingerprinter(ClipInfoStore store, Path storeFile, int threads) {
+		assert store != null && threads > 0;
+		this.store = store;
+		this.storeFile = storeFile;
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns the groups of clips that have the same content, each with at
+	 * least two clips, in the order the clips were given. Clips that cannot be
+	 * read are left out. progress hears about bytes hashed out of the bytes
+	 * that need hashing.
+	 */
+	public List<List<SoundClip>> findDuplicates(Collection<SoundClip> clips, Mode mode, AlbumStore.ProgressListener progress) throws InterruptedException {
+		final boolean pcmOnly = mode == Mode.PCM;
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "ClipFingerprinter");
+			t.setDaemon(true);
+			return t;
+		});
+		try
+		{
+			// Only clips of the same length can be the same, so first find out
+			// the lengths, which takes a stat (and for PCM a header read).
+			List<Future<Candidate>> measured = new ArrayList<>(clips.size());
+			for (SoundClip clip : clips)
+				measured.add(pool.submit(() -> measure(clip, pcmOnly)));
+			Map<Long, List<Candidate>> byLength = new LinkedHashMap<>();
+			for (Future<Candidate> f : measured)
+			{
+				Candidate c = get(f);
+				if (c != null)
+					byLength.computeIfAbsent(c.length, k -> new ArrayList<>()).add(c);
+			}
+
+			List<Candidate> toHash = new ArrayList<>();
+			long totalBytes = 0;
+			for (List<Candidate> same : byLength.values())
+			{
+				if (same.size() < 2)
+					continue;
+				for (Candidate c : same)
+				{
+					toHash.add(c);
+					if (c.hash == null)
+						totalBytes += c.length;
+				}
+			}
+
+			final long total = totalBytes;
+			final AtomicLong done = new AtomicLong();
+			List<Future<?>> hashed = new ArrayList<>(toHash.size());
+			for (Candidate c : toHash)
+			{
+				if (c.hash != null)
+					continue;
+				hashed.add(pool.submit(() -> {
+					c.hash = hash(c, pcmOnly, bytes -> {
+						if (progress != null)
+							progress.progress(done.addAndGet(bytes), total);
+					});
+					return null;
+				}));
+			}
+			for (Future<?> f : hashed)
+				get(f);
+
+			// Group by length and hash, the hash alone could match across lengths.
+			Map<Long, Map<Long, List<SoundClip>>> groups = new LinkedHashMap<>();
+			for (Candidate c : toHash)
+			{
+				if (c.hash != null)
+					groups.computeIfAbsent(c.length, k -> new LinkedHashMap<>()).computeIfAbsent(c.hash, k -> new ArrayList<>()).add(c.clip);
+			}
+			List<List<SoundClip>> duplicates = new ArrayList<>();
+			for (Map<Long, List<SoundClip>> sameLength : groups.values())
+			{
+				for (List<SoundClip> group : sameLength.values())
+				{
+					if (group.size() > 1)
+						duplicates.add(group);
+				}
+			}
+			saveStore();
+			return duplicates;
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns the fingerprint of one clip, from the cache if its file did not change.
+	 */
+	public long fingerprint(SoundClip clip, Mode mode) throws IOException {
+		final boolean pcmOnly = mode == Mode.PCM;
+		Candidate c = measure(clip, pcmOnly);
+		if (c == null)
+			throw new IOException("Cannot read " + clip.getFile());
+		if (c.hash == null)
+			c.hash = hash(c, pcmOnly, null);
+		return c.hash;
+	}
+
+	// A clip with the length of what would be hashed, and the hash once known.
+	private static class Candidate {
+		final SoundClip clip;
+		final String key;
+		final long size;
+		final long mtime;
+		long offset;
+		long length;
+		volatile Long hash;
+
+		Candidate(SoundClip clip, String key, long size, long mtime) {
+			this.clip = clip;
+			this.key = key;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	private interface BytesRead {
+		void add(long bytes);
+	}
+
+	private Candidate measure(SoundClip clip, boolean pcmOnly) {
+		Path path = clip.getFile().toPath();
+		try
+		{
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			Candidate c = new Candidate(clip, clip.getFile().getPath(), attrs.size(), attrs.lastModifiedTime().toMillis());
+			c.length = c.size;
+			if (pcmOnly)
+			{
+				try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ))
+				{
+					WavFile wav = WavFile.read(ch);
+					c.offset = wav.getDataOffset();
+					c.length = wav.getDataLength();
+				}
+			}
+			c.hash = store.getFingerprint(c.key, pcmOnly, c.size, c.mtime);
+			return c;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private Long hash(Candidate c, boolean pcmOnly, BytesRead progress) throws IOException {
+		ByteBuffer buffer = buffers.get();
+		Xxh64 xxh = hashes.get();
+		xxh.reset();
+		try (FileChannel ch = FileChannel.open(c.clip.getFile().toPath(), StandardOpenOption.READ))
+		{
+			long position = c.offset;
+			final long end = c.offset + c.length;
+			while (position < end)
+			{
+				buffer.clear();
+				if (end - position < buffer.capacity())
+					buffer.limit((int) (end - position));
+				int read = ch.read(buffer, position);
+				if (read < 0)
+					throw new IOException("File shrank while hashing: " + c.clip.getFile());
+				position += read;
+				buffer.flip();
+				xxh.update(buffer);
+				if (progress != null)
+					progress.add(read);
+			}
+		}
+		long hash = xxh.digest();
+		store.putFingerprint(c.key, pcmOnly, c.size, c.mtime, hash);
+		return hash;
+	}
+
+	private static <T> T get(Future<T> f) throws InterruptedException {
+		try
+		{
+			return f.get();
+		}
+		catch (ExecutionException e)
+		{
+			return null; // Could not be read, leave it out.
+		}
+	}
+
+	private void saveStore() {
+		if (storeFile == null)
+			return;
+		try
+		{
+			store.save(storeFile);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Could not save clip info store " + storeFile + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * ClipIdSet is the set of songs of an album, as clip ids.
+ * Membership is a bitset indexed by id, so lookups and set operations between
+ * albums are cheap, and an int array keeps the order songs were added in.
+ * Removing only clears the bit; the array is compacted once enough removed
+ * ids have piled up, or when a removed id is added again.
+ */
+class ClipIdSet {
+
+	private final BitSet members = new BitSet();
+	private final BitSet stale = new BitSet(); // Removed, but still in order.
+	private int[] order = new int[8];
+	private int length = 0;
+	private int size = 0;
+
+	boolean add(int id) {
+		if (members.get(id))
+			return false;
+		if (stale.get(id))
+			compact();
+		members.set(id);
+		if (length == order.length)
+			order = Arrays.copyOf(order, length * 2);
+		order[length++] = id;
+		size++;
+		return true;
+	}
+
+	boolean remove(int id) {
+		if (!members.get(id))
+			return false;
+		members.clear(id);
+		stale.set(id);
+		size--;
+		if (length - size > Math.max(64, size))
+			compact();
+		return true;
+	}
+
+	boolean contains(int id) {
+		return members.get(id);
+	}
+
+	int size() {
+		return size;
+	}
+
+	// The members, not to be modified.
+	BitSet bits() {
+		return members;
+	}
+
+	// The ids in the order they were added.
+	int[] toArray() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < length; ++i) {
+			if (members.get(order[i]))
+				result[n++] = order[i];
+		}
+		return result;
+	}
+
+	void clear() {
+		members.clear();
+		stale.clear();
+		order = new int[8];
+		length = 0;
+		size = 0;
+	}
+
+	private void compact() {
+		int n = 0;
+		for (int i = 0; i < length; ++i) {
+			if (members.get(order[i]))
+				order[n++] = order[i];
+		}
+		length = n;
+		stale.clear();
+	}
+}
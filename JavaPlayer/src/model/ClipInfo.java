@@ -0,0 +1,79 @@
+package model;
+
+/**
+ * ClipInfo is what is known about the file of a SoundClip: its length and
+ * audio format, read from the WAV header, and the size and modification time
+ * of the file it was read from.
+ * A file that could not be read as WAV gets a ClipInfo that is not valid,
+ * so it is not read again until it changes.
+ */
+public class ClipInfo {
+
+	private final long durationMillis;
+	private final int sampleRate;
+	private final int channels;
+	private final int bitsPerSample;
+	private final long size;
+	private final long mtime;
+
+	ClipInfo(long durationMillis, int sampleRate, int channels, int bitsPerSample, long size, long mtime) {
+		this.durationMillis = durationMillis;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		this.bitsPerSample = bitsPerSample;
+		this.size = size;
+		this.mtime = mtime;
+	}
+
+	static ClipInfo of(WavFile wav, long size, long mtime) {
+		return new ClipInfo(wav.getDurationMillis(), wav.getSampleRate(), wav.getChannels(), wav.getBitsPerSample(), size, mtime);
+	}
+
+	static ClipInfo unreadable(long size, long mtime) {
+		return new ClipInfo(0, 0, 0, 0, size, mtime);
+	}
+
+	// False if the file is not a WAV file we understand.
+	public boolean isValid() {
+		return sampleRate > 0;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	// Size of the file in bytes.
+	public long getSize() {
+		return size;
+	}
+
+	// Modification time of the file, in milliseconds.
+	public long getModified() {
+		return mtime;
+	}
+
+	// True if this was read from a file of this size and modification time.
+	boolean matches(long size, long mtime) {
+		return this.size == size && this.mtime == mtime;
+	}
+
+	public String toString() {
+		if (!isValid())
+			return "unreadable";
+		long seconds = (durationMillis + 500) / 1000;
+		String layout = channels == 1 ? "mono" : channels == 2 ? "stereo" : channels + " ch";
+		return String.format("%d:%02d, %.1f kHz, %d bit %s, %d KB", seconds / 60, seconds % 60, sampleRate / 1000.0, bitsPerSample, layout, (size + 1023) / 1024);
+	}
+}
@@ -0,0 +1,183 @@
+package model;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * ClipInfoExtractor fills a ClipInfoStore in the background.
+ *
+ * Clips handed to submit are worked off by a few threads. A clip whose file
+ * has the size and modification time already in the store costs one stat;
+ * otherwise only the chunk headers of the WAV file are read, with positioned
+ * reads. Listeners hear about every new ClipInfo, on the worker threads.
+ * When there is nothing left to do, the store is saved.
+ */
+public class ClipInfoExtractor {
+
+	private final ClipInfoStore store;
+	private final Path storeFile;
+	private final int threads;
+	private final ExecutorService pool;
+	private final Queue<SoundClip> queue = new ConcurrentLinkedQueue<>();
+	private final Set<Integer> queued = ConcurrentHashMap.newKeySet(); // Ids of the clips in queue
+	private final AtomicInteger workers = new AtomicInteger();
+	private final List<Consumer<SoundClip>> listeners = new CopyOnWriteArrayList<>();
+
+	private final LongAdder headersRead = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	public ClipInfoExtractor(ClipInfoStore store, Path storeFile) {
+		this(store, storeFile, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Extract into store with at most threads threads, saving it to storeFile
+	 * (if not null) whenever the work runs out.
+	 */
+	public ClipInfoExtractor(ClipInfoStore store, Path storeFile, int threads) {
+		assert store != null && threads > 0;
+		this.store = store;
+		this.storeFile = storeFile;
+		this.threads = threads;
+		pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "ClipInfoExtractor");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	public ClipInfoStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Find out the info of clip in the background. Never waits.
+	 */
+	public void submit(SoundClip clip) {
+		if (queued.add(clip.getId()))
+		{
+			queue.add(clip);
+			startWorkers();
+		}
+	}
+
+	public void submitAll(Collection<SoundClip> clips) {
+		for (SoundClip clip : clips)
+		{
+			if (queued.add(clip.getId()))
+				queue.add(clip);
+		}
+		startWorkers();
+	}
+
+	/**
+	 * Call listener with the clip each time a ClipInfo was added to the store.
+	 * It runs on a worker thread.
+	 */
+	public void addListener(Consumer<SoundClip> listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Consumer<SoundClip> listener) {
+		listeners.remove(listener);
+	}
+
+	public String toString() {
+		return headersRead.sum() + " headers read, " + cacheHits.sum() + " cached, " + failures.sum() + " failed, " + queue.size() + " waiting";
+	}
+
+	private void startWorkers() {
+		while (!queue.isEmpty())
+		{
+			int running = workers.get();
+			if (running >= threads)
+				return;
+			if (workers.compareAndSet(running, running + 1))
+				pool.execute(this::work);
+		}
+	}
+
+	private void work() {
+		SoundClip clip;
+		while ((clip = queue.poll()) != null)
+		{
+			queued.remove(clip.getId());
+			extract(clip);
+		}
+		if (workers.decrementAndGet() == 0 && queue.isEmpty())
+			saveStore();
+		// A clip may have come in after the queue looked empty.
+		startWorkers();
+	}
+
+	private void extract(SoundClip clip) {
+		Path path = clip.getFile().toPath();
+		String key = clip.getFile().getPath();
+		try
+		{
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			final long size = attrs.size();
+			final long mtime = attrs.lastModifiedTime().toMillis();
+			if (store.get(key, size, mtime) != null)
+			{
+				cacheHits.increment();
+				return;
+			}
+			ClipInfo info;
+			try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ))
+			{
+				info = ClipInfo.of(WavFile.read(ch), size, mtime);
+				headersRead.increment();
+			}
+			catch (NoSuchFileException e)
+			{
+				throw e;
+			}
+			catch (IOException e)
+			{
+				info = ClipInfo.unreadable(size, mtime);
+				failures.increment();
+			}
+			store.put(key, info);
+			for (Consumer<SoundClip> listener : listeners)
+				listener.accept(clip);
+		}
+		catch (IOException e)
+		{
+			// The file is gone, the watcher will take it out of the library.
+			failures.increment();
+		}
+	}
+
+	private void saveStore() {
+		if (storeFile == null)
+			return;
+		try
+		{
+			store.save(storeFile);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Could not save clip info store " + storeFile + ": " + e.getMessage());
+		}
+	}
+}
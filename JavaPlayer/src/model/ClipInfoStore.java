@@ -0,0 +1,175 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ClipInfoStore keeps the ClipInfo of every clip file it was given, by path.
+ * An entry only counts for a file with the same size and modification time,
+ * so a file that changed is read again. Content fingerprints from
+ * ClipFingerprinter are kept the same way. The store can be kept on disk
+ * between runs of the program.
+ */
+public class ClipInfoStore {
+
+	private static final int MAGIC = 0x53434946; // "SCIF"
+	private static final int VERSION = 2; // 2 added fingerprints
+
+	// A fingerprint and the size and modification time of the file it was taken of.
+	private static class Fingerprint {
+		final long size;
+		final long mtime;
+		final long hash;
+
+		Fingerprint(long size, long mtime, long hash) {
+			this.size = size;
+			this.mtime = mtime;
+			this.hash = hash;
+		}
+	}
+
+	private final Map<String, ClipInfo> infos = new ConcurrentHashMap<>();
+	private final Map<String, Fingerprint> fileHashes = new ConcurrentHashMap<>(); // Of the whole file
+	private final Map<String, Fingerprint> pcmHashes = new ConcurrentHashMap<>(); // Of the sample data only
+	private volatile boolean dirty;
+
+	/**
+	 * Returns the file the store is kept in by default, below the user's home folder.
+	 */
+	public static Path defaultLocation() {
+		return Paths.get(System.getProperty("user.home"), ".musicorganizer", "clipinfo.dat");
+	}
+
+	/**
+	 * Read a store from disk. Returns an empty store if the file does not
+	 * exist or cannot be read.
+	 */
+	public static ClipInfoStore load(Path file) {
+		ClipInfoStore store = new ClipInfoStore();
+		if (!Files.isRegularFile(file))
+			return store;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				return store;
+			final int version = in.readInt();
+			if (version < 1 || version > VERSION)
+				return store;
+			final int count = in.readInt();
+			for (int i = 0; i < count; ++i) {
+				String path = in.readUTF();
+				long duration = in.readLong();
+				int sampleRate = in.readInt();
+				int channels = in.readShort();
+				int bits = in.readShort();
+				long size = in.readLong();
+				long mtime = in.readLong();
+				store.infos.put(path, new ClipInfo(duration, sampleRate, channels, bits, size, mtime));
+			}
+			if (version >= 2) {
+				readFingerprints(in, store.fileHashes);
+				readFingerprints(in, store.pcmHashes);
+			}
+		} catch (IOException e) {
+			System.out.println("Ignoring unreadable clip info store " + file + ": " + e.getMessage());
+			store.infos.clear();
+			store.fileHashes.clear();
+			store.pcmHashes.clear();
+		}
+		return store;
+	}
+
+	private static void readFingerprints(DataInputStream in, Map<String, Fingerprint> hashes) throws IOException {
+		final int count = in.readInt();
+		for (int i = 0; i < count; ++i)
+			hashes.put(in.readUTF(), new Fingerprint(in.readLong(), in.readLong(), in.readLong()));
+	}
+
+	private static void writeFingerprints(DataOutputStream out, Map<String, Fingerprint> hashes) throws IOException {
+		Map<String, Fingerprint> snapshot = Map.copyOf(hashes);
+		out.writeInt(snapshot.size());
+		for (Map.Entry<String, Fingerprint> e : snapshot.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue().size);
+			out.writeLong(e.getValue().mtime);
+			out.writeLong(e.getValue().hash);
+		}
+	}
+
+	/**
+	 * Write the store to disk if it changed since it was loaded or last saved.
+	 * The file is replaced atomically.
+	 */
+	public synchronized void save(Path file) throws IOException {
+		if (!dirty)
+			return;
+		dirty = false;
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// Entries added while writing may or may not make it, count what was written.
+			Map<String, ClipInfo> snapshot = Map.copyOf(infos);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, ClipInfo> e : snapshot.entrySet()) {
+				ClipInfo info = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(info.getDurationMillis());
+				out.writeInt(info.getSampleRate());
+				out.writeShort(info.getChannels());
+				out.writeShort(info.getBitsPerSample());
+				out.writeLong(info.getSize());
+				out.writeLong(info.getModified());
+			}
+			writeFingerprints(out, fileHashes);
+			writeFingerprints(out, pcmHashes);
+		} catch (IOException e) {
+			dirty = true;
+			throw e;
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Returns the info last stored for clip, or null if there is none yet.
+	 * Does not check the file on disk.
+	 */
+	public ClipInfo get(SoundClip clip) {
+		return infos.get(clip.getFile().getPath());
+	}
+
+	// The stored info for a file, if it was read with this size and modification time.
+	ClipInfo get(String path, long size, long mtime) {
+		ClipInfo info = infos.get(path);
+		return info != null && info.matches(size, mtime) ? info : null;
+	}
+
+	void put(String path, ClipInfo info) {
+		infos.put(path, info);
+		dirty = true;
+	}
+
+	// The stored fingerprint of a file with this size and modification time, or null.
+	Long getFingerprint(String path, boolean pcmOnly, long size, long mtime) {
+		Fingerprint f = (pcmOnly ? pcmHashes : fileHashes).get(path);
+		return f != null && f.size == size && f.mtime == mtime ? f.hash : null;
+	}
+
+	void putFingerprint(String path, boolean pcmOnly, long size, long mtime, long hash) {
+		(pcmOnly ? pcmHashes : fileHashes).put(path, new Fingerprint(size, mtime, hash));
+		dirty = true;
+	}
+
+	public int size() {
+		return infos.size();
+	}
+}
@@ -0,0 +1,142 @@
+package model;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ClipPrefetcher prepares the next few clips the player is going to play,
+ * on a thread of its own, so that slow storage is read while the current
+ * clip is still playing and the next voice is already opened when it
+ * is needed.
+ *
+ * prefetch and take must be called from one thread, the player's. A prepared
+ * clip that is no longer wanted is closed right away, so its voice and
+ * buffer never outlive it.
+ */
+class ClipPrefetcher {
+
+	// One clip being prepared, or ready.
+	private static class Ahead {
+		final SoundClip clip;
+		private PreparedClip result;
+		private boolean abandoned; // Nobody will take it, or it was taken already.
+
+		Ahead(SoundClip clip) {
+			this.clip = clip;
+		}
+
+		synchronized void ready(PreparedClip prepared) {
+			if (abandoned)
+				prepared.close();
+			else
+				result = prepared;
+		}
+
+		// Take the result if it is ready; either way it is not wanted anymore afterwards.
+		synchronized PreparedClip claim() {
+			abandoned = true;
+			PreparedClip r = result;
+			result = null;
+			return r;
+		}
+
+		void abandon() {
+			PreparedClip r = claim();
+			if (r != null)
+				r.close();
+		}
+	}
+
+	private final int lookahead;
+	private final BufferPool pool;
+	private final AudioBackend backend;
+	private final ExecutorService io;
+	private final ArrayDeque<Ahead> ahead = new ArrayDeque<>();
+
+	/**
+	 * Prepare up to lookahead clips at a time on backend, reading their bytes into pool.
+	 */
+	ClipPrefetcher(int lookahead, BufferPool pool, AudioBackend backend) {
+		assert lookahead >= 0;
+		this.lookahead = lookahead;
+		this.pool = pool;
+		this.backend = backend;
+		io = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "ClipPrefetcher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * The clips that will be played next, in order. Keeps what is already
+	 * prepared for them and starts preparing the rest.
+	 */
+	void prefetch(Iterable<SoundClip> upcoming) {
+		Iterator<SoundClip> next = upcoming.iterator();
+		Iterator<Ahead> kept = ahead.iterator();
+		int count = 0;
+		SoundClip mismatch = null;
+		// Keep the prepared clips as long as they match the upcoming order.
+		while (count < lookahead && next.hasNext() && kept.hasNext())
+		{
+			SoundClip clip = next.next();
+			if (!kept.next().clip.equals(clip))
+			{
+				mismatch = clip;
+				break;
+			}
+			++count;
+		}
+		abandonFrom(count);
+		if (mismatch != null)
+		{
+			start(mismatch);
+			++count;
+		}
+		for (; count < lookahead && next.hasNext(); ++count)
+			start(next.next());
+	}
+
+	/**
+	 * Returns the prepared clip if clip is the first one being prefetched and
+	 * it is ready, or null. The caller closes what it gets.
+	 */
+	PreparedClip take(SoundClip clip) {
+		Ahead first = ahead.peekFirst();
+		if (first == null || !first.clip.equals(clip))
+		{
+			abandonFrom(0);
+			return null;
+		}
+		ahead.pollFirst();
+		return first.claim();
+	}
+
+	void shutdown() {
+		abandonFrom(0);
+		io.shutdownNow();
+	}
+
+	private void start(SoundClip clip) {
+		Ahead a = new Ahead(clip);
+		ahead.addLast(a);
+		io.execute(() -> {
+			try
+			{
+				a.ready(PreparedClip.open(clip, pool, backend));
+			}
+			catch (Exception e)
+			{
+				// The player will try again when it gets there, and report it.
+			}
+		});
+	}
+
+	private void abandonFrom(int index) {
+		while (ahead.size() > index)
+			ahead.pollLast().abandon();
+	}
+}
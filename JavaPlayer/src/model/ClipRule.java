@@ -0,0 +1,212 @@
+package model;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * ClipRule decides which clips belong in a smart album.
+ *
+ * A rule is written as terms separated by spaces, and a clip must match all
+ * of them:
+ *   glob:PATTERN      the clip's path matches a glob, e.g. glob:**&#47;drums/*.wav
+ *   ext:wav,aif       the file has one of these extensions
+ *   folder:PATH       the file is in this folder or below it
+ *   duration:MIN..MAX the length is in this range, e.g. duration:..2s or duration:1s..1m
+ *   size:MIN..MAX     the file size is in this range, e.g. size:100k.. or size:..2M
+ * Durations take ms, s or m, sizes k, M or G; either end of a range may be left out.
+ * Duration and size come from the ClipInfoStore set with setInfoStore, so a
+ * clip whose info is not known yet does not match them.
+ */
+public class ClipRule {
+
+	private static volatile ClipInfoStore infoStore;
+
+	// One term of a rule.
+	private interface Term {
+		boolean matches(SoundClip clip);
+	}
+
+	private final String text;
+	private final List<Term> terms;
+	private final boolean usesInfo;
+
+	private ClipRule(String text, List<Term> terms, boolean usesInfo) {
+		this.text = text;
+		this.terms = terms;
+		this.usesInfo = usesInfo;
+	}
+
+	/**
+	 * Where duration and size terms look up clips.
+	 */
+	public static void setInfoStore(ClipInfoStore store) {
+		infoStore = store;
+	}
+
+	/**
+	 * Parse a rule in the form described above.
+	 * Throws an IllegalArgumentException, with a message for the user, if it is not one.
+	 */
+	public static ClipRule parse(String text) {
+		List<Term> terms = new ArrayList<>();
+		boolean usesInfo = false;
+		StringBuilder canonical = new StringBuilder();
+		for (String token : text.trim().split("\\s+")) {
+			if (token.isEmpty())
+				continue;
+			int colon = token.indexOf(':');
+			if (colon <= 0 || colon == token.length() - 1)
+				throw new IllegalArgumentException("Expected kind:value, not '" + token + "'");
+			String kind = token.substring(0, colon).toLowerCase(Locale.ROOT);
+			String value = token.substring(colon + 1);
+			switch (kind) {
+			case "glob":
+				terms.add(glob(value));
+				break;
+			case "ext":
+				terms.add(extensions(value));
+				break;
+			case "folder":
+				terms.add(folder(value));
+				break;
+			case "duration": {
+				final long[] range = parseRange(value, ClipRule::parseMillis);
+				terms.add(clip -> {
+					ClipInfo info = info(clip);
+					return info != null && info.isValid() && inRange(info.getDurationMillis(), range);
+				});
+				usesInfo = true;
+				break;
+			}
+			case "size": {
+				final long[] range = parseRange(value, ClipRule::parseBytes);
+				terms.add(clip -> {
+					ClipInfo info = info(clip);
+					return info != null && inRange(info.getSize(), range);
+				});
+				usesInfo = true;
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown rule kind '" + kind + "'");
+			}
+			if (canonical.length() > 0)
+				canonical.append(' ');
+			canonical.append(kind).append(':').append(value);
+		}
+		if (terms.isEmpty())
+			throw new IllegalArgumentException("Empty rule");
+		return new ClipRule(canonical.toString(), terms, usesInfo);
+	}
+
+	public boolean matches(SoundClip clip) {
+		for (Term t : terms) {
+			if (!t.matches(clip))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * True if the rule looks at duration or size, so clips may start or stop
+	 * matching when their info is read.
+	 */
+	public boolean usesClipInfo() {
+		return usesInfo;
+	}
+
+	/**
+	 * The rule in the form parse reads.
+	 */
+	public String toString() {
+		return text;
+	}
+
+	private static ClipInfo info(SoundClip clip) {
+		ClipInfoStore store = infoStore;
+		return store != null ? store.get(clip) : null;
+	}
+
+	private static Term glob(String pattern) {
+		final PathMatcher matcher;
+		try {
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Bad glob '" + pattern + "': " + e.getMessage());
+		}
+		return clip -> matcher.matches(clip.getFile().toPath());
+	}
+
+	private static Term extensions(String list) {
+		final List<String> suffixes = new ArrayList<>();
+		for (String ext : list.split(",")) {
+			if (!ext.isEmpty())
+				suffixes.add("." + (ext.startsWith(".") ? ext.substring(1) : ext).toLowerCase(Locale.ROOT));
+		}
+		return clip -> {
+			String name = clip.toString().toLowerCase(Locale.ROOT);
+			for (String suffix : suffixes) {
+				if (name.endsWith(suffix))
+					return true;
+			}
+			return false;
+		};
+	}
+
+	private static Term folder(String path) {
+		final String folder = path.endsWith("/") || path.endsWith("\\") ? path.substring(0, path.length() - 1) : path;
+		final SoundClipRegistry registry = SoundClipRegistry.getDefault();
+		return clip -> {
+			String f = registry.getFolder(registry.getFolderId(clip.getId()));
+			return f.startsWith(folder) && (f.length() == folder.length() || f.charAt(folder.length()) == '/' || f.charAt(folder.length()) == '\\');
+		};
+	}
+
+	private interface Amount {
+		long parse(String s);
+	}
+
+	// MIN..MAX, either may be empty, or a single value for an exact match.
+	private static long[] parseRange(String value, Amount amount) {
+		int dots = value.indexOf("..");
+		try {
+			if (dots < 0) {
+				long v = amount.parse(value);
+				return new long[] { v, v };
+			}
+			String min = value.substring(0, dots);
+			String max = value.substring(dots + 2);
+			return new long[] { min.isEmpty() ? Long.MIN_VALUE : amount.parse(min), max.isEmpty() ? Long.MAX_VALUE : amount.parse(max) };
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad range '" + value + "'");
+		}
+	}
+
+	private static boolean inRange(long v, long[] range) {
+		return v >= range[0] && v <= range[1];
+	}
+
+	private static long parseMillis(String s) {
+		if (s.endsWith("ms"))
+			return Long.parseLong(s.substring(0, s.length() - 2));
+		if (s.endsWith("s"))
+			return Math.round(Double.parseDouble(s.substring(0, s.length() - 1)) * 1000);
+		if (s.endsWith("m"))
+			return Math.round(Double.parseDouble(s.substring(0, s.length() - 1)) * 60_000);
+		return Long.parseLong(s);
+	}
+
+	private static long parseBytes(String s) {
+		long unit = 1;
+		switch (s.charAt(s.length() - 1)) {
+		case 'k': case 'K': unit = 1L << 10; break;
+		case 'M': unit = 1L << 20; break;
+		case 'G': unit = 1L << 30; break;
+		default: return Long.parseLong(s);
+		}
+		return Math.round(Double.parseDouble(s.substring(0, s.length() - 1)) * unit);
+	}
+}
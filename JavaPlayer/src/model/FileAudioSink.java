@@ -0,0 +1,69 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the audio to a WAV file, for listening to what was mixed later.
+ */
+public class FileAudioSink implements AudioSink {
+
+	private static final int HEADER_SIZE = 44;
+
+	private final Path file;
+	private FileChannel channel;
+	private int sampleRate;
+	private int channels;
+	private long dataLength;
+
+	public FileAudioSink(Path file) {
+		this.file = file;
+	}
+
+	@Override
+	public void open(int sampleRate, int channels) throws IOException {
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		dataLength = 0;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writeHeader(); // The lengths are filled in by close.
+		channel.position(HEADER_SIZE);
+	}
+
+	@Override
+	public void write(ByteBuffer pcm) throws IOException {
+		while (pcm.hasRemaining())
+			dataLength += channel.write(pcm);
+	}
+
+	@Override
+	public void close() {
+		if (channel == null)
+			return;
+		try
+		{
+			writeHeader();
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			System.out.println("Could not finish " + file + ": " + e.getMessage());
+		}
+		channel = null;
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		h.putInt(0x46464952).putInt((int) (HEADER_SIZE - 8 + dataLength)).putInt(0x45564157); // RIFF, WAVE
+		h.putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) channels); // fmt, PCM
+		h.putInt(sampleRate).putInt(sampleRate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+		h.putInt(0x61746164).putInt((int) dataLength); // data
+		h.flip();
+		while (h.hasRemaining())
+			channel.write(h, h.position());
+	}
+}
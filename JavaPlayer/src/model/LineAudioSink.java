@@ -0,0 +1,49 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Sends audio to the default sound card through a SourceDataLine.
+ */
+public class LineAudioSink implements AudioSink {
+
+	private static final int BUFFER_MILLIS = 100; // Latency of the line versus underruns
+
+	private SourceDataLine line;
+
+	@Override
+	public void open(int sampleRate, int channels) throws IOException {
+		AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, false);
+		try
+		{
+			line = AudioSystem.getSourceDataLine(format);
+			line.open(format, sampleRate * channels * 2 * BUFFER_MILLIS / 1000);
+			line.start();
+		}
+		catch (LineUnavailableException | IllegalArgumentException e)
+		{
+			throw new IOException("No audio output: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void write(ByteBuffer pcm) throws IOException {
+		int written = line.write(pcm.array(), pcm.arrayOffset() + pcm.position(), pcm.remaining());
+		pcm.position(pcm.position() + written);
+	}
+
+	@Override
+	public void close() {
+		if (line == null)
+			return;
+		line.stop();
+		line.close();
+		line = null;
+	}
+}
@@ -0,0 +1,286 @@
+package model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+
+/**
+ * MappedHierarchy opens an AHL file of version 3 or later lazily.
+ * The file is memory mapped, and only its header, folder table, the
+ * position of each clip record and the subalbum lists of the album records
+ * are read up front. Albums are handed out as
+ * stubs that know their name and sizes; their songs and subalbums are decoded
+ * from the mapped file the first time the album is used.
+ * Clips are created on demand as well, once per clip id, so every album
+ * shares the same SoundClip instances.
+ * The names and places of the albums can be read without decoding them, so
+ * that they can be searched before they are used.
+ */
+class MappedHierarchy {
+
+	private static final int MAX_STRING_BYTES = 1 << 20;
+
+	private final ByteBuffer buffer;
+	private final String[] folders;
+	private final int[] clipOffsets;
+	private final SoundClip[] clips;
+	private final int numAlbums;
+	private final int indexStart;
+	private final int[] parents; // Record of the album each album is in, -1 for the root.
+	private final BitSet smartAbove = new BitSet(); // Records with a smart album below them.
+	private final AtomicReferenceArray<Album> albums; // Stubs made so far, by record.
+	private volatile BiConsumer<Album, Album> decodeListener;
+
+	private MappedHierarchy(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		ByteBuffer b = buffer.duplicate();
+		byte[] magic = new byte[AlbumSerializer.MAGIC.length];
+		b.get(magic);
+		if (!Arrays.equals(magic, AlbumSerializer.MAGIC))
+			throw new IOException("Not an AHL file");
+		final int version = readVarint(b);
+		if (version < AlbumSerializer.INDEXED_VERSION || version > AlbumSerializer.VERSION)
+			throw new IOException("Not an indexed AHL file: version " + version);
+
+		folders = new String[readVarint(b)];
+		for (int i = 0; i < folders.length; ++i)
+			folders[i] = readString(b);
+
+		// Remember where each clip starts, and skip it.
+		final int numClips = readVarint(b);
+		clipOffsets = new int[numClips];
+		for (int i = 0; i < numClips; ++i) {
+			clipOffsets[i] = b.position();
+			readVarint(b);
+			final int nameLength = readVarint(b);
+			b.position(b.position() + nameLength);
+		}
+		clips = new SoundClip[numClips];
+
+		numAlbums = readVarint(b);
+		long index = buffer.getLong(buffer.limit() - 8);
+		if (numAlbums == 0 || index < 0 || index + 8L * numAlbums + 8 != buffer.limit())
+			throw new IOException("Corrupt AHL file: bad album index");
+		indexStart = (int) index;
+
+		// Only the flags and subalbum lists are read, names and clips are skipped.
+		parents = new int[numAlbums];
+		Arrays.fill(parents, -1);
+		BitSet smart = new BitSet();
+		for (int i = 0; i < numAlbums; ++i) {
+			ByteBuffer r = record(i);
+			skipString(r);
+			if ((readVarint(r) & AlbumSerializer.FLAG_SMART) != 0) {
+				smart.set(i);
+				skipString(r);
+			}
+			final int numSubs = readVarint(r);
+			for (int j = 0; j < numSubs; ++j)
+				parents[readIndex(r, numAlbums)] = i;
+		}
+		for (int i = smart.nextSetBit(0); i >= 0; i = smart.nextSetBit(i + 1)) {
+			int steps = 0;
+			for (int p = parents[i]; p >= 0 && !smartAbove.get(p) && steps++ < numAlbums; p = parents[p])
+				smartAbove.set(p);
+		}
+		albums = new AtomicReferenceArray<>(numAlbums);
+	}
+
+	/**
+	 * Map file and return its root album, with nothing below it decoded yet.
+	 * Throws an IOException if the file is not an AHL file of version 3 or later.
+	 * Note that the mapping stays alive as long as any album from it is not
+	 * fully decoded; on some systems that keeps the file from being replaced.
+	 */
+	static Album open(Path file) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("AHL file too large to map: " + channel.size() + " bytes");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			return new MappedHierarchy(buffer).stub(0);
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt AHL file", e);
+		}
+	}
+
+	// Make an album that knows its name and sizes, but not its contents.
+	private Album stub(int index) throws IOException {
+		ByteBuffer b = record(index);
+		String name = readString(b);
+		ClipRule rule = readRule(b, readVarint(b));
+		final int numSubs = readVarint(b);
+		for (int i = 0; i < numSubs; ++i)
+			readVarint(b);
+		final int numClips = readVarint(b);
+		Album album = Album.createLazyAlbum(name, rule, this, index, numSubs, numClips);
+		albums.set(index, album);
+		return album;
+	}
+
+	/**
+	 * Decode the subalbums (as stubs) and songs of album from its record.
+	 * Called by the album itself the first time its contents are needed.
+	 */
+	synchronized void decode(Album album, int index) {
+		try {
+			ByteBuffer b = record(index);
+			readString(b);
+			if ((readVarint(b) & AlbumSerializer.FLAG_SMART) != 0)
+				readString(b); // Rule, read by stub
+			final int numSubs = readVarint(b);
+			BiConsumer<Album, Album> listener = decodeListener;
+			for (int i = 0; i < numSubs; ++i) {
+				Album sub = stub(readIndex(b, numAlbums));
+				album.attachDecodedSubAlbum(sub);
+				if (listener != null)
+					listener.accept(album, sub);
+			}
+
+			final int numClips = readVarint(b);
+			List<SoundClip> songs = new ArrayList<>(numClips);
+			for (int i = 0; i < numClips; ++i)
+				songs.add(clip(readIndex(b, clips.length)));
+			album.addDecodedSongs(songs);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (RuntimeException e) {
+			throw new UncheckedIOException(new IOException("Corrupt AHL file: album " + index, e));
+		}
+	}
+
+	/**
+	 * Call listener with each album and subalbum stub as albums are decoded.
+	 * It is called while decoding, which may be on any thread reading the albums.
+	 */
+	void setDecodeListener(BiConsumer<Album, Album> listener) {
+		decodeListener = listener;
+	}
+
+	// The name of the album in record index, without decoding it.
+	String getName(int index) {
+		return readString(record(index));
+	}
+
+	// Hand the records of the subalbums of record index to action, without decoding it.
+	void forEachSubAlbum(int index, IntConsumer action) {
+		ByteBuffer b = record(index);
+		skipString(b);
+		if ((readVarint(b) & AlbumSerializer.FLAG_SMART) != 0)
+			skipString(b);
+		final int numSubs = readVarint(b);
+		for (int i = 0; i < numSubs; ++i)
+			action.accept(readIndex(b, numAlbums));
+	}
+
+	// True if there is a smart album somewhere below record index.
+	boolean hasSmartBelow(int index) {
+		return smartAbove.get(index);
+	}
+
+	// The album of record index, or null if it has not been made yet.
+	Album getAlbum(int index) {
+		return albums.get(index);
+	}
+
+	/**
+	 * The album of record index, decoding the albums above it as needed, but
+	 * nothing else. Returns null if the record is not in the hierarchy.
+	 */
+	Album resolve(int index) {
+		List<Integer> path = new ArrayList<>();
+		int i = index;
+		while (albums.get(i) == null) {
+			if (parents[i] < 0 || path.size() == numAlbums)
+				return null;
+			path.add(i);
+			i = parents[i];
+		}
+		Album album = albums.get(i);
+		for (int k = path.size() - 1; k >= 0 && album != null; --k) {
+			album.getSubAlbums();
+			album = albums.get(path.get(k));
+		}
+		return album;
+	}
+
+	// The rule of a smart album, or null if flags do not mark one, as AlbumSerializer.readRule.
+	private static ClipRule readRule(ByteBuffer b, int flags) throws IOException {
+		if ((flags & ~AlbumSerializer.FLAG_SMART) != 0)
+			throw new IOException("Corrupt AHL file: unknown album flags " + flags);
+		if ((flags & AlbumSerializer.FLAG_SMART) == 0)
+			return null;
+		String text = readString(b);
+		try {
+			return ClipRule.parse(text);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt AHL file: bad rule '" + text + "'", e);
+		}
+	}
+
+	private SoundClip clip(int id) {
+		if (clips[id] == null) {
+			ByteBuffer b = buffer.duplicate();
+			b.position(clipOffsets[id]);
+			String folder = folders[readIndex(b, folders.length)];
+			clips[id] = AlbumSerializer.makeClip(folder, readString(b));
+		}
+		return clips[id];
+	}
+
+	// A buffer positioned at the start of an album record.
+	private ByteBuffer record(int index) {
+		ByteBuffer b = buffer.duplicate();
+		b.position((int) buffer.getLong(indexStart + 8 * index));
+		return b;
+	}
+
+	private static int readVarint(ByteBuffer b) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int v = b.get();
+			value |= (v & 0x7F) << shift;
+			if ((v & 0x80) == 0) {
+				if (value < 0)
+					break;
+				return value;
+			}
+		}
+		throw new IllegalStateException("Bad length");
+	}
+
+	private static int readIndex(ByteBuffer b, int size) {
+		final int index = readVarint(b);
+		if (index >= size)
+			throw new IllegalStateException("Index " + index + " out of range");
+		return index;
+	}
+
+	private static void skipString(ByteBuffer b) {
+		final int len = readVarint(b);
+		b.position(b.position() + len);
+	}
+
+	private static String readString(ByteBuffer b) {
+		final int len = readVarint(b);
+		if (len > MAX_STRING_BYTES)
+			throw new IllegalStateException("String of " + len + " bytes");
+		byte[] bytes = new byte[len];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
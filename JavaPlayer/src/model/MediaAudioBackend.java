@@ -0,0 +1,71 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaException;
+import javafx.scene.media.MediaPlayer;
+
+/**
+ * Plays clips with a JavaFX MediaPlayer each. The player opens the file by
+ * itself, so data read ahead is not used.
+ */
+public class MediaAudioBackend implements AudioBackend {
+
+	private static class MediaVoice implements Voice {
+		private final MediaPlayer player;
+
+		MediaVoice(MediaPlayer player) {
+			this.player = player;
+		}
+
+		@Override
+		public void setOnEnd(Runnable onEnd) {
+			player.setOnEndOfMedia(onEnd);
+			player.setOnError(onEnd);
+		}
+
+		@Override
+		public void play() {
+			player.play();
+		}
+
+		@Override
+		public void pause() {
+			player.pause();
+		}
+
+		@Override
+		public void stop() {
+			player.stop();
+		}
+
+		@Override
+		public Throwable getError() {
+			return player.getError();
+		}
+
+		@Override
+		public void dispose(Runnable released) {
+			player.dispose();
+			released.run();
+		}
+	}
+
+	@Override
+	public Voice open(SoundClip clip, ByteBuffer data) throws IOException {
+		try
+		{
+			return new MediaVoice(new MediaPlayer(new Media(clip.getFile().toURI().toString())));
+		}
+		catch (MediaException e)
+		{
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,62 @@
+package model;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throws the audio away, for running without a sound card.
+ * In real time mode it takes as long as playing would; otherwise clips
+ * finish as fast as they can be mixed.
+ */
+public class NullAudioSink implements AudioSink {
+
+	private final boolean realTime;
+	private volatile long bytesWritten;
+	private int bytesPerSecond;
+	// Real time pacing: when the bytes since start are due to have played.
+	private long start;
+	private long pacedBytes;
+
+	public NullAudioSink(boolean realTime) {
+		this.realTime = realTime;
+	}
+
+	@Override
+	public void open(int sampleRate, int channels) {
+		bytesPerSecond = sampleRate * channels * 2;
+		start = System.nanoTime();
+		pacedBytes = 0;
+		bytesWritten = 0;
+	}
+
+	@Override
+	public void write(ByteBuffer pcm) {
+		int bytes = pcm.remaining();
+		pcm.position(pcm.limit());
+		bytesWritten += bytes;
+		if (realTime)
+		{
+			// A sound card that ran dry plays on from now, rather than letting
+			// the writer catch up on the time it was idle or late.
+			long now = System.nanoTime();
+			if (now > start + pacedBytes * 1_000_000_000L / bytesPerSecond)
+			{
+				start = now;
+				pacedBytes = 0;
+			}
+			pacedBytes += bytes;
+			long wait = start + pacedBytes * 1_000_000_000L / bytesPerSecond - now;
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+		}
+	}
+
+	// Bytes of audio written since open.
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,328 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PcmAudioBackend decodes WAV clips itself and mixes them into one stream of
+ * 16 bit stereo for an AudioSink, on a render thread of its own.
+ *
+ * A clip plays from the data read ahead for it, or else from the file mapped
+ * into memory, so opening one only parses its header. Clips of any sample
+ * rate are resampled to the output rate, and clips that overlap are mixed.
+ * With a crossfade set, a voice reports its end when it starts fading out,
+ * and the voice started after it fades in over the same time.
+ *
+ * Voices are only touched on the render thread: the Voice methods post
+ * commands to it. Once running, the render loop does not allocate.
+ */
+public class PcmAudioBackend implements AudioBackend {
+
+	public static final int DEFAULT_SAMPLE_RATE = 44100;
+	private static final int CHANNELS = 2;
+	private static final int CHUNK_FRAMES = 512; // Frames mixed per write, about 12 ms
+	private static final int MAX_VOICES = 16;
+
+	private final class PcmVoice implements Voice {
+		private final WavFile format;
+		private final ByteBuffer pcm;
+		private final long frames;
+		private final double step; // Source frames per output frame
+		private final long outFrames;
+		private volatile Runnable onEnd;
+		private volatile Throwable error;
+
+		// Only touched on the render thread.
+		private boolean active;
+		private boolean paused;
+		private boolean disposed;
+		private boolean endSignalled;
+		private Runnable released;
+		private double position;
+		private long rendered;
+		private long fadeInFrames;
+		private long fadeOutStart;
+
+		PcmVoice(WavFile format, ByteBuffer pcm) {
+			this.format = format;
+			this.pcm = pcm;
+			frames = format.getFrames();
+			step = (double) format.getSampleRate() / sampleRate;
+			outFrames = (long) Math.ceil(frames / step);
+		}
+
+		@Override
+		public void setOnEnd(Runnable onEnd) {
+			this.onEnd = onEnd;
+		}
+
+		@Override
+		public void play() {
+			post(() -> {
+				if (disposed)
+					return;
+				paused = false;
+				if (active)
+					return;
+				if (activeCount == MAX_VOICES)
+				{
+					error = new IOException("Too many clips playing at once");
+					signalEnd();
+					return;
+				}
+				// Fade in over a voice that is still playing.
+				fadeInFrames = activeCount > 0 ? crossfadeFrames : 0;
+				fadeOutStart = Math.max(0, outFrames - crossfadeFrames);
+				active = true;
+				voices[activeCount++] = this;
+			});
+		}
+
+		@Override
+		public void pause() {
+			post(() -> paused = true);
+		}
+
+		@Override
+		public void stop() {
+			post(() -> {
+				remove(this);
+				if (disposed)
+					release();
+			});
+		}
+
+		@Override
+		public Throwable getError() {
+			return error;
+		}
+
+		@Override
+		public void dispose(Runnable released) {
+			if (!post(() -> {
+				disposed = true;
+				this.released = released;
+				// A voice fading out finishes first, anything else stops now.
+				if (!active || paused || !endSignalled)
+				{
+					remove(this);
+					release();
+				}
+			}))
+				released.run();
+		}
+
+		private void release() {
+			Runnable r = released;
+			released = null;
+			if (r != null)
+				r.run();
+		}
+
+		private void signalEnd() {
+			if (endSignalled)
+				return;
+			endSignalled = true;
+			Runnable r = onEnd;
+			if (r != null)
+				r.run();
+		}
+
+		// Add up to count frames of this voice into mix. Returns false when it has ended.
+		boolean render(float[] mix, int count) {
+			final int channels = format.getChannels();
+			final int block = format.getBlockAlign();
+			final int bytes = format.getBitsPerSample() / 8;
+			for (int i = 0; i < count; ++i)
+			{
+				if (rendered >= fadeOutStart)
+					signalEnd();
+				int frame = (int) position;
+				if (frame >= frames || rendered >= outFrames)
+					return false;
+				float frac = (float) (position - frame);
+				int next = frame + 1 < frames ? frame + 1 : frame;
+				int a = frame * block, b = next * block;
+				float left = sample(a) + (sample(b) - sample(a)) * frac;
+				float right = left;
+				if (channels > 1)
+					right = sample(a + bytes) + (sample(b + bytes) - sample(a + bytes)) * frac;
+				float gain = 1f;
+				if (rendered < fadeInFrames)
+					gain = (float) rendered / fadeInFrames;
+				if (rendered >= fadeOutStart && crossfadeFrames > 0)
+					gain = Math.min(gain, (float) (outFrames - rendered) / (outFrames - fadeOutStart));
+				mix[2 * i] += left * gain;
+				mix[2 * i + 1] += right * gain;
+				position += step;
+				++rendered;
+			}
+			return true;
+		}
+
+		private float sample(int offset) {
+			switch (format.getBitsPerSample())
+			{
+			case 8:
+				return ((pcm.get(offset) & 0xff) - 128) / 128f;
+			case 16:
+				return pcm.getShort(offset) / 32768f;
+			case 24:
+				return ((pcm.get(offset) & 0xff) | (pcm.get(offset + 1) & 0xff) << 8 | pcm.get(offset + 2) << 16) / 8388608f;
+			default:
+				return format.isFloating() ? pcm.getFloat(offset) : pcm.getInt(offset) / 2147483648f;
+			}
+		}
+	}
+
+	private final AudioSink sink;
+	private final int sampleRate;
+	private volatile int crossfadeFrames;
+	private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+	private final Thread renderThread;
+	private volatile boolean running = true;
+
+	// Only touched on the render thread.
+	private final PcmVoice[] voices = new PcmVoice[MAX_VOICES];
+	private int activeCount;
+	private final float[] mix = new float[CHUNK_FRAMES * CHANNELS];
+	private final ByteBuffer out = ByteBuffer.allocate(CHUNK_FRAMES * CHANNELS * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+	public PcmAudioBackend(AudioSink sink) throws IOException {
+		this(sink, DEFAULT_SAMPLE_RATE);
+	}
+
+	/**
+	 * Mix at sampleRate into sink, which is opened here.
+	 */
+	public PcmAudioBackend(AudioSink sink, int sampleRate) throws IOException {
+		this.sink = sink;
+		this.sampleRate = sampleRate;
+		sink.open(sampleRate, CHANNELS);
+		renderThread = new Thread(this::renderLoop, "PcmAudioBackend");
+		renderThread.setDaemon(true);
+		renderThread.setPriority(Thread.MAX_PRIORITY);
+		renderThread.start();
+	}
+
+	/**
+	 * Overlap consecutive clips by this long. 0 turns crossfading off.
+	 */
+	public void setCrossfade(long millis) {
+		assert millis >= 0;
+		crossfadeFrames = (int) (millis * sampleRate / 1000);
+	}
+
+	@Override
+	public Voice open(SoundClip clip, ByteBuffer data) throws IOException {
+		ByteBuffer file = data;
+		if (file == null)
+		{
+			// The mapping stays valid after the channel is closed.
+			try (FileChannel ch = FileChannel.open(clip.getFile().toPath(), StandardOpenOption.READ))
+			{
+				file = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			}
+		}
+		WavFile format = WavFile.parse(file);
+		ByteBuffer pcm = file.slice(file.position() + (int) format.getDataOffset(), (int) format.getDataLength());
+		return new PcmVoice(format, pcm.order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(renderThread);
+	}
+
+	// Run task on the render thread. Returns false if the backend is closed.
+	private boolean post(Runnable task) {
+		if (!running)
+			return false;
+		commands.add(task);
+		LockSupport.unpark(renderThread);
+		return true;
+	}
+
+	private void remove(PcmVoice voice) {
+		if (!voice.active)
+			return;
+		voice.active = false;
+		for (int i = 0; i < activeCount; ++i)
+		{
+			if (voices[i] == voice)
+			{
+				voices[i] = voices[--activeCount];
+				voices[activeCount] = null;
+				return;
+			}
+		}
+	}
+
+	private void renderLoop() {
+		try
+		{
+			while (running)
+			{
+				Runnable command;
+				while ((command = commands.poll()) != null)
+					command.run();
+				if (!anyPlaying())
+				{
+					LockSupport.park(this);
+					continue;
+				}
+				Arrays.fill(mix, 0f);
+				for (int i = 0; i < activeCount; )
+				{
+					PcmVoice v = voices[i];
+					if (v.paused || v.render(mix, CHUNK_FRAMES))
+					{
+						++i;
+						continue;
+					}
+					v.signalEnd();
+					remove(v);
+					if (v.disposed)
+						v.release();
+				}
+				out.clear();
+				for (float s : mix)
+					out.putShort((short) (Math.max(-1f, Math.min(1f, s)) * 32767));
+				out.flip();
+				while (out.hasRemaining())
+					sink.write(out);
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Audio output failed: " + e.getMessage());
+		}
+		running = false;
+		// Let everyone waiting for a voice know it is over.
+		for (int i = 0; i < activeCount; ++i)
+		{
+			voices[i].error = new IOException("Audio output closed");
+			voices[i].signalEnd();
+			voices[i].release();
+		}
+		activeCount = 0;
+		sink.close();
+	}
+
+	private boolean anyPlaying() {
+		for (int i = 0; i < activeCount; ++i)
+		{
+			if (!voices[i].paused)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,96 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A SoundClip that is ready to play: its voice is opened on the backend,
+ * and if the BufferPool had room its bytes are read into memory.
+ * Whoever holds a PreparedClip must close it, which disposes the voice and
+ * gives the buffer back once the backend is done with it.
+ */
+class PreparedClip implements AutoCloseable {
+
+	private final SoundClip clip;
+	private final AudioBackend.Voice voice;
+	private final BufferPool pool;
+	private ByteBuffer data;
+	private boolean closed;
+
+	private PreparedClip(SoundClip clip, AudioBackend.Voice voice, ByteBuffer data, BufferPool pool) {
+		this.clip = clip;
+		this.voice = voice;
+		this.data = data;
+		this.pool = pool;
+	}
+
+	/**
+	 * Open clip for playing on backend. With a pool, first read the whole file
+	 * into a buffer from it when it fits.
+	 */
+	static PreparedClip open(SoundClip clip, BufferPool pool, AudioBackend backend) throws IOException {
+		ByteBuffer data = pool != null ? read(clip, pool) : null;
+		try
+		{
+			AudioBackend.Voice voice = backend.open(clip, data != null ? data.asReadOnlyBuffer() : null);
+			return new PreparedClip(clip, voice, data, pool);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			if (data != null)
+				pool.release(data);
+			throw e;
+		}
+	}
+
+	private static ByteBuffer read(SoundClip clip, BufferPool pool) {
+		try (FileChannel ch = FileChannel.open(clip.getFile().toPath(), StandardOpenOption.READ))
+		{
+			long size = ch.size();
+			if (size > Integer.MAX_VALUE)
+				return null;
+			ByteBuffer buffer = pool.acquire((int) size);
+			if (buffer == null)
+				return null;
+			try
+			{
+				while (buffer.hasRemaining() && ch.read(buffer) >= 0)
+					;
+			}
+			catch (IOException e)
+			{
+				pool.release(buffer);
+				throw e;
+			}
+			buffer.flip();
+			return buffer;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	SoundClip getClip() {
+		return clip;
+	}
+
+	AudioBackend.Voice getVoice() {
+		return voice;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		final ByteBuffer d = data;
+		data = null;
+		voice.dispose(() -> {
+			if (d != null)
+				pool.release(d);
+		});
+	}
+}
@@ -0,0 +1,62 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ScanDelta is the result of rescanning a library folder against a
+ * SoundClipIndex: the clips that appeared, disappeared or changed on disk
+ * since the index was last updated.
+ */
+public class ScanDelta {
+
+	private final List<SoundClip> added;
+	private final List<SoundClip> removed;
+	private final List<SoundClip> modified;
+	private final long foldersUnchanged;
+	private final ScanStatistics statistics;
+
+	public ScanDelta(Collection<SoundClip> added, Collection<SoundClip> removed, Collection<SoundClip> modified,
+			long foldersUnchanged, ScanStatistics statistics) {
+		this.added = Collections.unmodifiableList(new ArrayList<>(added));
+		this.removed = Collections.unmodifiableList(new ArrayList<>(removed));
+		this.modified = Collections.unmodifiableList(new ArrayList<>(modified));
+		this.foldersUnchanged = foldersUnchanged;
+		this.statistics = statistics;
+	}
+
+	// Clips found on disk that were not in the index.
+	public List<SoundClip> getAdded() {
+		return added;
+	}
+
+	// Clips in the index that are no longer on disk.
+	public List<SoundClip> getRemoved() {
+		return removed;
+	}
+
+	// Clips whose size or modification time changed.
+	public List<SoundClip> getModified() {
+		return modified;
+	}
+
+	// Number of folders skipped because their modification time was unchanged.
+	public long getFoldersUnchanged() {
+		return foldersUnchanged;
+	}
+
+	public ScanStatistics getStatistics() {
+		return statistics;
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+	}
+
+	public String toString() {
+		return "+" + added.size() + " -" + removed.size() + " ~" + modified.size()
+				+ " clips, " + foldersUnchanged + " folders unchanged";
+	}
+}
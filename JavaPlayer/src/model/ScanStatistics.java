@@ -0,0 +1,67 @@
+package model;
+
+/**
+ * ScanStatistics describes one run of the SoundClipScanner: how much of the
+ * folder tree was visited, how many clips were found and where the time went.
+ */
+public class ScanStatistics {
+
+	private final long directoriesVisited;
+	private final long filesFound;
+	private final long statCalls;
+	private final long statNanos;
+	private final long errors;
+	private final long elapsedNanos;
+
+	public ScanStatistics(long directoriesVisited, long filesFound, long statCalls,
+			long statNanos, long errors, long elapsedNanos) {
+		this.directoriesVisited = directoriesVisited;
+		this.filesFound = filesFound;
+		this.statCalls = statCalls;
+		this.statNanos = statNanos;
+		this.errors = errors;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	// Number of folders that were listed.
+	public long getDirectoriesVisited() {
+		return directoriesVisited;
+	}
+
+	// Number of .WAV files handed to the consumer.
+	public long getFilesFound() {
+		return filesFound;
+	}
+
+	// Number of attribute lookups (stat calls) made on folder entries.
+	public long getStatCalls() {
+		return statCalls;
+	}
+
+	// Time spent in stat calls, summed over all worker threads.
+	public long getStatMillis() {
+		return statNanos / 1_000_000;
+	}
+
+	// Number of folders that could not be read.
+	public long getErrors() {
+		return errors;
+	}
+
+	// Wall clock time of the whole scan.
+	public long getElapsedMillis() {
+		return elapsedNanos / 1_000_000;
+	}
+
+	public double getFilesPerSecond() {
+		if (elapsedNanos <= 0)
+			return 0;
+		return filesFound * 1e9 / elapsedNanos;
+	}
+
+	public String toString() {
+		return String.format("%d clips in %d folders, %d ms (%.0f files/s), %d stat calls taking %d ms, %d errors",
+				filesFound, directoriesVisited, getElapsedMillis(), getFilesPerSecond(),
+				statCalls, getStatMillis(), errors);
+	}
+}
@@ -0,0 +1,472 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SearchIndex finds clips and albums by a piece of their name.
+ *
+ * Clip file names, the folders clips are in and album names are kept in
+ * inverted indexes: every three characters of a name (a trigram) list the
+ * names that contain them, and every word lists the names that have it. A
+ * query of three characters or more only checks the names on the shortest
+ * list of its trigrams; a shorter one matches the start of words. Removed and
+ * renamed names stay on the lists until there are more of them than live
+ * ones, and are skipped by the check.
+ *
+ * Added as a listener to an album, normally the root, the index follows its
+ * songs. Albums are added and removed by whoever changes them. The albums of
+ * an AHL file that were not decoded yet are indexed by their record in the
+ * file, and only decoded when a search finds them. All methods are thread
+ * safe, and searches run alongside each other.
+ */
+public class SearchIndex implements AlbumListener {
+
+	/**
+	 * What a search found, clips by name first and then those in matching folders.
+	 */
+	public static class Result {
+		private final String query;
+		private final List<SoundClip> clips;
+		private final List<Album> albums;
+		private final boolean truncated;
+		private final long nanos;
+
+		Result(String query, List<SoundClip> clips, List<Album> albums, boolean truncated, long nanos) {
+			this.query = query;
+			this.clips = clips;
+			this.albums = albums;
+			this.truncated = truncated;
+			this.nanos = nanos;
+		}
+
+		public String getQuery() {
+			return query;
+		}
+
+		public List<SoundClip> getClips() {
+			return clips;
+		}
+
+		public List<Album> getAlbums() {
+			return albums;
+		}
+
+		/**
+		 * True if there were more matches than the limit.
+		 */
+		public boolean isTruncated() {
+			return truncated;
+		}
+
+		public double getMillis() {
+			return nanos / 1e6;
+		}
+
+		public String toString() {
+			return String.format("%d%s clips and %d albums in %.2f ms", clips.size(), truncated ? "+" : "", albums.size(), getMillis());
+		}
+	}
+
+	// A list of ids, in the order they were added.
+	private static class Postings {
+		int[] ids = new int[4];
+		int size;
+
+		// Ids of one name are added together, so a repeat is always the last one.
+		void addOnce(int id) {
+			if (size > 0 && ids[size - 1] == id)
+				return;
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+	}
+
+	// Receives the ids of matching names, returns false to stop.
+	private interface Matches {
+		boolean add(int id);
+	}
+
+	// Lowercase names by id, with their trigram and word lists.
+	private static class Terms {
+		private String[] names = new String[1024]; // null if removed
+		private int live;
+		private int stale; // Entries on the lists for removed or replaced names
+		private final Map<Long, Postings> trigrams = new HashMap<>();
+		private final NavigableMap<String, Postings> words = new TreeMap<>();
+
+		// Returns false if id already had that name.
+		boolean put(int id, String name) {
+			if (id >= names.length)
+				names = Arrays.copyOf(names, Math.max(id + 1, names.length * 2));
+			String lower = name.toLowerCase(Locale.ROOT);
+			if (names[id] != null) {
+				if (names[id].equals(lower))
+					return false;
+				--live;
+				++stale;
+			}
+			names[id] = lower;
+			++live;
+			for (int i = 0; i + 3 <= lower.length(); ++i)
+				trigrams.computeIfAbsent(trigram(lower, i), k -> new Postings()).addOnce(id);
+			for (int start = 0; start < lower.length();) {
+				int end = wordEnd(lower, start);
+				if (end > start)
+					words.computeIfAbsent(lower.substring(start, end), k -> new Postings()).addOnce(id);
+				start = end + 1;
+			}
+			return true;
+		}
+
+		void remove(int id) {
+			if (id >= names.length || names[id] == null)
+				return;
+			names[id] = null;
+			--live;
+			++stale;
+			if (stale > live && stale > 1024)
+				rebuild();
+		}
+
+		boolean contains(int id) {
+			return id < names.length && names[id] != null;
+		}
+
+		void clear() {
+			names = new String[1024];
+			live = 0;
+			stale = 0;
+			trigrams.clear();
+			words.clear();
+		}
+
+		// Drop the stale entries by indexing the live names again.
+		private void rebuild() {
+			String[] old = names;
+			clear();
+			names = new String[old.length];
+			for (int id = 0; id < old.length; ++id) {
+				if (old[id] != null)
+					put(id, old[id]);
+			}
+		}
+
+		// Hand the ids of the names matching q (lowercase) to matches, each once.
+		void find(String q, Matches matches) {
+			BitSet seen = stale > 0 || q.length() < 3 ? new BitSet() : null;
+			if (q.length() >= 3) {
+				Postings shortest = null;
+				for (int i = 0; i + 3 <= q.length(); ++i) {
+					Postings p = trigrams.get(trigram(q, i));
+					if (p == null)
+						return; // No name has all of q's trigrams.
+					if (shortest == null || p.size < shortest.size)
+						shortest = p;
+				}
+				for (int i = 0; i < shortest.size; ++i) {
+					int id = shortest.ids[i];
+					String name = names[id];
+					if (name != null && name.contains(q) && (seen == null || !seen.get(id))) {
+						if (seen != null)
+							seen.set(id);
+						if (!matches.add(id))
+							return;
+					}
+				}
+			} else {
+				// Every word starting with q, e.g. "dr" gives "drum" and "drums".
+				for (Postings p : words.subMap(q, true, q + Character.MAX_VALUE, false).values()) {
+					for (int i = 0; i < p.size; ++i) {
+						int id = p.ids[i];
+						if (names[id] != null && !seen.get(id) && hasWordStarting(names[id], q)) {
+							seen.set(id);
+							if (!matches.add(id))
+								return;
+						}
+					}
+				}
+			}
+		}
+
+		private static boolean hasWordStarting(String name, String q) {
+			for (int start = 0; start < name.length();) {
+				int end = wordEnd(name, start);
+				if (name.startsWith(q, start) && end - start >= q.length())
+					return true;
+				start = end + 1;
+			}
+			return false;
+		}
+
+		private static int wordEnd(String s, int start) {
+			int end = start;
+			while (end < s.length() && Character.isLetterOrDigit(s.charAt(end)))
+				++end;
+			return end;
+		}
+
+		private static long trigram(String s, int i) {
+			return (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+		}
+	}
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final SoundClipRegistry registry = SoundClipRegistry.getDefault();
+	private final Terms clipNames = new Terms();
+	private final Terms folders = new Terms();
+	private final Terms albumNames = new Terms();
+	private final Map<Integer, Postings> clipsByFolder = new HashMap<>();
+	private final Map<Integer, Album> albumsById = new HashMap<>();
+	private final Terms recordNames = new Terms(); // Albums not made yet, by record in mapped.
+	private MappedHierarchy mapped;
+
+	@Override
+	public void songsAdded(Album album, List<SoundClip> songs) {
+		addClips(songs);
+	}
+
+	@Override
+	public void songsRemoved(Album album, List<SoundClip> songs) {
+		removeClips(songs);
+	}
+
+	public void addClips(Collection<SoundClip> clips) {
+		Lock w = lock.writeLock();
+		w.lock();
+		try {
+			for (SoundClip clip : clips) {
+				final int id = clip.getId();
+				if (!clipNames.put(id, registry.getName(id)))
+					continue;
+				final int folder = registry.getFolderId(id);
+				if (!folders.contains(folder))
+					folders.put(folder, registry.getFolder(folder));
+				clipsByFolder.computeIfAbsent(folder, k -> new Postings()).addOnce(id);
+			}
+		} finally {
+			w.unlock();
+		}
+	}
+
+	public void removeClips(Collection<SoundClip> clips) {
+		Lock w = lock.writeLock();
+		w.lock();
+		try {
+			// Folders stay on file, their clips are checked when they match.
+			for (SoundClip clip : clips)
+				clipNames.remove(clip.getId());
+		} finally {
+			w.unlock();
+		}
+	}
+
+	/**
+	 * Index the name of album and of the albums below it. Also used after
+	 * a rename.
+	 */
+	public void addAlbum(Album album) {
+		Lock w = lock.writeLock();
+		w.lock();
+		try {
+			addAlbumTree(album);
+		} finally {
+			w.unlock();
+		}
+	}
+
+	/**
+	 * Forget album and the albums below it.
+	 */
+	public void removeAlbum(Album album) {
+		Lock w = lock.writeLock();
+		w.lock();
+		try {
+			removeAlbumTree(album);
+		} finally {
+			w.unlock();
+		}
+	}
+
+	public void clear() {
+		Lock w = lock.writeLock();
+		w.lock();
+		try {
+			clipNames.clear();
+			folders.clear();
+			albumNames.clear();
+			clipsByFolder.clear();
+			albumsById.clear();
+			recordNames.clear();
+			if (mapped != null)
+				mapped.setDecodeListener(null);
+			mapped = null;
+		} finally {
+			w.unlock();
+		}
+	}
+
+	public int getClipCount() {
+		Lock r = lock.readLock();
+		r.lock();
+		try {
+			return clipNames.live;
+		} finally {
+			r.unlock();
+		}
+	}
+
+	/**
+	 * Returns up to limit clips and albums whose name contains query, ignoring
+	 * case, and the clips in folders whose path contains it. Queries shorter
+	 * than three characters match the start of words instead. Clips are in the
+	 * order they were indexed.
+	 * Albums found in a file are decoded down to them, so call this where the
+	 * albums may be read.
+	 */
+	public Result search(String query, int limit) {
+		final long start = System.nanoTime();
+		final String q = query.trim().toLowerCase(Locale.ROOT);
+		List<SoundClip> clips = new ArrayList<>();
+		List<Album> albums = new ArrayList<>();
+		boolean[] truncated = { false };
+		if (q.isEmpty())
+			return new Result(query, clips, albums, false, 0);
+
+		List<Integer> records = new ArrayList<>();
+		MappedHierarchy source;
+		Lock r = lock.readLock();
+		r.lock();
+		try {
+			albumNames.find(q, id -> {
+				if (albums.size() == limit)
+					return false;
+				albums.add(albumsById.get(id));
+				return true;
+			});
+			recordNames.find(q, index -> {
+				if (albums.size() + records.size() == limit)
+					return false;
+				records.add(index);
+				return true;
+			});
+			source = mapped;
+			BitSet found = new BitSet();
+			clipNames.find(q, id -> {
+				if (clips.size() == limit) {
+					truncated[0] = true;
+					return false;
+				}
+				found.set(id);
+				clips.add(registry.get(id));
+				return true;
+			});
+			if (!truncated[0]) {
+				folders.find(q, folder -> {
+					Postings p = clipsByFolder.get(folder);
+					for (int i = 0; p != null && i < p.size; ++i) {
+						final int id = p.ids[i];
+						if (found.get(id) || !clipNames.contains(id))
+							continue;
+						if (clips.size() == limit) {
+							truncated[0] = true;
+							return false;
+						}
+						found.set(id);
+						clips.add(registry.get(id));
+					}
+					return true;
+				});
+			}
+		} finally {
+			r.unlock();
+		}
+		// Not under the lock, decoding tells albumDecoded of the new albums.
+		for (int index : records) {
+			Album album = source.resolve(index);
+			if (album != null)
+				albums.add(album);
+		}
+		return new Result(query, clips, albums, truncated[0], System.nanoTime() - start);
+	}
+
+	private void addAlbumTree(Album album) {
+		albumNames.put(album.getId(), album.getAlbumName());
+		albumsById.put(album.getId(), album);
+		MappedHierarchy source = album.getLazySource();
+		if (source != null && (mapped == null || mapped == source)) {
+			if (mapped == null) {
+				mapped = source;
+				source.setDecodeListener(this::albumDecoded);
+			}
+			addRecords(album.getLazyIndex());
+		} else {
+			for (Album a : album.getSubAlbums())
+				addAlbumTree(a);
+		}
+	}
+
+	private void removeAlbumTree(Album album) {
+		albumNames.remove(album.getId());
+		albumsById.remove(album.getId());
+		MappedHierarchy source = album.getLazySource();
+		if (source != null && source == mapped) {
+			removeRecords(album.getLazyIndex());
+		} else {
+			for (Album a : album.getSubAlbums())
+				removeAlbumTree(a);
+		}
+	}
+
+	// The albums below a record of mapped, read from the file where they were not made yet.
+	private void addRecords(int index) {
+		mapped.forEachSubAlbum(index, sub -> {
+			Album album = mapped.getAlbum(sub);
+			if (album != null) {
+				addAlbumTree(album);
+			} else {
+				recordNames.put(sub, mapped.getName(sub));
+				addRecords(sub);
+			}
+		});
+	}
+
+	private void removeRecords(int index) {
+		mapped.forEachSubAlbum(index, sub -> {
+			Album album = mapped.getAlbum(sub);
+			if (album != null) {
+				removeAlbumTree(album);
+			} else {
+				recordNames.remove(sub);
+				removeRecords(sub);
+			}
+		});
+	}
+
+	// An album of mapped was decoded into album and its subalbums. Index sub by
+	// its id instead of its record, unless album was removed.
+	private void albumDecoded(Album album, Album sub) {
+		Lock w = lock.writeLock();
+		w.lock();
+		try {
+			if (sub.getLazySource() != mapped || !albumsById.containsKey(album.getId()))
+				return;
+			recordNames.remove(sub.getLazyIndex());
+			albumNames.put(sub.getId(), sub.getAlbumName());
+			albumsById.put(sub.getId(), sub);
+		} finally {
+			w.unlock();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SmartAlbums keeps track of the smart albums of a hierarchy, so they can be
+ * checked again when what their rules look at changes, without walking the
+ * whole tree.
+ *
+ * Songs added to the parent of a smart album reach it through the album
+ * itself; refresh is for clips whose length or size became known or changed.
+ * Not thread safe, use it from the thread that changes the albums.
+ */
+public class SmartAlbums {
+
+	// In the order they were added, so a smart album inside another comes after it.
+	private final Set<Album> albums = new LinkedHashSet<>();
+
+	/**
+	 * Returns the smart albums in album's tree, album included, parents first.
+	 * Of a lazily loaded tree, only the albums above smart albums are decoded.
+	 */
+	public static List<Album> find(Album album) {
+		List<Album> result = new ArrayList<>();
+		collect(album, result);
+		return result;
+	}
+
+	/**
+	 * Activate a smart album and keep track of it. Add an album after the
+	 * smart albums it is in.
+	 */
+	public void add(Album album) {
+		album.activateRule();
+		albums.add(album);
+	}
+
+	/**
+	 * Forget the smart albums in a tree that was removed.
+	 */
+	public void removeTree(Album album) {
+		albums.remove(album);
+		if (!mayHoldSmart(album))
+			return;
+		for (Album a : album.getSubAlbums())
+			removeTree(a);
+	}
+
+	public void clear() {
+		albums.clear();
+	}
+
+	public int size() {
+		return albums.size();
+	}
+
+	/**
+	 * Check clips against the rules that use clip info again. Returns the
+	 * albums that changed.
+	 */
+	public List<Album> refresh(Collection<SoundClip> clips) {
+		List<Album> changed = new ArrayList<>();
+		for (Album album : albums) {
+			if (!album.getRule().usesClipInfo())
+				continue;
+			Album parent = album.getParentAlbum();
+			List<SoundClip> candidates = new ArrayList<>();
+			for (SoundClip clip : clips) {
+				if (parent.containsSong(clip))
+					candidates.add(clip);
+			}
+			if (!candidates.isEmpty() && album.reapplyRule(candidates))
+				changed.add(album);
+		}
+		return changed;
+	}
+
+	private static void collect(Album album, List<Album> result) {
+		if (album.isSmart())
+			result.add(album);
+		if (!mayHoldSmart(album))
+			return;
+		for (Album a : album.getSubAlbums())
+			collect(a, result);
+	}
+
+	// False if album was not decoded yet and its file has no smart album below it.
+	private static boolean mayHoldSmart(Album album) {
+		MappedHierarchy source = album.getLazySource();
+		return source == null || source.hasSmartBelow(album.getLazyIndex());
+	}
+}
@@ -1,19 +1,20 @@
 package model;
 import static org.junit.Assert.*;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 
 /**
  * SoundClip is a class representing a digital
  * sound clip file on disk.
+ * The path is kept in the SoundClipRegistry, the clip itself only holds its id.
+ * SoundClips made for the same file share an id and are equal; albums always
+ * hold the instance registered for the id.
  */
 public class SoundClip
 {
-	private final File file;
-	private ArrayList<Album> albums;
+	private final int id;
+	private LinkedHashSet<Album> albums; // Created on demand, only on the registered instance.
 	
 	/**
 	 * Make a SoundClip from a file.
@@ -21,37 +22,54 @@ public class SoundClip
 	 */
 	public SoundClip(File inFile) {
 		assertNotNull(inFile);
-		file = inFile;
-		albums = new ArrayList<Album>();
+		id = SoundClipRegistry.getDefault().register(inFile);
+	}
+	
+	// The registered instance, made by the registry.
+	SoundClip(int inId) {
+		id = inId;
 	}
 
 	/**
 	 * @return the file containing this sound clip.
 	 */
 	public File getFile() {
-		return file;
+		return SoundClipRegistry.getDefault().getFile(id);
+	}
+	
+	/**
+	 * @return the dense id of this clip's file, see SoundClipRegistry.
+	 */
+	public int getId() {
+		return id;
 	}
 	
 	public String toString(){
-		return file.getName();
+		return SoundClipRegistry.getDefault().getName(id);
 	}
 	
 	@Override
 	public boolean equals(Object obj) {
 		return 
 			obj instanceof SoundClip
-			&& ((SoundClip)obj).file.equals(file);
+			&& ((SoundClip)obj).id == id;
 	}
 	
 	@Override
 	public int hashCode() {
-		return file.hashCode();
+		return id;
+	}
+	
+	// The instance registered for this clip's file.
+	SoundClip registered() {
+		return SoundClipRegistry.getDefault().get(id);
 	}
 	
 	// Grab list of albums this song is in.
 	public ArrayList<Album> getAlbums()
 	{
-		return new ArrayList<Album>(albums);
+		SoundClip r = registered();
+		return r.albums==null ? new ArrayList<Album>() : new ArrayList<Album>(r.albums);
 	}
 	
 	// Add or remove this song from album, DO NOT ACCESS THIS DIRECTLY!
@@ -59,27 +77,13 @@ public class SoundClip
 	public void addAlbum(Album a)
 	{
 		assertNotNull(a);
-		assertFalse(albums.contains(a));
-		
-		albums.add(a);
+		if(albums==null)
+			albums = new LinkedHashSet<Album>();
+		assertTrue(albums.add(a));
 	}
 	public void removeAlbum(Album a)
 	{
 		assertNotNull(a);
-		assertTrue(albums.contains(a));
-		
-		albums.remove(a);
-	}
-	
-	// Serializer
-	public void serializeOut(OutputStream ar) throws IOException
-	{
-		Album.serializeString(ar, file.toString());
-	}
-	
-	public static SoundClip serializeIn(InputStream ar) throws IOException
-	{
-		String clipName = Album.serializeString(ar);
-		return new SoundClip(new File(clipName));
+		assertTrue(albums!=null && albums.remove(a));
 	}
 }
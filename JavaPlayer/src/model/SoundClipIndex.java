@@ -0,0 +1,169 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * SoundClipIndex remembers what a library folder tree looked like the last
+ * time it was scanned: for every folder its modification time, its subfolders
+ * and the size and modification time of each .WAV file in it.
+ * SoundClipScanner.rescan uses it to skip folders that have not changed, and
+ * the index can be stored on disk between runs of the program.
+ */
+public class SoundClipIndex {
+
+	private static final int MAGIC = 0x53434958; // "SCIX"
+	private static final int VERSION = 1;
+
+	// What we know about one folder, keyed by its absolute path.
+	static class FolderEntry {
+		final long mtime;
+		final String[] subFolders;
+		final String[] clipNames;
+		final long[] clipSizes;
+		final long[] clipTimes;
+
+		FolderEntry(long mtime, String[] subFolders, String[] clipNames, long[] clipSizes, long[] clipTimes) {
+			this.mtime = mtime;
+			this.subFolders = subFolders;
+			this.clipNames = clipNames;
+			this.clipSizes = clipSizes;
+			this.clipTimes = clipTimes;
+		}
+	}
+
+	private final Map<String, FolderEntry> folders = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the file the index for a library folder is stored in by default,
+	 * somewhere below the user's home folder.
+	 */
+	public static Path defaultLocation(String libraryPath) {
+		String key = Integer.toHexString(Paths.get(libraryPath).toAbsolutePath().normalize().toString().hashCode());
+		return Paths.get(System.getProperty("user.home"), ".musicorganizer", "index-" + key + ".idx");
+	}
+
+	/**
+	 * Read an index from disk. Returns an empty index if the file does not
+	 * exist or cannot be read, so that the next scan simply starts cold.
+	 */
+	public static SoundClipIndex load(Path file) {
+		SoundClipIndex index = new SoundClipIndex();
+		if (!Files.isRegularFile(file))
+			return index;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return index;
+			final int numFolders = in.readInt();
+			for (int i = 0; i < numFolders; ++i) {
+				String path = in.readUTF();
+				long mtime = in.readLong();
+				String[] subFolders = new String[in.readInt()];
+				for (int j = 0; j < subFolders.length; ++j)
+					subFolders[j] = in.readUTF();
+				final int numClips = in.readInt();
+				String[] names = new String[numClips];
+				long[] sizes = new long[numClips];
+				long[] times = new long[numClips];
+				for (int j = 0; j < numClips; ++j) {
+					names[j] = in.readUTF();
+					sizes[j] = in.readLong();
+					times[j] = in.readLong();
+				}
+				index.folders.put(path, new FolderEntry(mtime, subFolders, names, sizes, times));
+			}
+		} catch (IOException e) {
+			System.out.println("Ignoring unreadable clip index " + file + ": " + e.getMessage());
+			index.folders.clear();
+		}
+		return index;
+	}
+
+	/**
+	 * Write the index to disk. The file is replaced atomically, so a crash
+	 * while saving leaves the previous index intact.
+	 */
+	public void save(Path file) throws IOException {
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(folders.size());
+			for (Map.Entry<String, FolderEntry> e : folders.entrySet()) {
+				FolderEntry f = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(f.mtime);
+				out.writeInt(f.subFolders.length);
+				for (String s : f.subFolders)
+					out.writeUTF(s);
+				out.writeInt(f.clipNames.length);
+				for (int i = 0; i < f.clipNames.length; ++i) {
+					out.writeUTF(f.clipNames[i]);
+					out.writeLong(f.clipSizes[i]);
+					out.writeLong(f.clipTimes[i]);
+				}
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Returns the clips the index knows about below a library folder,
+	 * without touching the disk.
+	 */
+	public List<SoundClip> getClips(Path root) {
+		List<SoundClip> clips = new ArrayList<>();
+		Deque<Path> pending = new ArrayDeque<>();
+		pending.push(root.toAbsolutePath().normalize());
+		while (!pending.isEmpty()) {
+			Path folder = pending.pop();
+			FolderEntry entry = folders.get(folder.toString());
+			if (entry == null)
+				continue;
+			for (String name : entry.clipNames)
+				clips.add(new SoundClip(folder.resolve(name).toFile()));
+			for (String sub : entry.subFolders)
+				pending.push(folder.resolve(sub));
+		}
+		return clips;
+	}
+
+	// Number of folders in the index.
+	public int size() {
+		return folders.size();
+	}
+
+	FolderEntry get(Path folder) {
+		return folders.get(folder.toString());
+	}
+
+	void put(Path folder, FolderEntry entry) {
+		folders.put(folder.toString(), entry);
+	}
+
+	// Forget a folder and everything below it, reporting its clips to removed.
+	void removeTree(Path folder, Consumer<SoundClip> removed) {
+		FolderEntry entry = folders.remove(folder.toString());
+		if (entry == null)
+			return;
+		for (String name : entry.clipNames)
+			removed.accept(new SoundClip(folder.resolve(name).toFile()));
+		for (String sub : entry.subFolders)
+			removeTree(folder.resolve(sub), removed);
+	}
+}
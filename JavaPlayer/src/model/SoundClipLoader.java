@@ -1,16 +1,26 @@
 package model;
 
-import java.io.File;
-import java.io.FileFilter;
-import java.io.FilenameFilter;
-import java.util.HashSet;
+import java.nio.file.Paths;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * SoundClipLoader finds sound clip files on disk.
  */
 public class SoundClipLoader {
 
+	private static SoundClipScanner scanner;
+	private static volatile ClipInfoExtractor infoExtractor;
+
+	/**
+	 * Hand every clip that is found, or changed since the last scan, to
+	 * extractor, so their ClipInfo is read in the background. null stops it.
+	 */
+	public static void setInfoExtractor(ClipInfoExtractor extractor) {
+		infoExtractor = extractor;
+	}
+
 	/**
 	 * Returns a set of sound clips representing all .WAV files under a given 
 	 * folder (including subfolders as well).
@@ -19,49 +29,55 @@ public class SoundClipLoader {
 	 * returns an empty set.
 	 */
 	public static Set<SoundClip> loadSoundClips(String path) {
-		assert path!=null && path!="";
-		Set<SoundClip> set = new HashSet<SoundClip>();
-
-		if (path == null) return set;
-
-		File f = new File(path);
-		if (!f.isDirectory()) return set;
-
-		addSoundClipsToSet(f, set);
+		Set<SoundClip> set = ConcurrentHashMap.newKeySet();
+		ScanStatistics stats = loadSoundClips(path, set::add);
+		System.out.println("Loaded " + stats);
 		return set;
 	}
 
-	// Find all WAV files in folder and its sub folders and add them to set.
-	// Requires folder to be an actual folder on disk and set != null.
-	private static void addSoundClipsToSet(File folder, Set<SoundClip> set) {
-		for (File f : findWAVFiles(folder)) {
-			System.out.println("Loading... " + f.getAbsolutePath());
-			set.add(new SoundClip(f));
+	/**
+	 * Streams all .WAV files under a given folder (including subfolders) to
+	 * sink as they are found, and returns statistics about the scan.
+	 * Note that sink is called from several threads at once.
+	 * If path does not correspond to an actual folder in the filesystem,
+	 * sink is never called.
+	 */
+	public static ScanStatistics loadSoundClips(String path, Consumer<SoundClip> sink) {
+		assert path!=null && !path.isEmpty();
+		if (path == null)
+			return new ScanStatistics(0, 0, 0, 0, 0, 0);
+		final ClipInfoExtractor extractor = infoExtractor;
+		if (extractor != null)
+		{
+			final Consumer<SoundClip> clipSink = sink;
+			sink = clip -> {
+				clipSink.accept(clip);
+				extractor.submit(clip);
+			};
 		}
+		return getScanner().scan(Paths.get(path), sink);
+	}
 
-		for (File g: findSubFolders(folder)) {
-			addSoundClipsToSet(g, set);
+	/**
+	 * Rescans a folder against an index of what it looked like before, and
+	 * returns the clips that were added, removed or modified since. Folders
+	 * that have not changed on disk are skipped. The index is updated.
+	 */
+	public static ScanDelta rescan(String path, SoundClipIndex index) {
+		assert path!=null && !path.isEmpty() && index!=null;
+		ScanDelta delta = getScanner().rescan(Paths.get(path), index);
+		final ClipInfoExtractor extractor = infoExtractor;
+		if (extractor != null)
+		{
+			extractor.submitAll(delta.getAdded());
+			extractor.submitAll(delta.getModified());
 		}
+		return delta;
 	}
-	
-	// Return all the WAV files that are immediate children of folder.
-	// Requires folder to be an actual folder on disk.
-	private static File[] findWAVFiles(File folder) {
-		return folder.listFiles(new FilenameFilter() {
-			public boolean accept(File dir, String name) {
-				int i = name.lastIndexOf ('.');
-				return "wav".equals(name.substring(i+1).toLowerCase());
-			}
-		});
-	}
-	
-	// Return all the immediate sub folders of folder.
-	// Requires folder to be an actual folder on disk.
-	private static File[] findSubFolders(File folder) {
-		return folder.listFiles(new FileFilter() {
-			public boolean accept(File pathname) {
-				return (pathname.isDirectory()); 
-			}
-		});
+
+	private static synchronized SoundClipScanner getScanner() {
+		if (scanner == null)
+			scanner = new SoundClipScanner();
+		return scanner;
 	}
 }
@@ -0,0 +1,329 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SoundClipPlayQueue hands lists of SoundClips to play from any number of
+ * threads (the windows and the controller) to a single player thread.
+ *
+ * Enqueueing is lock free: producers link a node onto the tail with one
+ * atomic swap, and only the consumer ever walks from the head. The queue can
+ * be bounded, with a policy for what happens when it is full:
+ *   BLOCK       the producer waits until the player has taken something
+ *   DROP_OLDEST the oldest waiting request is dropped to make room
+ *   COALESCE    the request is merged into the newest waiting one, so
+ *               nothing is lost but the number of requests stays bounded
+ * The player can drain every waiting request in one call, and the queue
+ * keeps counters for its depth, drops and how long requests waited.
+ *
+ * Instead of blocking in dequeue, a consumer can register a callback with
+ * setOnAvailable and poll when it is told that something arrived.
+ *
+ * Lists passed to enqueue must not be changed afterwards.
+ */
+public class SoundClipPlayQueue {
+
+	public enum Policy { BLOCK, DROP_OLDEST, COALESCE }
+
+	private static class Node {
+		final List<SoundClip> clips;
+		final long enqueuedAt;
+		final boolean merge; // Belongs to the request before it (COALESCE).
+		// Arrived at a full queue, so the oldest request before it is dropped
+		// (DROP_OLDEST). Cleared by the consumer once handled.
+		boolean dropsOldest;
+		volatile Node next;
+
+		Node(List<SoundClip> clips, boolean merge, boolean dropsOldest) {
+			this.clips = clips;
+			this.merge = merge;
+			this.dropsOldest = dropsOldest;
+			enqueuedAt = System.nanoTime();
+		}
+	}
+
+	// Spinning only helps when a producer can run at the same time.
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 256 : 0;
+
+	private final int capacity;
+	private final Policy policy;
+
+	private final AtomicReference<Node> tail;
+	private Node head; // Only touched by the consumer.
+
+	private final AtomicInteger depth = new AtomicInteger(); // Requests linked and not yet taken.
+	private final AtomicInteger pendingDrops = new AtomicInteger(); // Nodes with dropsOldest not yet handled.
+	private volatile Thread waitingConsumer;
+	private volatile Runnable onAvailable;
+	private final AtomicBoolean availableSignalled = new AtomicBoolean();
+	private final Queue<Thread> waitingProducers = new ConcurrentLinkedQueue<>();
+
+	private final LongAdder enqueued = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder taken = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicInteger maxDepth = new AtomicInteger();
+
+	/**
+	 * Make an unbounded queue.
+	 */
+	public SoundClipPlayQueue() {
+		this(Integer.MAX_VALUE, Policy.BLOCK);
+	}
+
+	/**
+	 * Make a queue holding at most capacity requests, handling a full queue
+	 * according to policy.
+	 */
+	public SoundClipPlayQueue(int capacity, Policy policy) {
+		assert capacity > 0 && policy != null;
+		this.capacity = capacity;
+		this.policy = policy;
+		head = new Node(null, false, false);
+		tail = new AtomicReference<>(head);
+	}
+
+	/**
+	 * Add a list of SoundClips to the queue and wake up the player.
+	 * With the BLOCK policy this waits while the queue is full. If the thread
+	 * is interrupted while waiting, the list is added anyway and the interrupt
+	 * flag is kept.
+	 */
+	public void enqueue(List<SoundClip> soundclips) {
+		assert soundclips != null;
+		enqueued.increment();
+		boolean merge = false;
+		boolean drop = false;
+		while (true) {
+			final int d = depth.get();
+			if (d < capacity || Thread.currentThread().isInterrupted()) {
+				if (!depth.compareAndSet(d, d + 1))
+					continue;
+				if (d + 1 > maxDepth.get())
+					maxDepth.accumulateAndGet(d + 1, Math::max);
+				break;
+			}
+			if (policy == Policy.DROP_OLDEST) {
+				// The drop goes with our node, so it can never take a request
+				// linked after ours, however late we get to link it.
+				depth.incrementAndGet();
+				pendingDrops.incrementAndGet();
+				drop = true;
+				break;
+			}
+			if (policy == Policy.COALESCE) {
+				merge = true;
+				coalesced.increment();
+				break;
+			}
+			// BLOCK: wait for the consumer to take something, then try again.
+			Thread self = Thread.currentThread();
+			waitingProducers.add(self);
+			if (depth.get() >= capacity)
+				LockSupport.park(this);
+			waitingProducers.remove(self);
+		}
+		link(new Node(soundclips, merge, drop));
+	}
+
+	/**
+	 * Remove the oldest list of SoundClips from the queue.
+	 * If the queue is empty, waits until there is one.
+	 * Must only be called from the one player thread.
+	 */
+	public List<SoundClip> dequeue() throws InterruptedException {
+		while (true) {
+			List<SoundClip> clips = poll();
+			if (clips != null)
+				return clips;
+			awaitNode();
+		}
+	}
+
+	/**
+	 * Remove the oldest list of SoundClips, or return null if there is none.
+	 * Must only be called from the one player thread.
+	 */
+	public List<SoundClip> poll() {
+		availableSignalled.set(false);
+		skipDropped();
+		Node first = head.next;
+		if (first == null)
+			return null;
+		List<SoundClip> clips = takeRequest();
+		wakeProducers();
+		return clips;
+	}
+
+	/**
+	 * Remove every waiting list of SoundClips in one go, waiting until there
+	 * is at least one. Returns all their clips in order.
+	 * Must only be called from the one player thread.
+	 */
+	public List<SoundClip> dequeueAll() throws InterruptedException {
+		while (true) {
+			List<SoundClip> clips = pollAll();
+			if (!clips.isEmpty())
+				return clips;
+			awaitNode();
+		}
+	}
+
+	/**
+	 * Remove every waiting list of SoundClips in one go, without waiting.
+	 * Returns all their clips in order, or an empty list.
+	 * Must only be called from the one player thread.
+	 */
+	public List<SoundClip> pollAll() {
+		List<SoundClip> clips = new ArrayList<>();
+		availableSignalled.set(false);
+		skipDropped();
+		while (head.next != null)
+			clips.addAll(takeRequest());
+		wakeProducers();
+		return clips;
+	}
+
+	/**
+	 * Call callback when something is enqueued, on the thread that enqueued it.
+	 * The callback runs once until the consumer polls again, so it should only
+	 * hand the work over to the consumer and return.
+	 */
+	public void setOnAvailable(Runnable callback) {
+		onAvailable = callback;
+		if (callback != null && head.next != null && !availableSignalled.getAndSet(true))
+			callback.run();
+	}
+
+	/**
+	 * Returns true if nothing is waiting in the queue.
+	 */
+	public boolean isEmpty() {
+		return head.next == null;
+	}
+
+	// Number of requests waiting right now.
+	public int getDepth() {
+		return Math.max(0, depth.get() - pendingDrops.get());
+	}
+
+	// Most requests that were ever waiting at once.
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	public long getEnqueued() {
+		return enqueued.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	// Average time a request waited before the player took it.
+	public double getAverageWaitMillis() {
+		long n = taken.sum();
+		return n == 0 ? 0 : waitNanos.sum() / 1e6 / n;
+	}
+
+	public String toString() {
+		return String.format("depth %d (max %d), %d enqueued, %d dropped, %d coalesced, avg wait %.2f ms",
+				getDepth(), getMaxDepth(), getEnqueued(), getDropped(), getCoalesced(), getAverageWaitMillis());
+	}
+
+	private void link(Node node) {
+		Node prev = tail.getAndSet(node);
+		prev.next = node;
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+			LockSupport.unpark(consumer);
+		Runnable callback = onAvailable;
+		if (callback != null && !availableSignalled.getAndSet(true))
+			callback.run();
+	}
+
+	// Take the request at the head, together with anything coalesced into it.
+	// A coalesced node whose request was already taken stands on its own, and
+	// was never counted in depth.
+	private List<SoundClip> takeRequest() {
+		Node first = head.next;
+		head = first;
+		if (first.dropsOldest) {
+			// Everything before it was already taken, so there is nothing to drop.
+			first.dropsOldest = false;
+			pendingDrops.decrementAndGet();
+		}
+		if (!first.merge)
+			depth.decrementAndGet();
+		taken.increment();
+		waitNanos.add(System.nanoTime() - first.enqueuedAt);
+		List<SoundClip> clips = first.clips;
+		Node next = head.next;
+		if (next != null && next.merge) {
+			clips = new ArrayList<>(clips);
+			while (next != null && next.merge) {
+				clips.addAll(next.clips);
+				head = next;
+				next = head.next;
+			}
+		}
+		return clips;
+	}
+
+	// Drop the oldest requests for each linked node that asked for it. A node
+	// only drops a request that is before it and not dropped already.
+	private void skipDropped() {
+		if (pendingDrops.get() == 0)
+			return;
+		int requests = 0;
+		int drops = 0;
+		for (Node n = head.next; n != null; n = n.next) {
+			if (n.dropsOldest) {
+				n.dropsOldest = false;
+				pendingDrops.decrementAndGet();
+				if (requests > drops)
+					++drops;
+			}
+			if (!n.merge)
+				++requests;
+		}
+		for (int i = 0; i < drops; ++i) {
+			takeRequest();
+			taken.decrement();
+			dropped.increment();
+		}
+	}
+
+	private void awaitNode() throws InterruptedException {
+		// A producer is often just about to link its node, so spin a little
+		// before parking; parking and unparking is far more expensive.
+		for (int i = 0; i < SPINS && head.next == null; ++i)
+			Thread.onSpinWait();
+		if (head.next != null)
+			return;
+		waitingConsumer = Thread.currentThread();
+		if (head.next == null)
+			LockSupport.park(this);
+		waitingConsumer = null;
+		if (Thread.interrupted())
+			throw new InterruptedException();
+	}
+
+	private void wakeProducers() {
+		for (Thread t : waitingProducers)
+			LockSupport.unpark(t);
+	}
+}
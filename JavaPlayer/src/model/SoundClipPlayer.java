@@ -1,113 +1,275 @@
 package model;
 
-import java.net.MalformedURLException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-import javafx.scene.media.Media;
-import javafx.scene.media.MediaPlayer;
+/**
+ * SoundClipPlayer plays the SoundClips that arrive on a SoundClipPlayQueue,
+ * one after the other.
+ *
+ * The player is a small state machine:
+ *   IDLE     nothing to play
+ *   PLAYING  a clip is playing, or the gap before the next one is running
+ *   PAUSED   the current clip, or the gap, is on hold until resume
+ *   STOPPING the player was shut down and ignores everything from now on
+ *
+ * Clips are played on an AudioBackend, by default with JavaFX media.
+ * All state is owned by one scheduler thread: the queue, the backend
+ * callbacks and the public methods only hand tasks to it, so none of them
+ * wait or take a lock. The gap between clips is a scheduled task as well.
+ *
+ * While a clip plays, a ClipPrefetcher prepares the next few, so the next
+ * voice is opened and its file read by the time it is needed.
+ */
+public class SoundClipPlayer {
 
-public class SoundClipPlayer implements Runnable {
+	public enum State { IDLE, PLAYING, PAUSED, STOPPING }
 
-	private SoundClipBlockingQueue queue;
-	private List<SoundClip> clips; // The list of SoundClips to play with the media player
-	private static final int SLEEP_DELAY = 500; // Sleep time in ms between sound clips when playing several in a row
-	private boolean playing = false; // True when playing SoundClips, false otherwise
-	
-	public SoundClipPlayer(SoundClipBlockingQueue queue){
+	private static final long DEFAULT_GAP_MILLIS = 500; // Pause between sound clips when playing several in a row
+	private static final int DEFAULT_LOOKAHEAD = 2; // Clips prepared ahead of the one playing
+	private static final long DEFAULT_BUFFER_BYTES = 64L * 1024 * 1024; // Cap on clip data read ahead
+
+	private final SoundClipPlayQueue queue;
+	private final ScheduledExecutorService scheduler;
+	private final ClipPrefetcher prefetcher;
+	private final AudioBackend backend;
+
+	// Only touched on the scheduler thread.
+	private final ArrayDeque<SoundClip> clips = new ArrayDeque<>(); // The SoundClips waiting to be played
+	private PreparedClip current;
+	private ScheduledFuture<?> pendingNext; // The gap before the next clip, while it runs
+	private long generation; // Tells callbacks of a voice that was already replaced to do nothing
+	private long gapMillis = DEFAULT_GAP_MILLIS;
+
+	private volatile State state = State.IDLE;
+
+	public SoundClipPlayer(SoundClipPlayQueue queue) {
+		this(queue, new MediaAudioBackend());
+	}
+
+	public SoundClipPlayer(SoundClipPlayQueue queue, AudioBackend backend) {
+		this(queue, backend, DEFAULT_LOOKAHEAD, DEFAULT_BUFFER_BYTES);
+	}
+
+	/**
+	 * Make a player for backend that prepares lookahead clips ahead of the one
+	 * playing, keeping at most bufferBytes of their data in memory.
+	 * The player closes backend when it is shut down.
+	 */
+	public SoundClipPlayer(SoundClipPlayQueue queue, AudioBackend backend, int lookahead, long bufferBytes) {
 		this.queue = queue;
-		clips = new ArrayList<>();
-	}
-	
-	// Main loop for the SoundClipPlayer thread
-	//
-	// The thread will dequeue a list of SoundClips from the
-	// SoundClipBlockingQueue and play add them to the list
-	// of SoundClips to play. If the queue is empty, the thread 
-	// will go to sleep until there is a SoundClip to retrieve 
-	// from the queue.
-	
-	@Override
-	public void run(){
-		List<SoundClip> sc = null;
-		while (true) {
-			try {
-				
-				// Retrieve the list of SoundClips from the blocking queue
-				sc = queue.dequeue();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			if(sc != null) {
-				
-				// Add the retrieved SoundClips to the list of SoundClips to play
-				clips.addAll(sc);
-				
-				// If not currently playing SoundClips, play the SoundClips
-				// Note: if already playing, the newly retrieved SoundClips are
-				// already added to the list that is being played. Therefore,
-				// we don't need to invoke playClips again in that case
-				
-				if(!playing)
-					playClips();
-			}
+		this.backend = backend;
+		prefetcher = new ClipPrefetcher(lookahead, new BufferPool(bufferBytes), backend);
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "SoundClipPlayer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Start taking SoundClips from the queue. Everything enqueued from now on,
+	 * or before, gets played.
+	 */
+	public void start() {
+		queue.setOnAvailable(() -> submit(this::drainQueue));
+	}
+
+	/**
+	 * Add SoundClips to play after the ones already waiting. Can be called from any thread.
+	 */
+	public void enqueue(List<SoundClip> soundclips) {
+		queue.enqueue(soundclips);
+	}
+
+	/**
+	 * Stop the current clip and forget the ones waiting.
+	 */
+	public void stop() {
+		submit(() -> {
+			clips.clear();
+			queue.pollAll();
+			prefetcher.prefetch(clips);
+			stopCurrent();
+			state = State.IDLE;
+		});
+	}
+
+	/**
+	 * Stop the current clip and go straight to the next one.
+	 */
+	public void skip() {
+		submit(() -> {
+			if (state == State.IDLE)
+				return;
+			stopCurrent();
+			state = State.PLAYING;
+			playNext();
+		});
+	}
+
+	/**
+	 * Forget the clips waiting to be played, but finish the current one.
+	 */
+	public void clear() {
+		submit(() -> {
+			clips.clear();
+			queue.pollAll();
+			prefetcher.prefetch(clips);
+		});
+	}
+
+	public void pause() {
+		submit(() -> {
+			if (state != State.PLAYING)
+				return;
+			if (current != null)
+				current.getVoice().pause();
+			// A paused gap is started over on resume.
+			if (pendingNext != null)
+				pendingNext.cancel(false);
+			state = State.PAUSED;
+		});
+	}
+
+	public void resume() {
+		submit(() -> {
+			if (state != State.PAUSED)
+				return;
+			state = State.PLAYING;
+			if (current != null)
+				current.getVoice().play();
+			else
+				scheduleNext();
+		});
+	}
+
+	/**
+	 * Set the pause between consecutive clips. 0 plays them back to back.
+	 */
+	public void setGap(long millis) {
+		assert millis >= 0;
+		submit(() -> gapMillis = millis);
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Stop playing and let the scheduler thread end.
+	 */
+	public void shutdown() {
+		queue.setOnAvailable(null);
+		submit(() -> {
+			clips.clear();
+			stopCurrent();
+			prefetcher.shutdown();
+			backend.close();
+			state = State.STOPPING;
+			scheduler.shutdown();
+		});
+	}
+
+	private void submit(Runnable task) {
+		if (!scheduler.isShutdown())
+			scheduler.execute(task);
+	}
+
+	// Take what arrived on the queue, and start playing if the player was idle.
+	private void drainQueue() {
+		List<SoundClip> arrived = queue.pollAll();
+		if (state == State.STOPPING)
+			return;
+		clips.addAll(arrived);
+		if (state == State.IDLE && !clips.isEmpty())
+		{
+			state = State.PLAYING;
+			playNext();
 		}
+		else
+			prefetcher.prefetch(clips);
 	}
-	
-	// Plays the SoundClips
-	private synchronized void playClips(){
-		if(clips == null || clips.size() == 0) {
-			// Finished playing all the SoundClips
-			playing = false;
+
+	// Play the first waiting clip, or become idle if there is none.
+	private void playNext() {
+		pendingNext = null;
+		if (state != State.PLAYING)
 			return;
+		SoundClip sc = clips.poll();
+		if (sc == null)
+		{
+			state = State.IDLE;
+			return;
+		}
+		PreparedClip prepared = prefetcher.take(sc);
+		prefetcher.prefetch(clips);
+		String name = sc.getFile().toString();
+		System.out.println("Now playing " + name);
+		try
+		{
+			final long playing = ++generation;
+			if (prepared == null)
+				prepared = PreparedClip.open(sc, null, backend);
+			AudioBackend.Voice voice = prepared.getVoice();
+			if (voice.getError() != null) // Failed while it was prefetched.
+				throw new IOException(voice.getError().getMessage());
+			// Backend callbacks come on its own threads, so pass them on.
+			voice.setOnEnd(() -> submit(() -> clipEnded(playing)));
+			voice.play();
+			current = prepared;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			if (prepared != null)
+				prepared.close();
+			System.out.println("Could not play " + name + ": " + e.getMessage());
+			scheduleNext();
 		}
-		try {
-			
-			playing = true;
-			
-			SoundClip sc = clips.remove(0); // Remove the first SoundClip from the list
-			String name = sc.getFile().toString();
-			System.out.println("Now playing " + name);
-			
-			// Setup the MediaPlayer
-			Path audioPath = FileSystems.getDefault().getPath(name);
-			
-			Media media = new Media(audioPath.toUri().toURL().toExternalForm());
-			MediaPlayer player = new MediaPlayer(media);
-		
-			// Setup media event handler, which will recursively call this method
-			// when the play back of the current SoundClip has ended.
-			//
-			// Note: In each recursion, the size of the list of SoundClips is reduced by 1.
-			// Therefore, it will eventually become empty, and play back will stop
-			
-			player.setOnEndOfMedia(new Runnable(){
-
-				@Override
-				public void run() {
-					
-					playClips();
-				}
-				
-			});
-			
-			// Play the SoundClip
-			player.play();
-			
-			// Put the current thread to sleep for a short while, in order to introduce a short
-			// pause in between the play back of consecutive SoundClips
-			
-			Thread.sleep(SLEEP_DELAY);
-
-		} catch (MalformedURLException e) {
-			System.out.println("MalformedURLException in SoundClipPlayer");
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		} 
-		
 	}
 
+	private void clipEnded(long playing) {
+		if (playing != generation || current == null)
+			return;
+		Throwable error = current.getVoice().getError();
+		if (error != null)
+			System.out.println("Could not play " + current.getClip().getFile() + ": " + error.getMessage());
+		current.close();
+		current = null;
+		if (state == State.PLAYING)
+			scheduleNext();
+	}
+
+	// Play the next clip after the gap, unless something else was played or stopped first.
+	private void scheduleNext() {
+		final long scheduled = generation;
+		Runnable next = () -> {
+			if (scheduled == generation)
+				playNext();
+		};
+		if (gapMillis == 0 || clips.isEmpty())
+			submit(next);
+		else
+			pendingNext = scheduler.schedule(next, gapMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void stopCurrent() {
+		++generation;
+		if (pendingNext != null)
+		{
+			pendingNext.cancel(false);
+			pendingNext = null;
+		}
+		if (current != null)
+		{
+			current.getVoice().stop();
+			current.close();
+			current = null;
+		}
+	}
 }
@@ -0,0 +1,177 @@
+package model;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * SoundClipRegistry gives every sound clip file a dense int id.
+ * Paths are stored once per folder in an interned folder table, plus a file
+ * name per clip, instead of one java.io.File per clip. Each id also has one
+ * registered SoundClip instance, which is the one albums hold on to.
+ * Ids are never reused, so they stay valid for the lifetime of the program.
+ * All methods are thread safe. Only registering takes a lock: the tables are
+ * only appended to, and readers go by a snapshot of them published after each
+ * registration, so they never wait.
+ */
+public class SoundClipRegistry {
+
+	private static final SoundClipRegistry DEFAULT = new SoundClipRegistry();
+
+	// The tables as of one registration. The arrays are shared with later
+	// snapshots, but their entries below count are never changed again,
+	// except for clips, which are created on first use.
+	private static final class Table {
+		final int count;
+		final int[] clipFolders;
+		final String[] clipNames;
+		final SoundClip[] clips;
+		final String[] folders;
+
+		Table(int count, int[] clipFolders, String[] clipNames, SoundClip[] clips, String[] folders) {
+			this.count = count;
+			this.clipFolders = clipFolders;
+			this.clipNames = clipNames;
+			this.clips = clips;
+			this.folders = folders;
+		}
+	}
+
+	// Guarded by this, used by register only.
+	private final HashMap<String, Integer> folderIds = new HashMap<>();
+	private final List<HashMap<String, Integer>> namesByFolder = new ArrayList<>();
+	private int folderCount = 0;
+	private String[] folders = new String[64];
+	private int count = 0;
+	private int[] clipFolders = new int[1024];
+	private String[] clipNames = new String[1024];
+	private SoundClip[] clips = new SoundClip[1024];
+
+	private volatile Table table = new Table(0, clipFolders, clipNames, clips, folders);
+
+	/**
+	 * The registry all SoundClips are registered in.
+	 */
+	public static SoundClipRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the id of a clip file, registering it if it is new.
+	 */
+	synchronized int register(File file) {
+		String parent = file.getParent();
+		String folder = parent != null ? parent : "";
+		Integer folderId = folderIds.get(folder);
+		if (folderId == null) {
+			folderId = folderCount;
+			if (folderCount == folders.length)
+				folders = Arrays.copyOf(folders, folderCount * 2);
+			folders[folderCount++] = folder;
+			folderIds.put(folder, folderId);
+			namesByFolder.add(new HashMap<>());
+		}
+		HashMap<String, Integer> names = namesByFolder.get(folderId);
+		String name = file.getName();
+		Integer id = names.get(name);
+		if (id != null)
+			return id;
+
+		if (count == clipNames.length) {
+			clipFolders = Arrays.copyOf(clipFolders, count * 2);
+			clipNames = Arrays.copyOf(clipNames, count * 2);
+			clips = Arrays.copyOf(clips, count * 2);
+		}
+		clipFolders[count] = folderId;
+		clipNames[count] = name;
+		names.put(name, count);
+		table = new Table(count + 1, clipFolders, clipNames, clips, folders);
+		return count++;
+	}
+
+	/**
+	 * Returns the registered SoundClip for an id.
+	 */
+	public SoundClip get(int id) {
+		Table t = table;
+		checkId(t, id);
+		SoundClip clip = t.clips[id];
+		return clip != null ? clip : create(id);
+	}
+
+	/**
+	 * Returns the registered SoundClips for a list of ids, in the same order.
+	 */
+	public ArrayList<SoundClip> getAll(int[] ids) {
+		Table t = table;
+		ArrayList<SoundClip> result = new ArrayList<>(ids.length);
+		for (int id : ids) {
+			checkId(t, id);
+			SoundClip clip = t.clips[id];
+			result.add(clip != null ? clip : create(id));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the file of a clip, made from the folder table on demand.
+	 */
+	public File getFile(int id) {
+		Table t = table;
+		checkId(t, id);
+		String folder = t.folders[t.clipFolders[id]];
+		return folder.isEmpty() ? new File(t.clipNames[id]) : new File(folder, t.clipNames[id]);
+	}
+
+	/**
+	 * Returns the file name of a clip, without its folder.
+	 */
+	public String getName(int id) {
+		Table t = table;
+		checkId(t, id);
+		return t.clipNames[id];
+	}
+
+	/**
+	 * Returns the folder a clip is in, as an index into the folder table.
+	 */
+	public int getFolderId(int id) {
+		Table t = table;
+		checkId(t, id);
+		return t.clipFolders[id];
+	}
+
+	/**
+	 * Returns the path of a folder in the folder table.
+	 */
+	public String getFolder(int folderId) {
+		// A folder is published together with its first clip.
+		Table t = table;
+		if (folderId < 0 || folderId >= t.folders.length || t.folders[folderId] == null)
+			throw new IndexOutOfBoundsException("Unknown folder id " + folderId);
+		return t.folders[folderId];
+	}
+
+	/**
+	 * Number of ids handed out so far; all ids are below this.
+	 */
+	public int size() {
+		return table.count;
+	}
+
+	// Create the registered SoundClip of an id the first time it is asked for.
+	// The clip's id is final, so a clip found in the table without the lock is complete.
+	private synchronized SoundClip create(int id) {
+		SoundClip[] c = table.clips;
+		if (c[id] == null)
+			c[id] = new SoundClip(id);
+		return c[id];
+	}
+
+	private static void checkId(Table t, int id) {
+		if (id < 0 || id >= t.count)
+			throw new IllegalArgumentException("Unknown clip id " + id);
+	}
+}
@@ -0,0 +1,270 @@
+package model;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * SoundClipScanner walks a folder tree on disk and streams every .WAV file
+ * it finds to a consumer.
+ * Every folder is listed exactly once, and its entries are stat'ed to tell
+ * clips from subfolders; a folder whose name ends in .wav is a folder like any
+ * other, as it is for a rescan. Subfolders are scanned in parallel
+ * on a fork/join pool, which pays off on slow or network mounted disks.
+ */
+public class SoundClipScanner {
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Make a scanner with a pool sized for I/O bound work.
+	 */
+	public SoundClipScanner() {
+		this(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Make a scanner that lists at most parallelism folders at a time.
+	 */
+	public SoundClipScanner(int parallelism) {
+		assert parallelism > 0;
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Scan the folder tree below root and hand every clip found to sink.
+	 * Blocks until the whole tree has been visited.
+	 * Note that sink is called from several worker threads at once, so it
+	 * has to be thread safe.
+	 * If root is not an actual folder on disk, nothing is found.
+	 */
+	public ScanStatistics scan(Path root, Consumer<SoundClip> sink) {
+		assert root != null && sink != null;
+		Counters counters = new Counters();
+		long start = System.nanoTime();
+		if (Files.isDirectory(root))
+			pool.invoke(new FolderTask(root, sink, counters));
+		return counters.toStatistics(System.nanoTime() - start);
+	}
+
+	/**
+	 * Rescan the folder tree below root against what index remembers about it,
+	 * and update the index in place.
+	 * Folders whose modification time has not changed are not listed again,
+	 * only their subfolders are visited. Note that rewriting a clip in place
+	 * does not touch its folder's modification time, so such an edit is only
+	 * reported once something else in the same folder changes.
+	 */
+	public ScanDelta rescan(Path root, SoundClipIndex index) {
+		assert root != null && index != null;
+		Counters counters = new Counters();
+		Changes changes = new Changes();
+		long start = System.nanoTime();
+		pool.invoke(new IndexedFolderTask(root.toAbsolutePath().normalize(), index, counters, changes));
+		return new ScanDelta(changes.added, changes.removed, changes.modified,
+				changes.unchanged.sum(), counters.toStatistics(System.nanoTime() - start));
+	}
+
+	/**
+	 * Stop the worker threads of this scanner.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	// Returns true if name looks like a WAV file.
+	static boolean isWAVName(String name) {
+		int i = name.lastIndexOf('.');
+		return i >= 0 && name.length() - i == 4 && name.regionMatches(true, i + 1, "wav", 0, 3);
+	}
+
+	// Shared counters, updated from all worker threads.
+	static class Counters {
+		final LongAdder directories = new LongAdder();
+		final LongAdder files = new LongAdder();
+		final LongAdder statCalls = new LongAdder();
+		final LongAdder statNanos = new LongAdder();
+		final LongAdder errors = new LongAdder();
+
+		ScanStatistics toStatistics(long elapsedNanos) {
+			return new ScanStatistics(directories.sum(), files.sum(), statCalls.sum(),
+					statNanos.sum(), errors.sum(), elapsedNanos);
+		}
+	}
+
+	// Read the attributes of a file, or null if it cannot be read.
+	static BasicFileAttributes stat(Path path, Counters counters) {
+		long start = System.nanoTime();
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException | SecurityException e) {
+			return null;
+		} finally {
+			counters.statCalls.increment();
+			counters.statNanos.add(System.nanoTime() - start);
+		}
+	}
+
+	// Clips found to differ from the index, collected from all worker threads.
+	private static class Changes {
+		final Queue<SoundClip> added = new ConcurrentLinkedQueue<>();
+		final Queue<SoundClip> removed = new ConcurrentLinkedQueue<>();
+		final Queue<SoundClip> modified = new ConcurrentLinkedQueue<>();
+		final LongAdder unchanged = new LongAdder();
+	}
+
+	// Lists one folder, emits its clips and forks a task per subfolder.
+	private static class FolderTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path folder;
+		private final Consumer<SoundClip> sink;
+		private final Counters counters;
+
+		FolderTask(Path folder, Consumer<SoundClip> sink, Counters counters) {
+			this.folder = folder;
+			this.sink = sink;
+			this.counters = counters;
+		}
+
+		@Override
+		protected void compute() {
+			List<FolderTask> subTasks = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+				counters.directories.increment();
+				for (Path entry : entries) {
+					BasicFileAttributes attrs = stat(entry, counters);
+					if (attrs == null)
+						continue;
+					if (attrs.isDirectory()) {
+						subTasks.add(new FolderTask(entry, sink, counters));
+					} else if (isWAVName(entry.getFileName().toString())) {
+						counters.files.increment();
+						sink.accept(new SoundClip(entry.toFile()));
+					}
+				}
+			} catch (IOException | SecurityException e) {
+				counters.errors.increment();
+			}
+			invokeAll(subTasks);
+		}
+	}
+
+	// Compares one folder with its index entry and forks a task per subfolder.
+	// Unchanged folders are not listed, their subfolders are taken from the index.
+	private static class IndexedFolderTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path folder;
+		private final SoundClipIndex index;
+		private final Counters counters;
+		private final Changes changes;
+
+		IndexedFolderTask(Path folder, SoundClipIndex index, Counters counters, Changes changes) {
+			this.folder = folder;
+			this.index = index;
+			this.counters = counters;
+			this.changes = changes;
+		}
+
+		@Override
+		protected void compute() {
+			BasicFileAttributes attrs = stat(folder, counters);
+			if (attrs == null || !attrs.isDirectory()) {
+				index.removeTree(folder, changes.removed::add);
+				return;
+			}
+			final long mtime = attrs.lastModifiedTime().toMillis();
+			SoundClipIndex.FolderEntry old = index.get(folder);
+			String[] subFolders;
+			if (old != null && old.mtime == mtime) {
+				changes.unchanged.increment();
+				subFolders = old.subFolders;
+			} else {
+				subFolders = relist(mtime, old);
+				if (subFolders == null)
+					return;
+			}
+			List<IndexedFolderTask> subTasks = new ArrayList<>(subFolders.length);
+			for (String sub : subFolders)
+				subTasks.add(new IndexedFolderTask(folder.resolve(sub), index, counters, changes));
+			invokeAll(subTasks);
+		}
+
+		// List the folder, record the differences to the old entry and store
+		// a fresh one. Returns the names of the subfolders, or null on error.
+		private String[] relist(long mtime, SoundClipIndex.FolderEntry old) {
+			Map<String, Integer> oldClips = new HashMap<>();
+			if (old != null) {
+				for (int i = 0; i < old.clipNames.length; ++i)
+					oldClips.put(old.clipNames[i], i);
+			}
+			List<String> names = new ArrayList<>();
+			List<Long> sizes = new ArrayList<>();
+			List<Long> times = new ArrayList<>();
+			List<String> subs = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+				counters.directories.increment();
+				for (Path entry : entries) {
+					String name = entry.getFileName().toString();
+					BasicFileAttributes attrs = stat(entry, counters);
+					if (attrs == null)
+						continue;
+					if (attrs.isDirectory()) {
+						subs.add(name);
+					} else if (isWAVName(name)) {
+						counters.files.increment();
+						long size = attrs.size();
+						long time = attrs.lastModifiedTime().toMillis();
+						names.add(name);
+						sizes.add(size);
+						times.add(time);
+						Integer i = oldClips.remove(name);
+						if (i == null)
+							changes.added.add(new SoundClip(entry.toFile()));
+						else if (old.clipSizes[i] != size || old.clipTimes[i] != time)
+							changes.modified.add(new SoundClip(entry.toFile()));
+					}
+				}
+			} catch (IOException | SecurityException e) {
+				counters.errors.increment();
+				return null;
+			}
+			for (String gone : oldClips.keySet())
+				changes.removed.add(new SoundClip(folder.resolve(gone).toFile()));
+			if (old != null) {
+				Set<String> current = new HashSet<>(subs);
+				for (String sub : old.subFolders) {
+					if (!current.contains(sub))
+						index.removeTree(folder.resolve(sub), changes.removed::add);
+				}
+			}
+			long[] clipSizes = new long[names.size()];
+			long[] clipTimes = new long[names.size()];
+			for (int i = 0; i < clipSizes.length; ++i) {
+				clipSizes[i] = sizes.get(i);
+				clipTimes[i] = times.get(i);
+			}
+			String[] subFolders = subs.toArray(new String[0]);
+			index.put(folder, new SoundClipIndex.FolderEntry(mtime, subFolders,
+					names.toArray(new String[0]), clipSizes, clipTimes));
+			return subFolders;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package model;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * SoundClipWatcher watches library folders for .WAV files being created or
+ * deleted, and reports them in batches from a background thread.
+ * Events are collected until the folders have been quiet for a short while
+ * (or a maximum delay has passed), so that copying thousands of files results
+ * in a handful of batches rather than one notification per file.
+ */
+public class SoundClipWatcher {
+
+	/**
+	 * One batch of changes seen by the watcher.
+	 */
+	public static class Batch {
+		private final Set<SoundClip> added;
+		private final Set<SoundClip> removed;
+		private final Set<Path> removedFolders;
+		private final boolean overflow;
+
+		Batch(Set<SoundClip> added, Set<SoundClip> removed, Set<Path> removedFolders, boolean overflow) {
+			this.added = Collections.unmodifiableSet(added);
+			this.removed = Collections.unmodifiableSet(removed);
+			this.removedFolders = Collections.unmodifiableSet(removedFolders);
+			this.overflow = overflow;
+		}
+
+		// Clips whose files appeared.
+		public Set<SoundClip> getAdded() {
+			return added;
+		}
+
+		// Clips whose files were deleted.
+		public Set<SoundClip> getRemoved() {
+			return removed;
+		}
+
+		// Watched folders that were deleted; every clip below them is gone too.
+		public Set<Path> getRemovedFolders() {
+			return removedFolders;
+		}
+
+		// True if the operating system dropped events, so the folders need a rescan.
+		public boolean isOverflow() {
+			return overflow;
+		}
+	}
+
+	private static final long QUIET_MILLIS = 250;
+	private static final long MAX_DELAY_MILLIS = 2000;
+
+	private final WatchService service;
+	private final Map<WatchKey, Path> folders = new ConcurrentHashMap<>();
+	// The paths of the watched folders, kept with folders to look them up by path.
+	private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+	private final Consumer<Batch> listener;
+	private final Thread thread;
+
+	// Pending changes, only touched by the watcher thread.
+	private Set<SoundClip> added = new LinkedHashSet<>();
+	private Set<SoundClip> removed = new LinkedHashSet<>();
+	private Set<Path> removedFolders = new LinkedHashSet<>();
+	private boolean overflow = false;
+	private long firstEvent;
+	private long lastEvent;
+
+	/**
+	 * Make a watcher that hands each batch of changes to listener.
+	 * Note that listener is called from the watcher thread.
+	 */
+	public SoundClipWatcher(Consumer<Batch> listener) throws IOException {
+		assert listener != null;
+		this.listener = listener;
+		service = FileSystems.getDefault().newWatchService();
+		thread = new Thread(this::run, "SoundClipWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Start watching a folder and all of its subfolders.
+	 */
+	public void watch(Path root) throws IOException {
+		registerTree(root, null);
+	}
+
+	/**
+	 * Stop watching and end the watcher thread.
+	 */
+	public void close() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Register a folder tree. If clips is not null, the clips already in it
+	// are collected as well, since they may have landed before we got to watch.
+	private void registerTree(Path root, Set<SoundClip> clips) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				folders.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE), dir);
+				watched.add(dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (clips != null && SoundClipScanner.isWAVName(file.getFileName().toString()))
+					clips.add(new SoundClip(file.toFile()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	// Main loop of the watcher thread.
+	private void run() {
+		try {
+			while (true) {
+				WatchKey key;
+				if (isPending()) {
+					long now = System.currentTimeMillis();
+					long due = Math.min(lastEvent + QUIET_MILLIS, firstEvent + MAX_DELAY_MILLIS);
+					key = due > now ? service.poll(due - now, TimeUnit.MILLISECONDS) : null;
+				} else {
+					key = service.take();
+				}
+				if (key != null)
+					process(key);
+				if (isPending() && isDue())
+					flush();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed, we are done.
+		}
+	}
+
+	private void process(WatchKey key) {
+		final boolean wasPending = isPending();
+		Path folder = folders.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflow = true;
+			} else if (folder != null) {
+				onEvent(event.kind(), folder.resolve((Path) event.context()));
+			}
+		}
+		if (!key.reset()) {
+			// The folder itself is gone.
+			folders.remove(key);
+			if (folder != null) {
+				watched.remove(folder);
+				removedFolders.add(folder);
+			}
+		}
+		long now = System.currentTimeMillis();
+		if (!wasPending)
+			firstEvent = now;
+		lastEvent = now;
+	}
+
+	private void onEvent(WatchEvent.Kind<?> kind, Path path) {
+		boolean wav = SoundClipScanner.isWAVName(path.getFileName().toString());
+		if (kind == ENTRY_CREATE) {
+			if (Files.isDirectory(path)) {
+				try {
+					registerTree(path, added);
+				} catch (IOException e) {
+					overflow = true;
+				}
+			} else if (wav) {
+				SoundClip clip = new SoundClip(path.toFile());
+				removed.remove(clip);
+				added.add(clip);
+			}
+		} else if (kind == ENTRY_DELETE) {
+			if (wav) {
+				SoundClip clip = new SoundClip(path.toFile());
+				added.remove(clip);
+				removed.add(clip);
+			} else if (watched.contains(path)) {
+				removedFolders.add(path);
+			}
+		}
+	}
+
+	private boolean isPending() {
+		return overflow || !added.isEmpty() || !removed.isEmpty() || !removedFolders.isEmpty();
+	}
+
+	private boolean isDue() {
+		long now = System.currentTimeMillis();
+		return now >= lastEvent + QUIET_MILLIS || now >= firstEvent + MAX_DELAY_MILLIS;
+	}
+
+	private void flush() {
+		Batch batch = new Batch(added, removed, removedFolders, overflow);
+		added = new LinkedHashSet<>();
+		removed = new LinkedHashSet<>();
+		removedFolders = new LinkedHashSet<>();
+		overflow = false;
+		listener.accept(batch);
+	}
+}
@@ -0,0 +1,167 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * WavFile is the format of a RIFF/WAVE file, read from its header: the sample
+ * format and where the sample data is in the file.
+ *
+ * Integer PCM of 8, 16, 24 and 32 bits and 32 bit float are understood,
+ * including WAVE_FORMAT_EXTENSIBLE headers for them. Chunks other than
+ * "fmt " and "data" are skipped.
+ */
+public class WavFile {
+
+	private static final int RIFF = 0x46464952; // "RIFF" little endian
+	private static final int WAVE = 0x45564157; // "WAVE"
+	private static final int FMT = 0x20746d66; // "fmt "
+	private static final int DATA = 0x61746164; // "data"
+
+	private static final int FORMAT_PCM = 1;
+	private static final int FORMAT_FLOAT = 3;
+	private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+	private final int channels;
+	private final int sampleRate;
+	private final int bitsPerSample;
+	private final int blockAlign;
+	private final boolean floating;
+	private final long dataOffset;
+	private final long dataLength;
+
+	private WavFile(int channels, int sampleRate, int bitsPerSample, int blockAlign, boolean floating, long dataOffset, long dataLength) {
+		this.channels = channels;
+		this.sampleRate = sampleRate;
+		this.bitsPerSample = bitsPerSample;
+		this.blockAlign = blockAlign;
+		this.floating = floating;
+		this.dataOffset = dataOffset;
+		this.dataLength = dataLength;
+	}
+
+	// Reads length bytes at position, little endian.
+	private interface Reader {
+		ByteBuffer read(long position, int length) throws IOException;
+	}
+
+	/**
+	 * Parse the header of a whole WAV file held in memory, from its position on.
+	 */
+	public static WavFile parse(ByteBuffer file) throws IOException {
+		final ByteBuffer b = file.slice().order(ByteOrder.LITTLE_ENDIAN);
+		return parse((position, length) -> {
+			if (position + length > b.limit())
+				throw new IOException("Truncated WAV header");
+			return b.slice((int) position, length).order(ByteOrder.LITTLE_ENDIAN);
+		}, b.limit());
+	}
+
+	/**
+	 * Parse the header of the WAV file open in channel, reading only the
+	 * chunk headers it needs with positioned reads.
+	 */
+	public static WavFile read(FileChannel channel) throws IOException {
+		return parse((position, length) -> {
+			ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			while (b.hasRemaining())
+			{
+				if (channel.read(b, position + b.position()) < 0)
+					throw new IOException("Truncated WAV header");
+			}
+			return b.flip();
+		}, channel.size());
+	}
+
+	private static WavFile parse(Reader in, long size) throws IOException {
+		ByteBuffer riff = in.read(0, 12);
+		if (riff.getInt(0) != RIFF || riff.getInt(8) != WAVE)
+			throw new IOException("Not a RIFF/WAVE file");
+		ByteBuffer fmt = null;
+		long position = 12;
+		while (position + 8 <= size)
+		{
+			ByteBuffer header = in.read(position, 8);
+			int id = header.getInt(0);
+			long length = header.getInt(4) & 0xffffffffL;
+			position += 8;
+			if (id == FMT)
+			{
+				if (length < 16)
+					throw new IOException("Bad fmt chunk");
+				fmt = in.read(position, (int) Math.min(length, 40));
+			}
+			else if (id == DATA)
+			{
+				if (fmt == null)
+					throw new IOException("data chunk before fmt chunk");
+				// Streamed files may leave the length unset, so never go past the file.
+				return fromFormat(fmt, position, Math.min(length, size - position));
+			}
+			position += length + (length & 1); // Chunks are padded to even lengths.
+		}
+		throw new IOException("No data chunk");
+	}
+
+	private static WavFile fromFormat(ByteBuffer fmt, long dataOffset, long dataLength) throws IOException {
+		int format = fmt.getShort(0) & 0xffff;
+		int channels = fmt.getShort(2) & 0xffff;
+		int sampleRate = fmt.getInt(4);
+		int blockAlign = fmt.getShort(12) & 0xffff;
+		int bits = fmt.getShort(14) & 0xffff;
+		if (format == FORMAT_EXTENSIBLE && fmt.limit() >= 26)
+			format = fmt.getShort(24) & 0xffff; // First two bytes of the sub format GUID.
+		boolean floating = format == FORMAT_FLOAT;
+		if (format != FORMAT_PCM && !floating)
+			throw new IOException("Unsupported WAV format " + format);
+		if (floating ? bits != 32 : bits != 8 && bits != 16 && bits != 24 && bits != 32)
+			throw new IOException("Unsupported sample size " + bits);
+		if (channels < 1 || sampleRate <= 0 || blockAlign < channels * bits / 8)
+			throw new IOException("Bad fmt chunk");
+		return new WavFile(channels, sampleRate, bits, blockAlign, floating, dataOffset, dataLength);
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	// Bytes per frame, one sample for every channel.
+	public int getBlockAlign() {
+		return blockAlign;
+	}
+
+	public boolean isFloating() {
+		return floating;
+	}
+
+	// Where the sample data starts in the file.
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	public long getFrames() {
+		return dataLength / blockAlign;
+	}
+
+	public long getDurationMillis() {
+		return getFrames() * 1000 / sampleRate;
+	}
+
+	public String toString() {
+		return String.format("%d Hz, %d bit%s, %d channels, %d ms", sampleRate, bitsPerSample, floating ? " float" : "", channels, getDurationMillis());
+	}
+}
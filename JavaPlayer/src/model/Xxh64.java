@@ -0,0 +1,115 @@
+package model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming XXH64, a fast non-cryptographic 64 bit hash, used to fingerprint
+ * clip files. Feed it with update, in as many pieces as convenient, then
+ * call digest. Can be reused after reset.
+ */
+class Xxh64 {
+
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private long v1, v2, v3, v4;
+	private long total;
+	private final ByteBuffer partial = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN); // A stripe not yet complete
+
+	Xxh64() {
+		reset();
+	}
+
+	void reset() {
+		v1 = P1 + P2;
+		v2 = P2;
+		v3 = 0;
+		v4 = -P1;
+		total = 0;
+		partial.clear();
+	}
+
+	/**
+	 * Hash the remaining bytes of b, which must be little endian. Consumes them.
+	 */
+	void update(ByteBuffer b) {
+		total += b.remaining();
+		if (partial.position() > 0)
+		{
+			while (partial.hasRemaining() && b.hasRemaining())
+				partial.put(b.get());
+			if (partial.hasRemaining())
+				return;
+			stripe(partial, 0);
+			partial.clear();
+		}
+		int pos = b.position();
+		final int end = b.limit() - 32;
+		for (; pos <= end; pos += 32)
+			stripe(b, pos);
+		b.position(pos);
+		while (b.hasRemaining())
+			partial.put(b.get());
+	}
+
+	long digest() {
+		long h;
+		if (total >= 32)
+		{
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		}
+		else
+			h = P5;
+		h += total;
+		final int end = partial.position();
+		int i = 0;
+		for (; i + 8 <= end; i += 8)
+		{
+			h ^= round(0, partial.getLong(i));
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+		}
+		if (i + 4 <= end)
+		{
+			h ^= (partial.getInt(i) & 0xffffffffL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			i += 4;
+		}
+		for (; i < end; ++i)
+		{
+			h ^= (partial.get(i) & 0xff) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+		}
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private void stripe(ByteBuffer b, int pos) {
+		v1 = round(v1, b.getLong(pos));
+		v2 = round(v2, b.getLong(pos + 8));
+		v3 = round(v3, b.getLong(pos + 16));
+		v4 = round(v4, b.getLong(pos + 24));
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long merge(long h, long v) {
+		h ^= round(0, v);
+		return h * P1 + P4;
+	}
+}
@@ -0,0 +1,130 @@
+package view;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import javafx.collections.ObservableList;
+import javafx.scene.control.TreeItem;
+import model.Album;
+
+/**
+ * Tree node for an album. Its child nodes are only created the first time
+ * they are asked for, which the TreeView does when the node is expanded, so
+ * the subalbums of a lazily loaded hierarchy are not decoded before they are shown.
+ *
+ * All nodes of a tree share an index from album to node, so the node of an
+ * album is found without searching the tree. Only nodes that were created are
+ * in it. Subalbums are read under the model's read lock, as the albums are
+ * changed on another thread.
+ */
+public class AlbumTreeItem extends TreeItem<Album> {
+
+	private final Map<Album, AlbumTreeItem> index;
+	private final Lock readLock;
+	private boolean populated = false;
+
+	/**
+	 * Create the root node of a tree, for albums guarded by readLock.
+	 */
+	public AlbumTreeItem(Album album, Lock readLock) {
+		this(album, new IdentityHashMap<>(), readLock);
+	}
+
+	private AlbumTreeItem(Album album, Map<Album, AlbumTreeItem> index, Lock readLock) {
+		super(album);
+		this.index = index;
+		this.readLock = readLock;
+		index.put(album, this);
+	}
+
+	@Override
+	public boolean isLeaf() {
+		if (!populated)
+			return getValue().getSubAlbumCount() == 0;
+		return super.getChildren().isEmpty();
+	}
+
+	@Override
+	public ObservableList<TreeItem<Album>> getChildren() {
+		if (!populated) {
+			populated = true;
+			List<Album> subAlbums;
+			readLock.lock();
+			try {
+				subAlbums = getValue().getSubAlbums();
+			} finally {
+				readLock.unlock();
+			}
+			List<AlbumTreeItem> children = new ArrayList<>(subAlbums.size());
+			for (Album a : subAlbums)
+				children.add(new AlbumTreeItem(a, index, readLock));
+			super.getChildren().addAll(children);
+		}
+		return super.getChildren();
+	}
+
+	/**
+	 * Returns the node of album in this node's tree, or null if it has not
+	 * been created yet.
+	 */
+	public AlbumTreeItem find(Album album) {
+		return index.get(album);
+	}
+
+	/**
+	 * Add a node for an album that was just added as a subalbum of this
+	 * node's album. If the child nodes have not been created yet, there is
+	 * nothing to do, as they will include it once they are. Neither if the
+	 * child nodes were created after the album was added.
+	 * The node goes where the album is among its siblings, e.g. back in its
+	 * place when a removal is undone.
+	 */
+	public void addChild(Album album) {
+		if (!populated || index.containsKey(album))
+			return;
+		int position;
+		readLock.lock();
+		try {
+			position = getValue().getSubAlbums().indexOf(album);
+		} finally {
+			readLock.unlock();
+		}
+		ObservableList<TreeItem<Album>> children = super.getChildren();
+		AlbumTreeItem node = new AlbumTreeItem(album, index, readLock);
+		if (position < 0 || position >= children.size())
+			children.add(node);
+		else
+			children.add(position, node);
+	}
+
+	/**
+	 * Take this node out of its tree, together with the nodes below it.
+	 */
+	public void remove() {
+		if (getParent() != null)
+			getParent().getChildren().remove(this);
+		unindex();
+	}
+
+	/**
+	 * Show another album in this node, dropping all child nodes.
+	 */
+	public void reset(Album album) {
+		populated = false;
+		super.getChildren().clear();
+		index.clear();
+		setValue(album);
+		index.put(album, this);
+	}
+
+	private void unindex() {
+		index.remove(getValue());
+		if (populated) {
+			for (TreeItem<Album> child : super.getChildren())
+				((AlbumTreeItem) child).unindex();
+		}
+	}
+}
@@ -15,8 +15,9 @@ import javafx.scene.layout.BorderPane;
 import javafx.stage.Stage;
 
 import model.Album;
+import model.AlbumChange;
 import model.SoundClip;
-import model.SoundClipBlockingQueue;
+import model.SoundClipPlayQueue;
 import model.SoundClipPlayer;
 
 public class AlbumWindow extends Stage implements MusicOrganizerObserver {
@@ -25,13 +26,17 @@ public class AlbumWindow extends Stage implements MusicOrganizerObserver {
 	private SoundClipListView soundClipTable;
 	private Album currentAlbum;
 	
-	public AlbumWindow(Album album, SoundClipBlockingQueue queue, MusicOrganizerWindow view, MusicOrganizerController inController)
+	public AlbumWindow(Album album, SoundClipPlayQueue queue, MusicOrganizerWindow view, MusicOrganizerController inController)
 	{
 		controller = inController;
 		
 		this.setOnCloseRequest(e->{
 			onWindowClosed();
 		});
+		// Hidden also when closed by the program, not only by the user.
+		this.setOnHidden(e->{
+			soundClipTable.dispose();
+		});
 		currentAlbum = album;
 		 
 		// Create a layout
@@ -52,18 +57,30 @@ public class AlbumWindow extends Stage implements MusicOrganizerObserver {
 	}
 	
 	@Override
-	public boolean update(Album changed)
+	public boolean update(List<AlbumChange> changes)
 	{
-		// Check if this or my parent album was deleted.
-		if (!controller.getRootAlbum().containsAlbum(currentAlbum))
+		// The list follows the songs of the album by itself.
+		for (AlbumChange change : changes)
 		{
-			close();
-			return true; // Return true to remove this from observers list.
+			Album changed = change.getAlbum();
+			switch (change.getType())
+			{
+			case ALBUM_REMOVED:
+				// Check if this or my parent album was deleted.
+				if (changed == currentAlbum || changed.containsAlbum(currentAlbum))
+				{
+					close();
+					return true; // Return true to remove this from observers list.
+				}
+				break;
+			case ALBUM_RENAMED:
+				if (changed == currentAlbum)
+					setTitle(currentAlbum.getAlbumName());
+				break;
+			default:
+				break;
+			}
 		}
-		
-		// Check if songs were added or removed from this or child album.
-		if (changed == currentAlbum || currentAlbum.containsAlbum(changed))
-			soundClipTable.display(changed);
 		return false;
 	}
 	
@@ -82,10 +99,11 @@ public class AlbumWindow extends Stage implements MusicOrganizerObserver {
 		}
 	}
  
-	private SoundClipListView createSoundClipListView(Album album, SoundClipBlockingQueue queue, MusicOrganizerWindow view) {
+	private SoundClipListView createSoundClipListView(Album album, SoundClipPlayQueue queue, MusicOrganizerWindow view) {
 		SoundClipListView v = new SoundClipListView();
 		v.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
-		v.display(album);
+		v.showClipInfo(controller.getClipInfo());
+		controller.getExecutor().read(() -> v.display(album));
 		
 		v.setOnMouseClicked(e->{
 			if(e.getClickCount() == 2) {
@@ -0,0 +1,327 @@
+package view;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import model.Album;
+import model.AudioBackend;
+import model.ClipEdit;
+import model.ClipFingerprinter;
+import model.ClipInfoStore;
+import model.FileAudioSink;
+import model.NullAudioSink;
+import model.PcmAudioBackend;
+import model.SearchIndex;
+import model.SoundClip;
+import model.SoundClipBlockingQueue;
+import model.SoundClipPlayQueue;
+
+/* Micro benchmarks for the model, run by hand.
+ * Each benchmark doubles its input size a few times so that the
+ * scaling is visible from the time per element.
+ */
+public class BenchmarkRun
+{
+	public static void main(String[] args)
+	{
+		benchmarkBulkAdd();
+		benchmarkBatchAddDeep();
+		benchmarkPlayQueue();
+		benchmarkPcmBackend();
+		benchmarkFingerprint();
+		benchmarkSearch();
+		benchmarkUndoRemove();
+	}
+	
+	// Add clips one by one to a subalbum, which also adds them to the root.
+	public static void benchmarkBulkAdd()
+	{
+		System.out.println("Album.addSong, bulk add into subalbum of root:");
+		for(int n = 62_500; n <= 500_000; n *= 2)
+		{
+			List<SoundClip> clips = makeClips(n);
+			Album root = Album.createAlbum("Root");
+			Album sub = Album.createSubAlbum("Sub", root);
+			
+			long start = System.nanoTime();
+			for(SoundClip c : clips)
+				sub.addSong(c);
+			long elapsed = System.nanoTime() - start;
+			
+			report(n, elapsed);
+		}
+	}
+	
+	// Add a batch of clips to an album 10 levels deep, then remove it from the
+	// top so that the removal cascades all the way down.
+	public static void benchmarkBatchAddDeep()
+	{
+		System.out.println("Album.addSongs/removeSongs, batch into album 10 levels deep:");
+		for(int n = 10_000; n <= 80_000; n *= 2)
+		{
+			List<SoundClip> clips = makeClips(n);
+			Album root = Album.createAlbum("Root");
+			Album top = Album.createSubAlbum("Level 0", root);
+			Album deep = top;
+			for(int i = 1; i < 10; ++i)
+				deep = Album.createSubAlbum("Level " + i, deep);
+			
+			long start = System.nanoTime();
+			deep.addSongs(clips);
+			long added = System.nanoTime();
+			top.removeSongs(clips);
+			long removed = System.nanoTime();
+			
+			System.out.print("  add");
+			report(n, added - start);
+			System.out.print("  remove");
+			report(n, removed - added);
+		}
+	}
+	
+	// Several producer threads enqueue into one consumer, with the old
+	// monitor based queue and with the lock-free play queue.
+	public static void benchmarkPlayQueue()
+	{
+		final int producers = 4;
+		System.out.println("Play queue, " + producers + " producers into one consumer:");
+		List<SoundClip> request = Collections.singletonList(makeClips(1).get(0));
+		for(int n = 250_000; n <= 2_000_000; n *= 2)
+		{
+			final int perProducer = n / producers;
+			
+			SoundClipBlockingQueue blocking = new SoundClipBlockingQueue();
+			long start = System.nanoTime();
+			runProducers(producers, () -> { for(int i = 0; i < perProducer; ++i) blocking.enqueue(request); },
+					() -> { for(int i = 0; i < perProducer * producers; ++i) blocking.dequeue(); });
+			System.out.print("  blocking queue, dequeue  ");
+			report(n, System.nanoTime() - start);
+			
+			SoundClipPlayQueue lockFree = new SoundClipPlayQueue();
+			start = System.nanoTime();
+			runProducers(producers, () -> { for(int i = 0; i < perProducer; ++i) lockFree.enqueue(request); },
+					() -> { for(int i = 0; i < perProducer * producers; ++i) lockFree.dequeue(); });
+			System.out.print("  play queue, dequeue      ");
+			report(n, System.nanoTime() - start);
+			
+			SoundClipPlayQueue drained = new SoundClipPlayQueue();
+			start = System.nanoTime();
+			runProducers(producers, () -> { for(int i = 0; i < perProducer; ++i) drained.enqueue(request); },
+					() -> { for(int i = 0; i < perProducer * producers; ) i += drained.dequeueAll().size(); });
+			System.out.print("  play queue, dequeueAll   ");
+			report(n, System.nanoTime() - start);
+			
+			SoundClipPlayQueue bounded = new SoundClipPlayQueue(1024, SoundClipPlayQueue.Policy.BLOCK);
+			start = System.nanoTime();
+			runProducers(producers, () -> { for(int i = 0; i < perProducer; ++i) bounded.enqueue(request); },
+					() -> { for(int i = 0; i < perProducer * producers; ) i += bounded.dequeueAll().size(); });
+			System.out.print("  play queue, 1024 BLOCK   ");
+			report(n, System.nanoTime() - start);
+		}
+	}
+	
+	// Open WAV files on the PCM backend, then mix them all without a sound card.
+	public static void benchmarkPcmBackend()
+	{
+		final int count = 100;
+		System.out.println("PcmAudioBackend, " + count + " one second clips:");
+		try
+		{
+			Path dir = Files.createTempDirectory("pcmbench");
+			List<SoundClip> clips = new ArrayList<>();
+			for(int i = 0; i < count; ++i)
+			{
+				Path file = dir.resolve("clip" + i + ".wav");
+				FileAudioSink sink = new FileAudioSink(file);
+				sink.open(i % 2 == 0 ? 44100 : 48000, 2);
+				sink.write(ByteBuffer.allocate((i % 2 == 0 ? 44100 : 48000) * 4));
+				sink.close();
+				file.toFile().deleteOnExit();
+				clips.add(new SoundClip(file.toFile()));
+			}
+			dir.toFile().deleteOnExit();
+			
+			// Without and with a crossfade.
+			for(long crossfade : new long[] {0, 200})
+			{
+				System.out.println("  crossfade " + crossfade + " ms:");
+				PcmAudioBackend backend = new PcmAudioBackend(new NullAudioSink(false));
+				backend.setCrossfade(crossfade);
+				List<AudioBackend.Voice> voices = new ArrayList<>();
+				long worst = 0;
+				long start = System.nanoTime();
+				for(SoundClip c : clips)
+				{
+					long t = System.nanoTime();
+					voices.add(backend.open(c, null));
+					worst = Math.max(worst, System.nanoTime() - t);
+				}
+				long opened = System.nanoTime() - start;
+				System.out.printf("    open: %6.1f us per clip, worst %6.1f us%n", opened / 1e3 / count, worst / 1e3);
+				
+				// Play them one after the other, like the player does with no gap.
+				// A crossfade overlaps each clip with the next.
+				double seconds = count - (count - 1) * crossfade / 1e3;
+				CountDownLatch done = new CountDownLatch(1);
+				for(int i = 0; i < count; ++i)
+				{
+					final AudioBackend.Voice next = i + 1 < count ? voices.get(i + 1) : null;
+					voices.get(i).setOnEnd(next != null ? next::play : done::countDown);
+				}
+				start = System.nanoTime();
+				voices.get(0).play();
+				done.await();
+				long mixed = System.nanoTime() - start;
+				System.out.printf("    mix:  %6.1f ms for %.1f s of audio, %.0fx real time%n", mixed / 1e6, seconds, seconds / (mixed / 1e9));
+				backend.close();
+			}
+		}
+		catch(IOException | InterruptedException e)
+		{
+			System.out.println("  failed: " + e);
+		}
+	}
+	
+	// Hash files of the same size, as finding duplicates does, then again from the cache.
+	public static void benchmarkFingerprint()
+	{
+		final int count = 16;
+		final int size = 16 << 20;
+		System.out.println("ClipFingerprinter, " + count + " files of " + (size >> 20) + " MB:");
+		try
+		{
+			Path dir = Files.createTempDirectory("hashbench");
+			List<SoundClip> clips = new ArrayList<>();
+			byte[] data = new byte[size];
+			for(int i = 0; i < count; ++i)
+			{
+				data[0] = (byte) (i / 2); // Pairs of files are the same.
+				Path file = Files.write(dir.resolve("clip" + i + ".wav"), data);
+				file.toFile().deleteOnExit();
+				clips.add(new SoundClip(file.toFile()));
+			}
+			dir.toFile().deleteOnExit();
+			
+			ClipFingerprinter fingerprinter = new ClipFingerprinter(new ClipInfoStore(), null);
+			for(String pass : new String[] { "hash  ", "cached" })
+			{
+				long start = System.nanoTime();
+				int groups = fingerprinter.findDuplicates(clips, ClipFingerprinter.Mode.FILE, null).size();
+				long elapsed = System.nanoTime() - start;
+				System.out.printf("  %s %6.1f ms, %6.0f MB/s, %d duplicate groups%n", pass, elapsed / 1e6, (double) count * size / (1 << 20) / (elapsed / 1e9), groups);
+			}
+		}
+		catch(IOException | InterruptedException e)
+		{
+			System.out.println("  failed: " + e);
+		}
+	}
+	
+	private interface Work
+	{
+		void run() throws InterruptedException;
+	}
+	
+	// Run the producers and the consumer on their own threads and wait for all of them.
+	private static void runProducers(int producers, Work producer, Work consumer)
+	{
+		List<Thread> threads = new ArrayList<>();
+		for(Work w : Collections.nCopies(producers, producer))
+			threads.add(new Thread(() -> { try { w.run(); } catch(InterruptedException e) { } }));
+		threads.add(new Thread(() -> { try { consumer.run(); } catch(InterruptedException e) { } }));
+		for(Thread t : threads)
+			t.start();
+		try
+		{
+			for(Thread t : threads)
+				t.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	// Index clips with names made of a few words, then time queries on them.
+	public static void benchmarkSearch()
+	{
+		System.out.println("SearchIndex, index clip names and search them:");
+		String[] words = { "kick", "snare", "hihat", "crash", "tom", "bass", "pad", "lead", "vocal", "fx" };
+		String[] moods = { "dry", "punchy", "warm", "dark", "bright", "tape", "room", "wide" };
+		String[] queries = { "punchy", "snare_dark", "ki", "pad_wide_12", "folder12", "zzz" };
+		for(int n = 125_000; n <= 1_000_000; n *= 2)
+		{
+			List<SoundClip> clips = new ArrayList<>(n);
+			for(int i = 0; i < n; ++i)
+				clips.add(new SoundClip(new File("search/folder" + (i % 500) + "/" + words[i % words.length] + "_"
+						+ moods[(i / words.length) % moods.length] + "_" + (i % 997) + ".wav")));
+			SearchIndex index = new SearchIndex();
+			long start = System.nanoTime();
+			index.addClips(clips);
+			System.out.print("  index");
+			report(n, System.nanoTime() - start);
+			
+			for(String q : queries)
+				index.search(q, 100); // Warm up
+			for(String q : queries)
+			{
+				final int rounds = 200;
+				SearchIndex.Result result = null;
+				start = System.nanoTime();
+				for(int i = 0; i < rounds; ++i)
+					result = index.search(q, 100);
+				System.out.printf("    %-12s %8.3f ms, %s%n", "'" + q + "'", (System.nanoTime() - start) / 1e6 / rounds, result);
+			}
+		}
+	}
+	
+	// Remove a batch of clips from an album with subalbums, then undo and redo it.
+	public static void benchmarkUndoRemove()
+	{
+		System.out.println("ClipEdit, remove from album with 4 subalbums, undo, redo:");
+		for(int n = 25_000; n <= 200_000; n *= 2)
+		{
+			List<SoundClip> clips = makeClips(n);
+			Album root = Album.createAlbum("Root");
+			Album top = Album.createSubAlbum("Top", root);
+			top.addSongs(clips);
+			for(int i = 0; i < 4; ++i)
+				Album.createSubAlbum("Sub " + i, top).addSongs(clips.subList(i * n / 4, (i + 1) * n / 4));
+			
+			long start = System.nanoTime();
+			ClipEdit edit = ClipEdit.remove(top, clips);
+			long removed = System.nanoTime();
+			edit.undo();
+			long undone = System.nanoTime();
+			edit.redo();
+			long redone = System.nanoTime();
+			
+			System.out.print("  remove");
+			report(n, removed - start);
+			System.out.print("  undo");
+			report(n, undone - removed);
+			System.out.print("  redo");
+			report(n, redone - undone);
+		}
+	}
+	
+	static List<SoundClip> makeClips(int n)
+	{
+		List<SoundClip> clips = new ArrayList<>(n);
+		for(int i = 0; i < n; ++i)
+			clips.add(new SoundClip(new File("bench/folder" + (i % 1000) + "/clip" + i + ".wav")));
+		return clips;
+	}
+	
+	static void report(int n, long elapsedNanos)
+	{
+		System.out.printf("  %,9d elements: %7.1f ms, %6.0f ns/element%n", n, elapsedNanos / 1e6, (double) elapsedNanos / n);
+	}
+}
@@ -1,6 +1,7 @@
 package view;
 
 
+import java.io.File;
 import java.util.List;
 
 import controller.MusicOrganizerController;
@@ -8,6 +9,8 @@ import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.control.Button;
 import javafx.scene.control.Tooltip;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
 import model.Album;
@@ -20,12 +23,19 @@ public class ButtonPaneHBox extends HBox {
 	private MusicOrganizerWindow view;
 	
 	private Button newAlbumButton;
+	private Button newSmartAlbumButton;
 	private Button deleteAlbumButton;
+	private Button renameAlbumButton;
 	private Button addSoundClipsButton;
 	private Button removeSoundClipsButton;	
 	private Button playButton;
+	private Button stopButton;
+	private Button skipButton;
 	private Button albumWindowButton;
+	private Button undoButton;
+	private Button redoButton;
 	public static final int BUTTON_MIN_WIDTH = 150;
+	private static final String ICON_FOLDER = "icons";
 
 	
 	
@@ -36,10 +46,16 @@ public class ButtonPaneHBox extends HBox {
 		
 		newAlbumButton = createNewAlbumButton();
 		this.getChildren().add(newAlbumButton);
+		
+		newSmartAlbumButton = createNewSmartAlbumButton();
+		this.getChildren().add(newSmartAlbumButton);
 
 		deleteAlbumButton = createDeleteAlbumButton();
 		this.getChildren().add(deleteAlbumButton);
 		
+		renameAlbumButton = createRenameAlbumButton();
+		this.getChildren().add(renameAlbumButton);
+		
 		addSoundClipsButton = createAddSoundClipsButton();
 		this.getChildren().add(addSoundClipsButton);
 		
@@ -49,9 +65,21 @@ public class ButtonPaneHBox extends HBox {
 		playButton = createPlaySoundClipsButton();
 		this.getChildren().add(playButton);
 		
+		stopButton = createStopSoundClipsButton();
+		this.getChildren().add(stopButton);
+		
+		skipButton = createSkipSoundClipButton();
+		this.getChildren().add(skipButton);
+		
 		albumWindowButton = createNewAlbumWindowButton();
 		this.getChildren().add(albumWindowButton);
 		
+		undoButton = createUndoButton();
+		this.getChildren().add(undoButton);
+		
+		redoButton = createRedoButton();
+		this.getChildren().add(redoButton);
+		
 
 	}
 	
@@ -77,6 +105,25 @@ public class ButtonPaneHBox extends HBox {
 		return button;
 	}
 	
+	private Button createNewSmartAlbumButton() {
+		Button button = new Button("New Smart Album");
+		button.setTooltip(new Tooltip("Create sub-album of the clips in selected album that match a rule"));
+		button.setMinWidth(BUTTON_MIN_WIDTH);
+		button.setOnAction(e->{
+			Album album = view.getSelectedAlbum();
+			if(album!=null)
+			{
+				String albName = view.promptForAlbumName();
+				if(albName==null)
+					return;
+				String rule = view.promptForRule();
+				if(rule!=null)
+					controller.addSmartAlbum(album, albName, rule);
+			}
+		});
+		return button;
+	}
+	
 	private Button createDeleteAlbumButton() {
 		Button button = new Button("Remove Album");
 		button.setTooltip(new Tooltip("Remove selected album"));
@@ -89,6 +136,22 @@ public class ButtonPaneHBox extends HBox {
 		return button;
 	}
 	
+	private Button createRenameAlbumButton() {
+		Button button = new Button("Rename Album");
+		button.setTooltip(new Tooltip("Give the selected album a new name"));
+		button.setMinWidth(BUTTON_MIN_WIDTH);
+		button.setOnAction(e->{
+			Album album = view.getSelectedAlbum();
+			if(album!=null)
+			{
+				String albName = view.promptForAlbumName();
+				if(albName!=null)
+					controller.renameAlbum(album, albName);
+			}
+		});
+		return button;
+	}
+	
 	private Button createAddSoundClipsButton() {
 		Button button = new Button("Add Sound Clips");
 		button.setTooltip(new Tooltip("Add selected sound clips to selected album"));
@@ -131,6 +194,24 @@ public class ButtonPaneHBox extends HBox {
 		return button;
 	}
 	
+	private Button createStopSoundClipsButton() {
+		Button button = new Button("Stop");
+		button.setTooltip(new Tooltip("Stop playing sound clips"));
+		button.setOnAction(e->{
+			controller.stopSoundClips();
+		});
+		return button;
+	}
+	
+	private Button createSkipSoundClipButton() {
+		Button button = new Button("Skip");
+		button.setTooltip(new Tooltip("Skip to the next sound clip"));
+		button.setOnAction(e->{
+			controller.skipSoundClip();
+		});
+		return button;
+	}
+	
 	private Button createNewAlbumWindowButton() {
 		Button button = new Button("New album window");
 		button.setTooltip(new Tooltip("Open an album in a new window"));
@@ -144,4 +225,27 @@ public class ButtonPaneHBox extends HBox {
 		});
 		return button;
 	}
+	
+	private Button createUndoButton() {
+		Button button = new Button("Undo", icon("Actions-blue-arrow-undo-icon.png"));
+		button.setTooltip(new Tooltip("Undo the last change to the albums"));
+		button.setOnAction(e->{
+			controller.undo(1);
+		});
+		return button;
+	}
+	
+	private Button createRedoButton() {
+		Button button = new Button("Redo", icon("Actions-blue-arrow-redo-icon.png"));
+		button.setTooltip(new Tooltip("Redo the last change that was undone"));
+		button.setOnAction(e->{
+			controller.redo(1);
+		});
+		return button;
+	}
+	
+	// An icon from the icons folder, shown small next to the button text.
+	private static ImageView icon(String name) {
+		return new ImageView(new Image(new File(ICON_FOLDER, name).toURI().toString(), 16, 16, true, true));
+	}
 }
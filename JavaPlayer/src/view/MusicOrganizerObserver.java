@@ -1,7 +1,13 @@
 package view;
-import model.Album;
+import java.util.List;
+
+import model.AlbumChange;
 
 public interface MusicOrganizerObserver {
-	boolean update(Album changed);
+	/* Called once per frame at most, with the changes to the observed album's
+	 * subtree since the last call, merged where possible.
+	 * Return true to be removed from the observers.
+	 */
+	boolean update(List<AlbumChange> changes);
 	void notifyClose();
 }
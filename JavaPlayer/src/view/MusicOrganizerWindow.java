@@ -1,51 +1,77 @@
 package view;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
 
 import controller.MusicOrganizerController;
+import export.AlbumExporter;
+import export.ExportFormat;
+import export.ExportWriter;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
 import javafx.event.EventHandler;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 import model.Album;
+import model.AlbumStore;
+import model.ClipFingerprinter;
 import model.SoundClip;
 import javafx.scene.Scene;
+import javafx.scene.control.Button;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.ScrollPane.ScrollBarPolicy;
 import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TextArea;
+import javafx.scene.control.TextField;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.TreeItem;
 import javafx.scene.control.TreeView;
+import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
+import javafx.util.Duration;
 
 public class MusicOrganizerWindow extends Application {
 
+	// Search once typing pauses this long, not on every key.
+	private static final int SEARCH_DELAY_MS = 200;
+
 	private BorderPane bord;
 	private static MusicOrganizerController controller;
-	private TreeItem<Album> rootNode;
+	private static String libraryPath;
+	private AlbumTreeItem rootNode;
 	private TreeView<Album> tree;
 	private ButtonPaneHBox buttons;
 	private SoundClipListView soundClipTable;
 	private TextArea messages;
+	private TextField searchField;
+	private ProgressBar progressBar;
+	private HBox progressPane;
+	private Task<?> shownTask; // The task whose progress is shown, it can be cancelled
 	private MenuBar menuBar;
 
 	public static void main(String[] args) {
 		controller = new MusicOrganizerController();
 		if (args.length == 0) {
-			controller.loadSoundClips("sample-sound");
+			libraryPath = "sample-sound";
 		} else if (args.length == 1) {
-			controller.loadSoundClips(args[0]);
+			libraryPath = args[0];
 		} else {
 			System.err.println("too many command-line arguments");
 			System.exit(0);
@@ -67,14 +93,19 @@ public class MusicOrganizerWindow extends Application {
 			menuItem1.setOnAction(e -> {
 				FileChooser saveChooser = new FileChooser();
 				saveChooser.setTitle("Save album as...");
-				saveChooser.getExtensionFilters().addAll(
-						new ExtensionFilter("Album Hierarchy", "*.ahl"),
-						new ExtensionFilter("Export HTML", "*.html"));
+				saveChooser.getExtensionFilters().add(new ExtensionFilter("Album Hierarchy", "*.ahl"));
+				for (ExportFormat format : ExportFormat.values()) {
+					List<String> patterns = new ArrayList<>();
+					for (String ext : format.getExtensions())
+						patterns.add("*." + ext);
+					saveChooser.getExtensionFilters().add(new ExtensionFilter("Export " + format.getDescription(), patterns));
+				}
 				File selectedFile = saveChooser.showSaveDialog(primaryStage);
 				if (selectedFile != null) {
 					String filePath = selectedFile.getPath();
-					if (filePath.endsWith(".html")) {
-						saveAsHTML(selectedFile);
+					ExportFormat format = ExportFormat.forFile(selectedFile.toPath());
+					if (format != null) {
+						export(selectedFile, format);
 					}
 					if (filePath.endsWith(".ahl")) {
 						saveAsAHL(selectedFile);
@@ -94,16 +125,34 @@ public class MusicOrganizerWindow extends Application {
 			});
 			MenuItem menuItem3 = new MenuItem("Exit");
 			menuItem3.setOnAction(e -> {
+				controller.shutdown();
 				Platform.exit();
 				System.exit(0);
 			});
 			Menu menu = new Menu("File");
 			menu.getItems().addAll(menuItem1, menuItem2, menuItem3);
-			menuBar = new MenuBar(menu);
+			MenuItem findFiles = new MenuItem("Find Duplicate Files");
+			findFiles.setOnAction(e -> findDuplicates(ClipFingerprinter.Mode.FILE));
+			MenuItem findAudio = new MenuItem("Find Duplicate Audio");
+			findAudio.setOnAction(e -> findDuplicates(ClipFingerprinter.Mode.PCM));
+			MenuItem timings = new MenuItem("Show UI Timings");
+			timings.setOnAction(e -> displayMessage(controller.getExecutor().toString()));
+			MenuItem undo = new MenuItem("Undo");
+			undo.setAccelerator(KeyCombination.keyCombination("Shortcut+Z"));
+			undo.setOnAction(e -> controller.undo(1));
+			MenuItem redo = new MenuItem("Redo");
+			redo.setAccelerator(KeyCombination.keyCombination("Shortcut+Y"));
+			redo.setOnAction(e -> controller.redo(1));
+			Menu edit = new Menu("Edit");
+			edit.getItems().addAll(undo, redo);
+			Menu tools = new Menu("Tools");
+			tools.getItems().addAll(findFiles, findAudio, timings);
+			menuBar = new MenuBar(menu, edit, tools);
 
 			// Create buttons in the top of the GUI
 			buttons = new ButtonPaneHBox(controller, this);
-			VBox vBox = new VBox(menuBar, buttons);
+			searchField = createSearchField();
+			VBox vBox = new VBox(menuBar, buttons, searchField);
 			bord.setTop(vBox);
 
 			// Create the tree in the left of the GUI
@@ -114,8 +163,8 @@ public class MusicOrganizerWindow extends Application {
 			soundClipTable = createSoundClipListView();
 			bord.setCenter(soundClipTable);
 
-			// Create the text area in the bottom of the GUI
-			bord.setBottom(createBottomTextArea());
+			// Create the progress bar and text area in the bottom of the GUI
+			bord.setBottom(new VBox(createProgressPane(), createBottomTextArea()));
 
 			Scene scene = new Scene(bord);
 
@@ -126,6 +175,7 @@ public class MusicOrganizerWindow extends Application {
 
 				@Override
 				public void handle(WindowEvent arg0) {
+					controller.shutdown();
 					Platform.exit();
 					System.exit(0);
 
@@ -135,6 +185,11 @@ public class MusicOrganizerWindow extends Application {
 
 			primaryStage.show();
 
+			// Bring back the albums of the last run, then load the library in the
+			// background, the window fills as it comes in
+			controller.restoreAlbums(libraryPath);
+			showProgress(controller.loadSoundClips(libraryPath));
+
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -142,12 +197,13 @@ public class MusicOrganizerWindow extends Application {
 	}
 
 	private TreeView<Album> createTreeView() {
-		rootNode = new TreeItem<>(controller.getRootAlbum());
+		rootNode = new AlbumTreeItem(controller.getRootAlbum(), controller.getExecutor().getReadLock());
 		TreeView<Album> v = new TreeView<>(rootNode);
 
 		v.setOnMouseClicked(e -> {
 			if (e.getClickCount() == 2) {
 				// This code gets invoked whenever the user double clicks in the TreeView
+				searchField.clear();
 				onClipsUpdated();
 			}
 		});
@@ -158,7 +214,8 @@ public class MusicOrganizerWindow extends Application {
 	private SoundClipListView createSoundClipListView() {
 		SoundClipListView v = new SoundClipListView();
 		v.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
-		v.display(controller.getRootAlbum());
+		v.showClipInfo(controller.getClipInfo());
+		controller.getExecutor().read(() -> v.display(controller.getRootAlbum()));
 
 		v.setOnMouseClicked(e -> {
 			if (e.getClickCount() == 2) {
@@ -171,6 +228,51 @@ public class MusicOrganizerWindow extends Application {
 		return v;
 	}
 
+	private TextField createSearchField() {
+		TextField field = new TextField();
+		field.setPromptText("Search clips, folders and albums");
+		PauseTransition pause = new PauseTransition(Duration.millis(SEARCH_DELAY_MS));
+		pause.setOnFinished(e -> search(field.getText()));
+		field.textProperty().addListener((obs, old, text) -> pause.playFromStart());
+		return field;
+	}
+
+	// Show the clips matching query, or the selected album again when it is empty.
+	private void search(String query) {
+		if (query.trim().isEmpty()) {
+			controller.cancelSearch();
+			onClipsUpdated();
+			return;
+		}
+		controller.search(query, result -> {
+			soundClipTable.displayClips(result.getClips());
+			StringBuilder message = new StringBuilder("Search '" + query + "': " + result);
+			List<Album> albums = result.getAlbums();
+			for (int i = 0; i < albums.size() && i < 5; ++i)
+				message.append(i == 0 ? ", albums: " : ", ").append(albums.get(i).getAlbumName());
+			if (albums.size() > 5)
+				message.append(", ...");
+			displayMessage(message.toString());
+		});
+	}
+
+	private HBox createProgressPane() {
+		progressBar = new ProgressBar();
+		progressBar.setMaxWidth(Double.MAX_VALUE);
+		HBox.setHgrow(progressBar, Priority.ALWAYS);
+		Button cancel = new Button("Cancel");
+		cancel.setOnAction(e -> {
+			if (shownTask != null)
+				shownTask.cancel(true);
+		});
+		progressPane = new HBox(progressBar, cancel);
+		progressPane.prefWidthProperty().bind(bord.widthProperty());
+		// Only shown while something runs in the background
+		progressPane.setVisible(false);
+		progressPane.setManaged(false);
+		return progressPane;
+	}
+
 	private ScrollPane createBottomTextArea() {
 		messages = new TextArea();
 		messages.setPrefRowCount(3);
@@ -223,6 +325,24 @@ public class MusicOrganizerWindow extends Application {
 		}
 	}
 
+	/**
+	 * Pops up a dialog for the rule of a smart album, e.g. "ext:wav duration:..2s"
+	 */
+	public String promptForRule() {
+		TextInputDialog dialog = new TextInputDialog();
+
+		dialog.setTitle("Enter rule");
+		dialog.setHeaderText("Terms, all of which a clip must match:\n"
+				+ "glob:**/drums/* ext:wav,aif folder:/path duration:1s..30s size:..2M");
+		dialog.setContentText("Please enter the rule for the smart album");
+		Optional<String> result = dialog.showAndWait();
+		if (result.isPresent()) {
+			return result.get();
+		} else {
+			return null;
+		}
+	}
+
 	/**
 	 * Return all the sound clips currently selected in the clip table.
 	 */
@@ -242,9 +362,10 @@ public class MusicOrganizerWindow extends Application {
 	 * @param newAlbum
 	 */
 	public void onAlbumAdded(Album parent, Album newAlbum) {
-		TreeItem<Album> root = tree.getRoot();
-		TreeItem<Album> parentNode = findAlbumNode(parent, root);
-		parentNode.getChildren().add(new TreeItem<>(newAlbum));
+		AlbumTreeItem parentNode = rootNode.find(parent);
+		if (parentNode == null)
+			return; // Not shown yet, the node is made when its parent is expanded.
+		parentNode.addChild(newAlbum);
 		parentNode.setExpanded(true); // automatically expand the parent node in the tree
 	}
 
@@ -252,25 +373,17 @@ public class MusicOrganizerWindow extends Application {
 	 * Updates the album hierarchy by removing an album from it
 	 */
 	public void onAlbumRemoved(Album toRemove) {
-		TreeItem<Album> root = tree.getRoot();
-		TreeItem<Album> nodeToRemove = findAlbumNode(toRemove, root);
-		nodeToRemove.getParent().getChildren().remove(nodeToRemove);
+		AlbumTreeItem nodeToRemove = rootNode.find(toRemove);
+		if (nodeToRemove != null)
+			nodeToRemove.remove();
 	}
 
-	private TreeItem<Album> findAlbumNode(Album albumToFind, TreeItem<Album> root) {
-		// recursive method to locate a node that contains a specific album in the
-		// TreeView
-		if (root.getValue().equals(albumToFind)) {
-			return root;
-		}
-
-		for (TreeItem<Album> node : root.getChildren()) {
-			TreeItem<Album> item = findAlbumNode(albumToFind, node);
-			if (item != null)
-				return item;
-		}
-
-		return null;
+	/**
+	 * Shows the new name of an album in the hierarchy
+	 */
+	public void onAlbumRenamed(Album album) {
+		if (rootNode.find(album) != null)
+			tree.refresh();
 	}
 
 	/**
@@ -278,115 +391,81 @@ public class MusicOrganizerWindow extends Application {
 	 * been modified in an album
 	 */
 	public void onClipsUpdated() {
-		Album a = getSelectedAlbum();
-		soundClipTable.display(a);
+		if (!searchField.getText().trim().isEmpty())
+			return; // Search results stay until the search is cleared.
+		Album selected = getSelectedAlbum();
+		Album a = selected != null ? selected : controller.getRootAlbum();
+		controller.getExecutor().read(() -> soundClipTable.display(a));
 	}
 	
 	// Refresh albums and songs windows.
 	public void refreshEverything()
 	{
 		controller.clearObservers();
-		TreeItem<Album> root = tree.getRoot();
-		root.getChildren().clear();
 		Album rootAlbum = controller.getRootAlbum();
-		populateAlbums(root, rootAlbum);
-		root.setExpanded(true); // automatically expand the root node in the tree
-	}
-	
-	// Recursively populate album tree.
-	private void populateAlbums(TreeItem<Album> tree, Album album)
-	{
-		for(Album a : album.getSubAlbums())
-		{
-			TreeItem<Album> child = new TreeItem<>(a);
-			tree.getChildren().add(child);
-			populateAlbums(child,a);
-		}
+		rootNode.reset(rootAlbum);
+		rootNode.setExpanded(true); // automatically expand the root node in the tree
+		controller.getExecutor().read(() -> soundClipTable.display(rootAlbum));
 	}
 	
 	private void saveAsAHL(File file) {
-		try (FileOutputStream  writer = new FileOutputStream(file)) {
-			// Write the data to the file
-			controller.getRootAlbum().serializeOut(writer);
-			writer.close();
-			displayMessage("File saved successfully: " + file.getPath());
-		} catch (IOException e) {
-			displayMessage("Error saving file: " + e.getMessage());
-		}
+		showProgress(controller.getExecutor().submit("Save hierarchy", context -> {
+			return AlbumStore.save(controller.getRootAlbum(), file.toPath(), context::progress);
+		}, result -> {
+			displayMessage("File saved successfully: " + file.getPath() + " (" + result + ")");
+		}, error("Error saving file: ")));
 	}
 	
 	private void loadFromAHL(File file) {
-		try (FileInputStream  reader = new FileInputStream(file)) {
-			// Write the data to the file
-			controller.getRootAlbum().serializeIn(reader);
-			reader.close();
-			displayMessage("Imported hierarchy from: " + file.getPath());
-		} catch (IOException e) {
-			displayMessage("Error loading file: " + e.getMessage());
-		}
-		refreshEverything();
+		showProgress(controller.openHierarchy(file.toPath()));
 	}
 	
-	private void saveAsHTML(File file) {
-		try (FileWriter writer = new FileWriter(file)) {
-			// Write the data to the file
-			String htmlContent = generateHtmlContent();
-			writer.write(htmlContent);
-			writer.close();
-			displayMessage("File saved successfully: " + file.getPath());
-		} catch (IOException e) {
-			displayMessage("Error saving file: " + e.getMessage());
-		}
+	// Hash the library and show the clips that have the same content.
+	// In PCM mode only the audio counts, so files that differ in their headers match too.
+	private void findDuplicates(ClipFingerprinter.Mode mode) {
+		showProgress(controller.findDuplicates(mode));
 	}
-
-	private String generateHtmlContent() {
-		StringBuilder html = new StringBuilder();
-
-		// <html>
-		// <head><title>Music Organizer</title></head>
-		// <body>
-		// <h1> Music Organizer Hierarchy </h1>
-		//
-		// ...Album Contents...
-		//
-		// </body>
-		// </html>
-
-		html.append("<html>");
-		html.append("<head><title>Music Organizer</title></head>");
-		html.append("<body>");
-		html.append("<h1>Music Organizer Hierarchy</h1>");
-
-		Album rootAlbum = controller.getRootAlbum();
-		html.append(generateAlbumHTML(rootAlbum));
-
-		html.append("</body>");
-		html.append("</html>");
-		return html.toString();
+	
+	// Show the progress of a task and let the user cancel it, until it is done.
+	// The menus, which start more tasks like it, are disabled in the meantime.
+	private void showProgress(Task<?> task) {
+		shownTask = task;
+		menuBar.setDisable(true);
+		progressBar.progressProperty().bind(task.progressProperty());
+		progressPane.setVisible(true);
+		progressPane.setManaged(true);
+		task.stateProperty().addListener((obs, old, state) -> {
+			if (state != Worker.State.SUCCEEDED && state != Worker.State.FAILED && state != Worker.State.CANCELLED)
+				return;
+			if (shownTask != task)
+				return;
+			shownTask = null;
+			progressBar.progressProperty().unbind();
+			progressPane.setVisible(false);
+			progressPane.setManaged(false);
+			menuBar.setDisable(false);
+		});
 	}
-
-	private String generateAlbumHTML(Album album) {
-		StringBuilder html = new StringBuilder();
-
-		// <h1> Album Name </h1>
-		// <ul>
-		// <li> clip 1 </li>
-		// <li> clip 2 </li>
-		// <li> clip 3 </li>
-		// </ul>
-		html.append("<h1>").append(album.getAlbumName()).append("</h1>");
-		html.append("<ul>");
-		for (SoundClip clip : album.getSongs()) {
-			html.append("<li>").append(clip.toString()).append("</li>");
-		}
-		html.append("</ul>");
-
-		// Recursively generate HTML for sub-albums
-		for (Album subAlbum : album.getSubAlbums()) {
-			html.append(generateAlbumHTML(subAlbum));
-		}
-
-		return html.toString();
+	
+	// Report a failed or cancelled task in the message area.
+	private Consumer<Throwable> error(String prefix) {
+		return e -> displayMessage(e instanceof CancellationException ? e.getMessage() : prefix + e.getMessage());
+	}
+	
+	// Write the hierarchy to file in the background, streaming it as it is read.
+	private void export(File file, ExportFormat format) {
+		showProgress(controller.getExecutor().submit("Export " + format, context -> {
+			try (ExportWriter out = format.open(file.toPath(), controller.getClipInfo().getStore())) {
+				AlbumExporter.Result result = AlbumExporter.export(controller.getRootAlbum(), out, (done, total) -> {
+					context.checkCancelled();
+					context.progress(done, total);
+				});
+				out.commit();
+				return result + (out.getFiles() > 1 ? ", " + out.getFiles() + " pages" : "");
+			}
+		}, result -> {
+			displayMessage("File saved successfully: " + file.getPath() + " (" + result + ")");
+		}, error("Error saving file: ")));
 	}
 
 }
@@ -1,39 +1,196 @@
 package view;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import model.Album;
+import model.AlbumListener;
+import model.ClipInfo;
+import model.ClipInfoExtractor;
 import model.SoundClip;
 
 public class SoundClipListView extends ListView<SoundClip> {
 
-	private List<SoundClip> clips;
+	private Album album; // The album on display, null before the first display
+	private final BitSet shown = new BitSet(); // Ids of the clips in the items
+	private ClipInfoExtractor clipInfo;
+	private final AtomicBoolean refreshPending = new AtomicBoolean();
+	// Infos arrive on worker threads, redraw at most once per pulse.
+	private final Consumer<SoundClip> onClipInfo = clip -> {
+		if (refreshPending.compareAndSet(false, true))
+			Platform.runLater(() -> {
+				refreshPending.set(false);
+				refresh();
+			});
+	};
+	
+	// Changes to the album on display, applied to the items once per pulse.
+	private static class Delta {
+		final Album album;
+		final List<SoundClip> songs;
+		final boolean added;
+
+		Delta(Album album, List<SoundClip> songs, boolean added) {
+			this.album = album;
+			this.songs = songs;
+			this.added = added;
+		}
+	}
+	private final Queue<Delta> deltas = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean applyPending = new AtomicBoolean();
+	private final AlbumListener onAlbumChanged = new AlbumListener() {
+		@Override
+		public void songsAdded(Album changed, List<SoundClip> songs) {
+			post(new Delta(changed, songs, true));
+		}
+
+		@Override
+		public void songsRemoved(Album changed, List<SoundClip> songs) {
+			post(new Delta(changed, songs, false));
+		}
+	};
 	
 	public SoundClipListView() {
 		super();
-		clips = new ArrayList<>();
 	}
 
 	public SoundClipListView(ObservableList<SoundClip> arg0) {
 		super(arg0);
-		clips = new ArrayList<>();
 	}
 	
 	/**
-	 * Displays the contents of the specified album
+	 * Displays the contents of the specified album, and keeps them up to date
+	 * as songs are added to it or removed from it. Displaying the album that is
+	 * already on display does nothing.
 	 * @param album - the album which contents are to be displayed
 	 */
 	public void display(Album album)
 	{
-		this.getItems().clear();
-		clips = album.getSongs();
+		if (album == this.album)
+			return;
+		if (this.album != null)
+			this.album.removeListener(onAlbumChanged);
+		deltas.clear();
+		this.album = album;
+		shown.clear();
+		if (album == null)
+		{
+			setItems(FXCollections.observableArrayList());
+			return;
+		}
+		List<SoundClip> songs = album.getSongs();
+		for (SoundClip clip : songs)
+			shown.set(clip.getId());
+		album.addListener(onAlbumChanged);
+		setItems(FXCollections.observableArrayList(songs));
+	}
+	
+	/**
+	 * Displays a list of clips that belongs to no album, like search results.
+	 * It is not kept up to date.
+	 */
+	public void displayClips(List<SoundClip> clips)
+	{
+		if (album != null)
+			album.removeListener(onAlbumChanged);
+		album = null;
+		deltas.clear();
+		shown.clear();
+		for (SoundClip clip : clips)
+			shown.set(clip.getId());
+		setItems(FXCollections.observableArrayList(clips));
+	}
+	
+	private void post(Delta delta)
+	{
+		deltas.add(delta);
+		if (applyPending.compareAndSet(false, true))
+			Platform.runLater(this::applyDeltas);
+	}
+	
+	// Adds go to the end, removals are done in one pass over the items, so
+	// the cells and the selection of everything else stay as they are.
+	private void applyDeltas()
+	{
+		applyPending.set(false);
+		List<SoundClip> added = new ArrayList<>();
+		BitSet removed = new BitSet();
+		Delta d;
+		while ((d = deltas.poll()) != null)
+		{
+			if (d.album != album)
+				continue; // Left over from an album no longer on display.
+			for (SoundClip clip : d.songs)
+			{
+				int id = clip.getId();
+				if (d.added && !shown.get(id))
+				{
+					shown.set(id);
+					if (removed.get(id))
+						removed.clear(id); // Removed and added back in the same pulse.
+					else
+						added.add(clip);
+				}
+				else if (!d.added && shown.get(id))
+				{
+					shown.clear(id);
+					removed.set(id);
+				}
+			}
+		}
+		// Added and removed again in the same pulse.
+		added.removeIf(clip -> !shown.get(clip.getId()));
+		ObservableList<SoundClip> items = getItems();
+		if (!removed.isEmpty())
+			items.removeIf(clip -> removed.get(clip.getId()));
+		if (!added.isEmpty())
+			items.addAll(added);
+	}
 
-		ObservableList<SoundClip> temp = FXCollections.observableList(clips);
-		this.setItems(temp);
+	/**
+	 * Show the length and format of each clip next to its name, and fill them
+	 * in as they are extracted.
+	 */
+	public void showClipInfo(ClipInfoExtractor extractor)
+	{
+		clipInfo = extractor;
+		extractor.addListener(onClipInfo);
+		setCellFactory(list -> new ListCell<SoundClip>() {
+			@Override
+			protected void updateItem(SoundClip clip, boolean empty)
+			{
+				super.updateItem(clip, empty);
+				if (empty || clip == null)
+				{
+					setText(null);
+					return;
+				}
+				ClipInfo info = clipInfo.getStore().get(clip);
+				setText(info != null ? clip + "   (" + info + ")" : clip.toString());
+			}
+		});
+	}
+	
+	/**
+	 * Stop listening for clip info and album changes, when the view goes away.
+	 */
+	public void dispose()
+	{
+		if (clipInfo != null)
+			clipInfo.removeListener(onClipInfo);
+		if (album != null)
+			album.removeListener(onAlbumChanged);
+		deltas.clear();
 	}
 
 	public List<SoundClip> getSelectedClips(){
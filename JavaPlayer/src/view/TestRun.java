@@ -1,11 +1,26 @@
 package view;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.stream.Stream;
 
 import model.Album;
+import model.AlbumJournal;
+import model.AlbumSerializer;
+import model.ClipEdit;
+import model.ClipRule;
 import model.SoundClip;
 
 import java.io.IOException;
@@ -57,5 +72,196 @@ public class TestRun
         });
 		
 		root.DumpAlbum("*");
+		
+		checkAlbumFormats();
+		checkBulkEdits();
+		checkJournalRestore();
+	}
+	
+	// Write a hierarchy in the current AHL version and read it back, and read
+	// the older versions.
+	public static void checkAlbumFormats() throws IOException
+	{
+		Album root = Album.createAlbum("Root Album");
+		List<SoundClip> clips = new ArrayList<>();
+		for(int i=0;i<10;i++)
+			clips.add(new SoundClip(new File("formats/"+(i%3)+"/clip "+i+(i%2==0 ? ".wav" : ".aif"))));
+		root.addSongs(clips);
+		Album albA = Album.createSubAlbum("Album B", root);
+		albA.addSongs(clips.subList(0, 6));
+		Album.createSubAlbum("Album C", albA).addSongs(clips.subList(1, 3));
+		Album.createSmartAlbum("Smart", root, ClipRule.parse("ext:wav"));
+		Album.createSubAlbum("Empty", root);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AlbumSerializer.write(out, root);
+		byte[] v4 = out.toByteArray();
+		assertEquals(4, v4[4]);
+		Album read = Album.createAlbum("");
+		AlbumSerializer.read(new ByteArrayInputStream(v4), read);
+		assertEquals(describe(root), describe(read));
+		assertTrue(read.getSubAlbums().get(1).isSmart());
+		assertEquals("ext:wav", read.getSubAlbums().get(1).getRule().toString());
+		
+		// Without smart albums, version 3 is laid out the same.
+		Album plain = Album.createAlbum("Root Album");
+		plain.addSongs(clips);
+		Album.createSubAlbum("Album A", plain).addSongs(clips.subList(0, 4));
+		out.reset();
+		AlbumSerializer.write(out, plain);
+		byte[] v3 = out.toByteArray();
+		v3[4] = 3;
+		read = Album.createAlbum("");
+		AlbumSerializer.read(new ByteArrayInputStream(v3), read);
+		assertEquals(describe(plain), describe(read));
+		
+		// Version 1 had no header, and one byte lengths and counts.
+		out.reset();
+		writeV1(new DataOutputStream(out), plain);
+		read = Album.createAlbum("");
+		AlbumSerializer.read(new ByteArrayInputStream(out.toByteArray()), read);
+		assertEquals(describe(plain), describe(read));
+		
+		// A truncated file is an error, not a smaller hierarchy.
+		try
+		{
+			AlbumSerializer.read(new ByteArrayInputStream(Arrays.copyOf(v4, v4.length/2)), Album.createAlbum(""));
+			fail("Truncated AHL file was read");
+		}
+		catch(IOException e)
+		{
+			// Expected.
+		}
+	}
+	
+	// Undo and redo of adding and removing many songs at once.
+	public static void checkBulkEdits()
+	{
+		Album root = Album.createAlbum("Root Album");
+		List<SoundClip> clips = new ArrayList<>();
+		for(int i=0;i<1000;i++)
+			clips.add(new SoundClip(new File("edits/clip "+i+".wav")));
+		root.addSongs(clips);
+		Album albA = Album.createSubAlbum("Album A", root);
+		albA.addSongs(clips.subList(0, 600));
+		Album albC = Album.createSubAlbum("Album C", albA);
+		albC.addSongs(clips.subList(200, 500));
+		Album albB = Album.createSubAlbum("Album B", root);
+		albB.addSongs(clips.subList(100, 300));
+		
+		String before = describe(root);
+		ClipEdit remove = ClipEdit.remove(albA, clips.subList(0, 400));
+		assertEquals(400, remove.getChanged().size());
+		assertEquals(100, albC.getSongs().size());
+		assertEquals(200, albB.getSongs().size());
+		assertEquals(1000, root.getSongs().size());
+		String after = describe(root);
+		
+		remove.undo();
+		assertEquals(400, remove.getChanged().size());
+		assertEquals(before, describe(root));
+		remove.redo();
+		assertEquals(400, remove.getChanged().size());
+		assertEquals(after, describe(root));
+		remove.undo();
+		assertEquals(before, describe(root));
+		
+		// Adding to C also adds to A, and undoing takes them out of both.
+		ClipEdit add = ClipEdit.add(albC, clips.subList(400, 800));
+		assertEquals(300, add.getChanged().size());
+		assertEquals(800, albA.getSongs().size());
+		after = describe(root);
+		add.undo();
+		assertEquals(300, add.getChanged().size());
+		assertEquals(before, describe(root));
+		add.redo();
+		assertEquals(after, describe(root));
+	}
+	
+	// Restore albums from a journal whose last record was only partly written.
+	public static void checkJournalRestore() throws IOException
+	{
+		Path folder = Files.createTempDirectory("journal");
+		List<SoundClip> clips = new ArrayList<>();
+		for(int i=0;i<100;i++)
+			clips.add(new SoundClip(new File("journal/clip "+i+".wav")));
+		
+		AlbumJournal journal = AlbumJournal.open(folder);
+		Album root = journal.restore("Root Album");
+		root.addSongs(clips);
+		Album albA = Album.createSubAlbum("Album A", root);
+		journal.albumAdded(root, albA);
+		ClipEdit.add(albA, clips.subList(0, 60)).redo(journal);
+		Album albB = Album.createSubAlbum("Album B", albA);
+		journal.albumAdded(albA, albB);
+		ClipEdit.add(albB, clips.subList(20, 40)).redo(journal);
+		ClipEdit.remove(albA, clips.subList(30, 50)).redo(journal);
+		journal.flush();
+		String expected = describe(albA);
+		Path log;
+		try(Stream<Path> files = Files.list(folder))
+		{
+			log = files.filter(f -> f.toString().endsWith(".log")).findFirst().get();
+		}
+		long size = Files.size(log);
+		
+		albA.setAlbumName("Album A2");
+		journal.albumRenamed(albA);
+		journal.close();
+		assertTrue(Files.size(log) > size + 4);
+		try(FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE))
+		{
+			channel.truncate(Files.size(log) - 3);
+		}
+		
+		// The torn rename is dropped, and cut off so new records follow the good ones.
+		journal = AlbumJournal.open(folder);
+		root = journal.restore("Root Album");
+		assertEquals(size, Files.size(log));
+		assertEquals(1, root.getSubAlbums().size());
+		assertEquals(expected, describe(root.getSubAlbums().get(0)));
+		Album albC = Album.createSubAlbum("Album C", root);
+		journal.albumAdded(root, albC);
+		journal.close();
+		
+		journal = AlbumJournal.open(folder);
+		root = journal.restore("Root Album");
+		assertEquals(2, root.getSubAlbums().size());
+		assertEquals(expected, describe(root.getSubAlbums().get(0)));
+		assertEquals("Album C", root.getSubAlbums().get(1).getAlbumName());
+		journal.close();
+	}
+	
+	// An album in the layout of AHL version 1.
+	private static void writeV1(DataOutputStream out, Album album) throws IOException
+	{
+		writeStringV1(out, album.getAlbumName());
+		out.writeByte(album.getSubAlbums().size());
+		for(Album a : album.getSubAlbums())
+			writeV1(out, a);
+		out.writeByte(album.getSongs().size());
+		for(SoundClip clip : album.getSongs())
+			writeStringV1(out, clip.getFile().getPath());
+	}
+	
+	private static void writeStringV1(DataOutputStream out, String text) throws IOException
+	{
+		byte[] bytes = text.getBytes();
+		out.writeByte(bytes.length);
+		out.write(bytes);
+	}
+	
+	// Names, songs and subalbums of an album and all below it, to compare hierarchies.
+	static String describe(Album album)
+	{
+		StringBuilder sb = new StringBuilder(album.getAlbumName()).append(' ');
+		List<String> songs = new ArrayList<>();
+		for(SoundClip clip : album.getSongs())
+			songs.add(clip.getFile().getPath());
+		Collections.sort(songs);
+		sb.append(songs).append(" {");
+		for(Album a : album.getSubAlbums())
+			sb.append(describe(a)).append(", ");
+		return sb.append('}').toString();
 	}
 }